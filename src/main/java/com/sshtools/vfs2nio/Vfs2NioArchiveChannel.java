@@ -0,0 +1,271 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * A read-only {@link FileChannel} on a single entry of an archive indexed by
+ * {@link Vfs2NioArchiveIndex}.
+ * <p>
+ * Stored entries are read, transferred and mapped straight from the archive
+ * with positional operations. Compressed entries are inflated as a stream,
+ * which is kept while reads are sequential; seeking forwards skips, and
+ * seeking backwards starts again from the beginning of the entry.
+ */
+class Vfs2NioArchiveChannel extends FileChannel {
+	private final Vfs2NioFileSystem fs;
+	private final Path path;
+	private final Vfs2NioArchiveIndex index;
+	private final FileChannel archive;
+	private final int entry;
+	private final long offset;
+	private final long size;
+	private final boolean stored;
+
+	private long position;
+	private InputStream in;
+	private long inPosition;
+	private byte[] buffer;
+
+	Vfs2NioArchiveChannel(Vfs2NioFileSystem fs, Path path, Vfs2NioArchiveIndex index, FileChannel archive, int entry) {
+		this.fs = fs;
+		this.path = path;
+		this.index = index;
+		this.archive = archive;
+		this.entry = entry;
+		this.offset = index.getOffset(entry);
+		this.size = index.getSize(entry);
+		this.stored = index.getMethod(entry) == Vfs2NioArchiveIndex.STORED;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		var r = read(dst, position);
+		if (r > 0)
+			position += r;
+		return r;
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		var t = 0l;
+		for (int i = offset; i < offset + length; i++) {
+			if (!dsts[i].hasRemaining())
+				continue;
+			var r = read(dsts[i]);
+			if (r == -1)
+				return t == 0 ? -1 : t;
+			t += r;
+			if (dsts[i].hasRemaining())
+				break;
+		}
+		return t;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+		ensureOpen();
+		if (position < 0)
+			throw new IllegalArgumentException();
+		if (position >= size)
+			return -1;
+		var len = (int) Math.min(dst.remaining(), size - position);
+		if (len == 0)
+			return 0;
+		if (stored) {
+			var limit = dst.limit();
+			dst.limit(dst.position() + len);
+			try {
+				return archive.read(dst, offset + position);
+			} finally {
+				dst.limit(limit);
+			}
+		}
+		if (in == null || position < inPosition) {
+			if (in != null)
+				in.close();
+			in = index.open(archive, entry, false);
+			inPosition = 0;
+		}
+		while (inPosition < position) {
+			var s = in.skip(position - inPosition);
+			if (s <= 0)
+				throw new IOException("Archive entry is truncated.");
+			inPosition += s;
+		}
+		int r;
+		if (dst.hasArray()) {
+			r = in.read(dst.array(), dst.arrayOffset() + dst.position(), len);
+			if (r > 0)
+				dst.position(dst.position() + r);
+		} else {
+			if (buffer == null || buffer.length < len)
+				buffer = new byte[Math.max(8192, Math.min(len, 65536))];
+			r = in.read(buffer, 0, Math.min(len, buffer.length));
+			if (r > 0)
+				dst.put(buffer, 0, r);
+		}
+		if (r > 0)
+			inPosition += r;
+		return r;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException();
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException();
+		if (position >= size)
+			return 0;
+		count = Math.min(count, size - position);
+		if (stored)
+			/* Let the platform use sendfile or similar if it can */
+			return archive.transferTo(offset + position, count, target);
+		var bb = Vfs2NioBufferPool.acquire();
+		var tw = 0l;
+		try {
+			while (tw < count) {
+				bb.clear();
+				bb.limit((int) Math.min(bb.capacity(), count - tw));
+				var nr = read(bb, position + tw);
+				if (nr <= 0)
+					break;
+				bb.flip();
+				while (bb.hasRemaining()) {
+					var nw = target.write(bb);
+					if (nw <= 0)
+						return tw;
+					tw += nw;
+				}
+			}
+			return tw;
+		} catch (IOException ioe) {
+			if (tw > 0)
+				return tw;
+			throw ioe;
+		} finally {
+			Vfs2NioBufferPool.release(bb);
+		}
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		ensureOpen();
+		if (mode != MapMode.READ_ONLY)
+			throw new NonWritableChannelException();
+		if (!stored)
+			throw new UnsupportedOperationException("Compressed archive entries cannot be mapped.");
+		if (position < 0 || size < 0 || position + size > this.size)
+			throw new IllegalArgumentException();
+		return archive.map(MapMode.READ_ONLY, offset + position, size);
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		if (!shared)
+			throw new NonWritableChannelException();
+		return fs.getLocks().lock(this, path, position, size, shared, true);
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		if (!shared)
+			throw new NonWritableChannelException();
+		return fs.getLocks().lock(this, path, position, size, shared, false);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		try {
+			if (in != null)
+				in.close();
+		} finally {
+			try {
+				archive.close();
+			} finally {
+				fs.getLocks().release(this, path);
+			}
+		}
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+	}
+}
@@ -0,0 +1,470 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarFile;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.vfs2.FileType;
+
+/**
+ * A compact index of the entries of a zip or (uncompressed) tar archive that
+ * is a local file, recording where each entry's data starts, so that entries
+ * can be listed and read without Commons VFS scanning the whole archive, and
+ * tar entries can be read without reading every entry before them.
+ * <p>
+ * Entries are held in primitive arrays sorted by path, so a lookup is a binary
+ * search, and the children of every directory are held contiguously. The index
+ * is built once and saved to a file, which is used for as long as the size and
+ * modification time of the archive are unchanged.
+ * <p>
+ * Building the index needs Apache Commons Compress.
+ */
+final class Vfs2NioArchiveIndex {
+	/* Methods */
+	static final byte DIRECTORY = -1;
+	static final byte STORED = 0;
+	static final byte DEFLATED = 8;
+
+	private static final int MAGIC = 0x56414958;
+	private static final int VERSION = 1;
+
+	private final Path archive;
+	private final long archiveSize;
+	private final long archiveModified;
+	private final String[] names;
+	private final long[] offsets;
+	private final long[] compressedSizes;
+	private final long[] sizes;
+	private final long[] modified;
+	private final byte[] methods;
+	private final int[] firstChild;
+	private final int[] childCount;
+	private final int[] children;
+
+	private Vfs2NioArchiveIndex(Path archive, long archiveSize, long archiveModified, String[] names, long[] offsets,
+			long[] compressedSizes, long[] sizes, long[] modified, byte[] methods) {
+		this.archive = archive;
+		this.archiveSize = archiveSize;
+		this.archiveModified = archiveModified;
+		this.names = names;
+		this.offsets = offsets;
+		this.compressedSizes = compressedSizes;
+		this.sizes = sizes;
+		this.modified = modified;
+		this.methods = methods;
+
+		/* Group the children of each directory together (they stay sorted) */
+		var count = names.length;
+		var parents = new int[count];
+		firstChild = new int[count];
+		childCount = new int[count];
+		for (int i = 1; i < count; i++) {
+			parents[i] = find(parent(names[i]));
+			childCount[parents[i]]++;
+		}
+		for (int i = 1; i < count; i++)
+			firstChild[i] = firstChild[i - 1] + childCount[i - 1];
+		children = new int[Math.max(0, count - 1)];
+		var filled = new int[count];
+		for (int i = 1; i < count; i++) {
+			var p = parents[i];
+			children[firstChild[p] + filled[p]++] = i;
+		}
+	}
+
+	/**
+	 * Load the index of an archive from a file, or build it (and try to save
+	 * it) if the file does not exist or is out of date. Without an index file,
+	 * the index is just built.
+	 * 
+	 * @param archive   archive
+	 * @param zip       <code>true</code> for a zip archive, <code>false</code> for
+	 *                  tar
+	 * @param indexFile file to load the index from and save it to, or
+	 *                  <code>null</code>
+	 * @return index
+	 * @throws IOException on error
+	 */
+	static Vfs2NioArchiveIndex open(Path archive, boolean zip, Path indexFile) throws IOException {
+		var size = Files.size(archive);
+		var mtime = Files.getLastModifiedTime(archive).toMillis();
+		if (indexFile != null && Files.exists(indexFile)) {
+			try {
+				var idx = load(archive, indexFile);
+				if (idx.archiveSize == size && idx.archiveModified == mtime)
+					return idx;
+			} catch (IOException | RuntimeException e) {
+				/* Corrupt or from another version, so rebuild */
+			}
+		}
+		var idx = zip ? scanZip(archive, size, mtime) : scanTar(archive, size, mtime);
+		if (indexFile != null) {
+			try {
+				idx.save(indexFile);
+			} catch (IOException ioe) {
+				/* Still usable, just not persisted (e.g. a read-only location) */
+			}
+		}
+		return idx;
+	}
+
+	/**
+	 * Get the number of entries, including directories that are only implied by
+	 * the paths of the entries in them, and the root.
+	 * 
+	 * @return entries
+	 */
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Find an entry.
+	 * 
+	 * @param path path within the archive, with or without leading slash
+	 * @return index of entry, or -1 if there is no such entry
+	 */
+	int find(String path) {
+		var idx = Arrays.binarySearch(names, normalize(path));
+		return idx < 0 ? -1 : idx;
+	}
+
+	String getName(int entry) {
+		return names[entry];
+	}
+
+	boolean isDirectory(int entry) {
+		return methods[entry] == DIRECTORY;
+	}
+
+	/**
+	 * Get whether the data of an entry can be read directly from the archive.
+	 * 
+	 * @param entry entry
+	 * @return readable
+	 */
+	boolean isReadable(int entry) {
+		return methods[entry] == STORED || methods[entry] == DEFLATED;
+	}
+
+	Vfs2NioFileAttributes getAttributes(int entry) {
+		return isDirectory(entry) ? new Vfs2NioFileAttributes(null, FileType.FOLDER, 0, modified[entry])
+				: new Vfs2NioFileAttributes(null, FileType.FILE, sizes[entry], modified[entry]);
+	}
+
+	/**
+	 * Get the paths of the children of a directory.
+	 * 
+	 * @param entry directory
+	 * @return paths of children (relative to the root of the archive)
+	 */
+	List<String> list(int entry) {
+		var l = new ArrayList<String>(childCount[entry]);
+		for (int i = 0; i < childCount[entry]; i++)
+			l.add(names[children[firstChild[entry] + i]]);
+		return l;
+	}
+
+	InputStream newInputStream(int entry) throws IOException {
+		return open(FileChannel.open(archive, StandardOpenOption.READ), entry, true);
+	}
+
+	FileChannel newChannel(Vfs2NioFileSystem fs, Path path, int entry) throws IOException {
+		return new Vfs2NioArchiveChannel(fs, path, this, FileChannel.open(archive, StandardOpenOption.READ), entry);
+	}
+
+	long getOffset(int entry) {
+		return offsets[entry];
+	}
+
+	long getSize(int entry) {
+		return sizes[entry];
+	}
+
+	byte getMethod(int entry) {
+		return methods[entry];
+	}
+
+	/*
+	 * Open the uncompressed data of an entry on a channel to the archive.
+	 */
+	InputStream open(FileChannel channel, int entry, boolean closeChannel) throws IOException {
+		var method = methods[entry];
+		var raw = new EntryInputStream(channel, offsets[entry], compressedSizes[entry], method == DEFLATED,
+				closeChannel);
+		if (method == STORED)
+			return new BufferedInputStream(raw, 65536);
+		var inflater = new Inflater(true);
+		return new InflaterInputStream(raw, inflater, 65536) {
+			private boolean closed;
+
+			@Override
+			public void close() throws IOException {
+				if (!closed) {
+					closed = true;
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			}
+		};
+	}
+
+	void save(Path file) throws IOException {
+		var tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(archiveSize);
+			out.writeLong(archiveModified);
+			out.writeInt(names.length);
+			for (int i = 0; i < names.length; i++) {
+				out.writeUTF(names[i]);
+				out.writeLong(offsets[i]);
+				out.writeLong(compressedSizes[i]);
+				out.writeLong(sizes[i]);
+				out.writeLong(modified[i]);
+				out.writeByte(methods[i]);
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Vfs2NioArchiveIndex load(Path archive, Path file) throws IOException {
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("Not an archive index.");
+			var size = in.readLong();
+			var mtime = in.readLong();
+			var count = in.readInt();
+			var names = new String[count];
+			var offsets = new long[count];
+			var compressedSizes = new long[count];
+			var sizes = new long[count];
+			var modified = new long[count];
+			var methods = new byte[count];
+			for (int i = 0; i < count; i++) {
+				names[i] = in.readUTF();
+				offsets[i] = in.readLong();
+				compressedSizes[i] = in.readLong();
+				sizes[i] = in.readLong();
+				modified[i] = in.readLong();
+				methods[i] = in.readByte();
+			}
+			return new Vfs2NioArchiveIndex(archive, size, mtime, names, offsets, compressedSizes, sizes, modified,
+					methods);
+		}
+	}
+
+	private static Vfs2NioArchiveIndex scanZip(Path archive, long size, long mtime) throws IOException {
+		var entries = new ArrayList<Entry>();
+		try (var zip = new ZipFile(Files.newByteChannel(archive))) {
+			for (var en = zip.getEntries(); en.hasMoreElements();) {
+				var ze = en.nextElement();
+				byte method;
+				if (ze.isDirectory())
+					method = DIRECTORY;
+				else if (!zip.canReadEntryData(ze) || ze.getDataOffset() == -1
+						|| (ze.getMethod() != ZipArchiveEntry.STORED && ze.getMethod() != ZipArchiveEntry.DEFLATED))
+					/* Encrypted or another compression method, left to Commons VFS */
+					method = Byte.MAX_VALUE;
+				else
+					method = (byte) ze.getMethod();
+				entries.add(new Entry(ze.getName(), ze.getDataOffset(), ze.getCompressedSize(), ze.getSize(),
+						ze.getTime(), method));
+			}
+		}
+		return build(archive, size, mtime, entries);
+	}
+
+	private static Vfs2NioArchiveIndex scanTar(Path archive, long size, long mtime) throws IOException {
+		var entries = new ArrayList<Entry>();
+		try (var tar = new TarFile(archive)) {
+			for (var te : tar.getEntries()) {
+				byte method;
+				if (te.isDirectory())
+					method = DIRECTORY;
+				else if (te.isFile() && !te.isSparse())
+					method = STORED;
+				else
+					method = Byte.MAX_VALUE;
+				entries.add(new Entry(te.getName(), te.getDataOffset(), te.getSize(), te.getSize(),
+						te.getLastModifiedDate().getTime(), method));
+			}
+		}
+		return build(archive, size, mtime, entries);
+	}
+
+	private static Vfs2NioArchiveIndex build(Path archive, long size, long mtime, List<Entry> entries) {
+		/* Add the root, and any directories only implied by paths */
+		var all = new ArrayList<Entry>(entries.size() + 1);
+		var seen = new HashSet<String>();
+		all.add(new Entry("", 0, 0, 0, mtime, DIRECTORY));
+		seen.add("");
+		for (var e : entries) {
+			if (seen.add(e.name))
+				all.add(e);
+		}
+		for (var e : entries) {
+			for (var p = parent(e.name); seen.add(p); p = parent(p))
+				all.add(new Entry(p, 0, 0, 0, e.modified, DIRECTORY));
+		}
+		Collections.sort(all, Comparator.comparing(e -> e.name));
+
+		var count = all.size();
+		var names = new String[count];
+		var offsets = new long[count];
+		var compressedSizes = new long[count];
+		var sizes = new long[count];
+		var modified = new long[count];
+		var methods = new byte[count];
+		for (int i = 0; i < count; i++) {
+			var e = all.get(i);
+			names[i] = e.name;
+			offsets[i] = e.offset;
+			compressedSizes[i] = e.compressedSize;
+			sizes[i] = e.size;
+			modified[i] = e.modified;
+			methods[i] = e.method;
+		}
+		return new Vfs2NioArchiveIndex(archive, size, mtime, names, offsets, compressedSizes, sizes, modified,
+				methods);
+	}
+
+	static String normalize(String path) {
+		var start = 0;
+		var end = path.length();
+		while (start < end && path.charAt(start) == '/')
+			start++;
+		if (path.startsWith("./", start))
+			start += 2;
+		while (end > start && path.charAt(end - 1) == '/')
+			end--;
+		return path.substring(start, end);
+	}
+
+	private static String parent(String name) {
+		var idx = name.lastIndexOf('/');
+		return idx == -1 ? "" : name.substring(0, idx);
+	}
+
+	private static final class Entry {
+		private final String name;
+		private final long offset;
+		private final long compressedSize;
+		private final long size;
+		private final long modified;
+		private final byte method;
+
+		Entry(String name, long offset, long compressedSize, long size, long modified, byte method) {
+			this.name = normalize(name);
+			this.offset = offset;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.modified = modified;
+			this.method = method;
+		}
+	}
+
+	/*
+	 * Reads a range of the archive with positional reads, so any number of
+	 * streams may share one channel. Deflated data is followed by a single
+	 * padding byte, as the inflater may need one more byte of input than the
+	 * compressed data to finish.
+	 */
+	private static final class EntryInputStream extends InputStream {
+		private final FileChannel channel;
+		private final long end;
+		private final boolean closeChannel;
+		private long position;
+		private boolean pad;
+
+		EntryInputStream(FileChannel channel, long offset, long length, boolean pad, boolean closeChannel) {
+			this.channel = channel;
+			this.position = offset;
+			this.end = offset + length;
+			this.pad = pad;
+			this.closeChannel = closeChannel;
+		}
+
+		@Override
+		public int read() throws IOException {
+			var b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (position >= end) {
+				if (pad) {
+					pad = false;
+					b[off] = 0;
+					return 1;
+				}
+				return -1;
+			}
+			var r = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+			if (r == -1)
+				throw new IOException("Archive is truncated.");
+			position += r;
+			return r;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			var s = Math.max(0, Math.min(n, end - position));
+			position += s;
+			return s;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, end - position);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closeChannel)
+				channel.close();
+		}
+	}
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Deletes several files with as few requests as the backend allows, for
+ * example using a multi-object delete on an object store. Commons VFS has no
+ * such operation, so an implementation specific to the backend may be
+ * registered with the {@link Vfs2NioFileSystemProvider#BATCH_DELETE} option,
+ * and will be used when deleting directory trees.
+ */
+public interface Vfs2NioBatchDelete {
+
+	/**
+	 * Delete files, all of which are in the same directory. If this throws, the
+	 * files will then be deleted one at a time, so it is fine for some of them
+	 * to have already been deleted.
+	 * 
+	 * @param directory directory containing the files
+	 * @param files     files (never directories)
+	 * @throws IOException if any file could not be deleted
+	 */
+	void delete(FileObject directory, List<FileObject> files) throws IOException;
+}
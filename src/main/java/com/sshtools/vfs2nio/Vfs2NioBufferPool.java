@@ -0,0 +1,64 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small shared pool of direct buffers for bulk transfers. Direct buffers are
+ * expensive to allocate and are only freed by the garbage collector, so they
+ * are kept and reused rather than allocated per transfer. Writing a direct
+ * buffer to a socket or file channel also avoids the copy the JDK makes of heap
+ * buffers.
+ */
+final class Vfs2NioBufferPool {
+	static final int BUFFER_SIZE = 65536;
+	private static final int MAX_POOLED = 32;
+
+	private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+	private static final AtomicInteger pooled = new AtomicInteger();
+
+	private Vfs2NioBufferPool() {
+	}
+
+	/**
+	 * Take a cleared buffer from the pool, allocating one if there are none.
+	 * 
+	 * @return buffer
+	 */
+	static ByteBuffer acquire() {
+		var buf = pool.poll();
+		if (buf == null)
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	/**
+	 * Return a buffer to the pool. It must not be used again by the caller.
+	 * 
+	 * @param buf buffer
+	 */
+	static void release(ByteBuffer buf) {
+		if (pooled.incrementAndGet() <= MAX_POOLED)
+			pool.add(buf);
+		else
+			pooled.decrementAndGet();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The digests of each fixed size chunk of a file, as produced by
+ * {@link Vfs2NioFiles#digestChunks(java.nio.file.Path, String, int)}. This may
+ * be used as a manifest to verify (or re-transfer) parts of a file
+ * independently. The {@link #getRoot()} digest is the digest of all the chunk
+ * digests concatenated in order, so identifies the whole file.
+ */
+public final class Vfs2NioChunkedDigest {
+	private final String algorithm;
+	private final int chunkSize;
+	private final long size;
+	private final List<byte[]> chunks;
+	private final byte[] root;
+
+	Vfs2NioChunkedDigest(String algorithm, int chunkSize, long size, List<byte[]> chunks) {
+		this.algorithm = algorithm;
+		this.chunkSize = chunkSize;
+		this.size = size;
+		this.chunks = Collections.unmodifiableList(chunks);
+		var md = Vfs2NioDigester.newDigest(algorithm);
+		for (var chunk : chunks)
+			md.update(chunk);
+		root = md.digest();
+	}
+
+	public String getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Get the total number of bytes hashed.
+	 * 
+	 * @return size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the digest of each chunk, in order. The arrays must not be modified.
+	 * 
+	 * @return chunk digests
+	 */
+	public List<byte[]> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Get the digest of the chunk digests.
+	 * 
+	 * @return root digest
+	 */
+	public byte[] getRoot() {
+		return root.clone();
+	}
+
+	/**
+	 * Get whether another manifest describes the same content.
+	 * 
+	 * @param other other
+	 * @return same content
+	 */
+	public boolean isSameContent(Vfs2NioChunkedDigest other) {
+		return algorithm.equals(other.algorithm) && chunkSize == other.chunkSize && size == other.size
+				&& MessageDigest.isEqual(root, other.root);
+	}
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Flow.Subscriber} that writes the buffers it receives to a file.
+ * Buffers are copied as they arrive, so publishers may reuse them. Writing
+ * happens on the file system's executor, and no more than a few
+ * buffers are requested ahead of what has been written, so a slow backend
+ * holds back the publisher. Obtain one from
+ * {@link Vfs2NioFileSystem#newContentSubscriber(Path, OpenOption...)}.
+ */
+public final class Vfs2NioContentSubscriber implements Flow.Subscriber<ByteBuffer> {
+	/* Buffers requested ahead of those written */
+	private final static int WINDOW = 4;
+
+	private final Executor executor;
+	private final Path path;
+	private final OpenOption[] options;
+	private final CompletableFuture<Long> result = new CompletableFuture<>();
+	private final ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger wip = new AtomicInteger();
+
+	private volatile Flow.Subscription subscription;
+	private volatile boolean complete;
+	private volatile Throwable error;
+	/* Only used while draining */
+	private SeekableByteChannel channel;
+	private long written;
+
+	Vfs2NioContentSubscriber(Executor executor, Path path, OpenOption... options) {
+		this.executor = executor;
+		this.path = path;
+		this.options = options;
+	}
+
+	/**
+	 * Get the outcome of the write, the number of bytes written once the
+	 * publisher has completed and the file has been closed.
+	 * 
+	 * @return result
+	 */
+	public CompletableFuture<Long> getResult() {
+		return result;
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		if (this.subscription != null) {
+			subscription.cancel();
+			return;
+		}
+		this.subscription = subscription;
+		subscription.request(WINDOW);
+	}
+
+	@Override
+	public void onNext(ByteBuffer item) {
+		/* Publishers may reuse the buffer once this returns, so keep a copy */
+		var n = item.remaining();
+		var copy = n <= Vfs2NioBufferPool.BUFFER_SIZE ? Vfs2NioBufferPool.acquire() : ByteBuffer.allocate(n);
+		copy.put(item.duplicate()).flip();
+		queue.add(copy);
+		schedule();
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error = throwable;
+		schedule();
+	}
+
+	@Override
+	public void onComplete() {
+		complete = true;
+		schedule();
+	}
+
+	private void schedule() {
+		if (wip.getAndIncrement() == 0) {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException ree) {
+				/* File system closed */
+				subscription.cancel();
+				result.completeExceptionally(ree);
+			}
+		}
+	}
+
+	private void drain() {
+		var missed = 1;
+		while (true) {
+			if (!result.isDone()) {
+				try {
+					write();
+				} catch (IOException | RuntimeException e) {
+					subscription.cancel();
+					ByteBuffer buf;
+					while ((buf = queue.poll()) != null)
+						release(buf);
+					close(e);
+				}
+			}
+			missed = wip.addAndGet(-missed);
+			if (missed == 0)
+				return;
+		}
+	}
+
+	private void write() throws IOException {
+		/* Read these first, everything published before them is then queued */
+		var failed = error;
+		var finished = complete;
+		ByteBuffer buf;
+		while ((buf = queue.poll()) != null) {
+			try {
+				open();
+				while (buf.hasRemaining())
+					written += channel.write(buf);
+			} finally {
+				release(buf);
+			}
+			subscription.request(1);
+		}
+		if (failed != null)
+			close(failed);
+		else if (finished) {
+			/* Even if nothing was published, the file should exist */
+			open();
+			close(null);
+		}
+	}
+
+	private void open() throws IOException {
+		if (channel == null)
+			channel = Files.newByteChannel(path, options.length == 0
+					? new OpenOption[] { StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+							StandardOpenOption.WRITE }
+					: options);
+	}
+
+	private static void release(ByteBuffer buf) {
+		if (buf.isDirect())
+			Vfs2NioBufferPool.release(buf);
+	}
+
+	private void close(Throwable failure) {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				if (failure == null)
+					failure = ioe;
+			}
+			channel = null;
+		}
+		if (failure == null)
+			result.complete(written);
+		else
+			result.completeExceptionally(failure);
+	}
+}
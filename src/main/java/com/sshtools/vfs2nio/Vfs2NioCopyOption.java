@@ -0,0 +1,31 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.CopyOption;
+
+/**
+ * Copy options specific to this provider, that may be passed to
+ * {@link java.nio.file.Files#copy(java.nio.file.Path, java.nio.file.Path, CopyOption...)}.
+ */
+public enum Vfs2NioCopyOption implements CopyOption {
+	/**
+	 * If the target is an existing file that supports random access writes,
+	 * compare it block by block with the source and only write the blocks that
+	 * differ. See {@link Vfs2NioFiles#copyDelta(java.nio.file.Path, java.nio.file.Path, int)}.
+	 */
+	DELTA
+}
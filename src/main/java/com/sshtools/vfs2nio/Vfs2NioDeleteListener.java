@@ -0,0 +1,49 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Receives progress of a recursive delete started with
+ * {@link Vfs2NioFiles#deleteTree(Path, int, Vfs2NioDeleteListener)}.
+ * <p>
+ * Methods are called from the threads performing the delete, so may be called
+ * concurrently and should return quickly.
+ */
+public interface Vfs2NioDeleteListener {
+
+	/**
+	 * A file or directory has been deleted.
+	 * 
+	 * @param path      path
+	 * @param directory whether the path was a directory
+	 */
+	default void deleted(Path path, boolean directory) {
+	}
+
+	/**
+	 * A file or directory could not be listed or deleted. The delete carries on
+	 * with everything else, but the directories containing the path will not be
+	 * deleted.
+	 * 
+	 * @param path  path
+	 * @param error error
+	 */
+	default void failed(Path path, IOException error) {
+	}
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.zip.Adler32;
+
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.util.RandomAccessMode;
+
+/**
+ * Updates an existing file in place so that it is the same as another, only
+ * writing the blocks that differ. The target is read on the file system's pool
+ * to produce a weak (Adler-32) and strong (MD5) checksum of each block, while
+ * the source is read on the calling thread and compared with the checksums as
+ * they become available. Blocks that differ are written to the target using
+ * positional writes.
+ * <p>
+ * Unlike rsync there is no process at the remote end to do the reading, so
+ * both files are read in full. What is saved is the writing, which for most
+ * backends is the more expensive of the two.
+ */
+class Vfs2NioDeltaCopy {
+	static final int DEFAULT_BLOCK_SIZE = 65536;
+
+	/**
+	 * Get whether a delta copy is possible between two file objects.
+	 * 
+	 * @param src    source
+	 * @param target target
+	 * @return possible
+	 * @throws FileSystemException on error
+	 */
+	static boolean isSupported(FileObject src, FileObject target) throws FileSystemException {
+		return src.isFile() && target.isFile()
+				&& target.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_WRITE);
+	}
+
+	static Vfs2NioDeltaStats copy(Vfs2NioPath src, FileObject srcObj, Vfs2NioPath target, FileObject targetObj,
+			int blockSize) throws IOException {
+		var srcSize = srcObj.getContent().getSize();
+		var targetSize = targetObj.getContent().getSize();
+		var blocks = blocks(srcSize, blockSize);
+		var signatures = new Signatures(Math.min(blocks, blocks(targetSize, blockSize)));
+		var fs = target.getFileSystem();
+		try {
+			fs.getPool().execute(() -> signatures.compute(target, targetSize, blockSize));
+		} catch (RejectedExecutionException ree) {
+			throw new IOException("File system closed.", ree);
+		}
+
+		var matched = 0;
+		var written = 0l;
+		var buf = new byte[blockSize];
+		var adler = new Adler32();
+		var md5 = md5();
+		try (var in = Files.newInputStream(src);
+				var rac = targetObj.getContent().getRandomAccessContent(RandomAccessMode.READWRITE)) {
+			for (int i = 0; i < blocks; i++) {
+				var offset = (long) i * blockSize;
+				var len = (int) Math.min(blockSize, srcSize - offset);
+				if (in.readNBytes(buf, 0, len) != len)
+					throw new EOFException(String.format("%s changed while being copied.", src));
+				if (i < signatures.blocks && len == blockLength(targetSize, blockSize, i)) {
+					signatures.awaitNext();
+					adler.reset();
+					adler.update(buf, 0, len);
+					if (adler.getValue() == signatures.weak[i]) {
+						md5.update(buf, 0, len);
+						if (Arrays.equals(md5.digest(), signatures.strong[i])) {
+							matched++;
+							continue;
+						}
+					}
+				}
+				rac.seek(offset);
+				rac.write(buf, 0, len);
+				written += len;
+			}
+			if (targetSize > srcSize)
+				rac.setLength(srcSize);
+		} finally {
+			signatures.cancelled = true;
+		}
+		var metrics = fs.getMetrics();
+		if (metrics != null)
+			metrics.recordDeltaSaved(srcSize - written);
+		return new Vfs2NioDeltaStats(srcSize, written, blocks, matched);
+	}
+
+	private static int blocks(long size, int blockSize) {
+		return (int) ((size + blockSize - 1) / blockSize);
+	}
+
+	private static int blockLength(long size, int blockSize, int block) {
+		return (int) Math.min(blockSize, size - (long) block * blockSize);
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private final static class Signatures {
+		private final int blocks;
+		private final long[] weak;
+		private final byte[][] strong;
+		private final Semaphore ready = new Semaphore(0);
+		private volatile IOException error;
+		private volatile boolean cancelled;
+
+		Signatures(int blocks) {
+			this.blocks = blocks;
+			weak = new long[blocks];
+			strong = new byte[blocks][];
+		}
+
+		void compute(Vfs2NioPath target, long size, int blockSize) {
+			var buf = new byte[blockSize];
+			var adler = new Adler32();
+			var md5 = md5();
+			try (var in = Files.newInputStream(target)) {
+				for (int i = 0; i < blocks && !cancelled; i++) {
+					var len = blockLength(size, blockSize, i);
+					if (in.readNBytes(buf, 0, len) != len)
+						throw new EOFException(String.format("%s changed while being copied.", target));
+					adler.reset();
+					adler.update(buf, 0, len);
+					weak[i] = adler.getValue();
+					md5.update(buf, 0, len);
+					strong[i] = md5.digest();
+					ready.release();
+				}
+			} catch (IOException | RuntimeException e) {
+				error = e instanceof IOException ? (IOException) e : new IOException(e);
+				ready.release(blocks);
+			}
+		}
+
+		/*
+		 * Block until the checksums of the next block have been computed. Must be
+		 * called once for each block, in order
+		 */
+		void awaitNext() throws IOException {
+			try {
+				ready.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted.");
+			}
+			var err = error;
+			if (err != null)
+				throw new IOException("Failed to read target.", err);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+/**
+ * The outcome of a delta copy, see
+ * {@link Vfs2NioFiles#copyDelta(java.nio.file.Path, java.nio.file.Path, int)}.
+ */
+public final class Vfs2NioDeltaStats {
+	private final long size;
+	private final long bytesWritten;
+	private final int blocks;
+	private final int blocksMatched;
+
+	Vfs2NioDeltaStats(long size, long bytesWritten, int blocks, int blocksMatched) {
+		this.size = size;
+		this.bytesWritten = bytesWritten;
+		this.blocks = blocks;
+		this.blocksMatched = blocksMatched;
+	}
+
+	/**
+	 * Get the size of the source (and now the target).
+	 * 
+	 * @return size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the number of bytes actually written to the target.
+	 * 
+	 * @return bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Get the number of bytes that did not need to be written, because the
+	 * target already contained them.
+	 * 
+	 * @return bytes saved
+	 */
+	public long getBytesSaved() {
+		return size - bytesWritten;
+	}
+
+	/**
+	 * Get the number of blocks in the source.
+	 * 
+	 * @return blocks
+	 */
+	public int getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * Get the number of blocks that were already the same in the target.
+	 * 
+	 * @return blocks matched
+	 */
+	public int getBlocksMatched() {
+		return blocksMatched;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d bytes, %d written, %d saved (%d of %d blocks matched)", size, bytesWritten,
+				getBytesSaved(), blocksMatched, blocks);
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashes streams on a pool while the calling thread carries on reading, using a
+ * small fixed set of buffers so that memory use is bounded however large the
+ * content is.
+ */
+final class Vfs2NioDigester {
+	static final int BUFFER_SIZE = 65536;
+	private static final int BUFFERS = 4;
+
+	private Vfs2NioDigester() {
+	}
+
+	static MessageDigest newDigest(String algorithm) {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Read a stream to the end, hashing its content. Each buffer is hashed by a
+	 * task chained to the previous one, so hashing happens in order, but
+	 * alongside the reading of the next buffer.
+	 * 
+	 * @param in     stream to read
+	 * @param out    stream to also write the content to, or <code>null</code>
+	 * @param digest digest
+	 * @param pool   pool to hash on
+	 * @return digest
+	 * @throws IOException on error
+	 */
+	static byte[] digest(InputStream in, OutputStream out, MessageDigest digest, Executor pool) throws IOException {
+		var free = buffers(BUFFERS, BUFFER_SIZE);
+		var tail = CompletableFuture.<Void>completedFuture(null);
+		while (true) {
+			var buf = take(free, tail);
+			var read = in.readNBytes(buf, 0, buf.length);
+			if (read == 0)
+				break;
+			if (out != null)
+				out.write(buf, 0, read);
+			tail = tail.thenRunAsync(() -> {
+				digest.update(buf, 0, read);
+				free.add(buf);
+			}, pool);
+			if (read < buf.length)
+				break;
+		}
+		await(tail);
+		return digest.digest();
+	}
+
+	/**
+	 * Read a stream to the end, hashing each fixed size chunk of its content
+	 * independently and in parallel. Up to <code>parallelism</code> chunks are
+	 * in flight at once, each with its own small ring of buffers no larger than
+	 * {@link #BUFFER_SIZE}, hashed into the digest of its chunk in order, so
+	 * memory use does not depend on the chunk size.
+	 * 
+	 * @param in          stream to read
+	 * @param algorithm   digest algorithm
+	 * @param chunkSize   chunk size
+	 * @param pool        pool to hash on
+	 * @param parallelism maximum number of chunks to hash at once
+	 * @return chunk digests
+	 * @throws IOException on error
+	 */
+	static Vfs2NioChunkedDigest digestChunks(InputStream in, String algorithm, int chunkSize, Executor pool,
+			int parallelism) throws IOException {
+		newDigest(algorithm);
+		var pieceSize = Math.min(chunkSize, BUFFER_SIZE);
+		/* Rings are only made as chunks need them, and are reused once a chunk is hashed */
+		var rings = new ArrayBlockingQueue<BlockingQueue<byte[]>>(parallelism);
+		var ringCount = 0;
+		var failed = new CompletableFuture<Void>();
+		var chunks = new ArrayList<CompletableFuture<byte[]>>();
+		var size = 0l;
+		var eof = false;
+		while (!eof) {
+			var ring = rings.poll();
+			if (ring == null) {
+				if (ringCount < parallelism) {
+					ring = buffers(BUFFERS, pieceSize);
+					ringCount++;
+				} else
+					ring = take(rings, failed);
+			}
+			var free = ring;
+			var md = newDigest(algorithm);
+			var tail = CompletableFuture.<Void>completedFuture(null);
+			var remaining = chunkSize;
+			while (remaining > 0) {
+				var buf = take(free, failed);
+				var want = Math.min(buf.length, remaining);
+				var read = in.readNBytes(buf, 0, want);
+				if (read == 0) {
+					free.add(buf);
+					eof = true;
+					break;
+				}
+				size += read;
+				remaining -= read;
+				tail = tail.thenRunAsync(() -> {
+					try {
+						md.update(buf, 0, read);
+						free.add(buf);
+					} catch (RuntimeException re) {
+						/* Buffers queued behind this one will never be returned */
+						failed.completeExceptionally(re);
+						throw re;
+					}
+				}, pool);
+				if (read < want) {
+					eof = true;
+					break;
+				}
+			}
+			if (remaining < chunkSize) {
+				chunks.add(tail.thenApply(v -> {
+					var hash = md.digest();
+					rings.add(free);
+					return hash;
+				}));
+			} else
+				rings.add(free);
+		}
+		var hashes = new ArrayList<byte[]>(chunks.size());
+		for (var chunk : chunks)
+			hashes.add(await(chunk));
+		return new Vfs2NioChunkedDigest(algorithm, chunkSize, size, hashes);
+	}
+
+	private static BlockingQueue<byte[]> buffers(int count, int size) {
+		var free = new ArrayBlockingQueue<byte[]>(count);
+		for (int i = 0; i < count; i++)
+			free.add(new byte[size]);
+		return free;
+	}
+
+	/*
+	 * Take the next element of a queue filled by tasks on the pool, giving up if
+	 * last fails. The caller may itself be running on the pool (e.g. a sync
+	 * comparing checksums), so block in a way that lets the pool compensate,
+	 * otherwise the tasks that fill the queue might never get to run
+	 */
+	static <T> T take(BlockingQueue<T> free, CompletableFuture<?> last) throws IOException {
+		var blocker = new ForkJoinPool.ManagedBlocker() {
+			T buf;
+
+			@Override
+			public boolean block() throws InterruptedException {
+				if (buf == null)
+					buf = free.poll(100, TimeUnit.MILLISECONDS);
+				return isDone();
+			}
+
+			@Override
+			public boolean isReleasable() {
+				if (buf == null)
+					buf = free.poll();
+				return isDone();
+			}
+
+			private boolean isDone() {
+				/* A buffer will never be returned if hashing failed */
+				return buf != null || last.isCompletedExceptionally();
+			}
+		};
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted.");
+		}
+		if (blocker.buf == null)
+			await(last);
+		return blocker.buf;
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException ce) {
+			var cause = ce.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException("Failed to compute digest.", cause);
+		}
+	}
+}
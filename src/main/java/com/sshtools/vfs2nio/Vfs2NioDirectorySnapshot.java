@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+
+/**
+ * A compact, immutable record of the contents of a directory at a point in
+ * time, used to detect changes by comparing with a later snapshot. Names are
+ * kept sorted, with sizes and modification times in parallel primitive arrays,
+ * so a snapshot costs little more than the names themselves and two snapshots
+ * can be compared in a single pass.
+ */
+final class Vfs2NioDirectorySnapshot {
+
+	interface Listener {
+		void created(String name);
+
+		void deleted(String name);
+
+		void modified(String name);
+	}
+
+	static final Vfs2NioDirectorySnapshot EMPTY = new Vfs2NioDirectorySnapshot(new String[0], new long[0], new long[0]);
+
+	private final String[] names;
+	private final long[] sizes;
+	private final long[] modified;
+
+	private Vfs2NioDirectorySnapshot(String[] names, long[] sizes, long[] modified) {
+		this.names = names;
+		this.sizes = sizes;
+		this.modified = modified;
+	}
+
+	static Vfs2NioDirectorySnapshot of(FileObject[] children) {
+		var sorted = children.clone();
+		Arrays.sort(sorted, Comparator.comparing(c -> c.getName().getBaseName()));
+		var names = new String[sorted.length];
+		var sizes = new long[sorted.length];
+		var modified = new long[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			var child = sorted[i];
+			names[i] = child.getName().getBaseName();
+			try {
+				var content = child.getContent();
+				sizes[i] = child.getType() == FileType.FILE ? content.getSize() : -1;
+				modified[i] = content.getLastModifiedTime();
+			} catch (FileSystemException e) {
+				sizes[i] = -1;
+				modified[i] = 0;
+			}
+		}
+		return new Vfs2NioDirectorySnapshot(names, sizes, modified);
+	}
+
+	int size() {
+		return names.length;
+	}
+
+	/**
+	 * Compare this snapshot with a later one, notifying the listener of every
+	 * difference.
+	 * 
+	 * @param later    later snapshot
+	 * @param listener listener
+	 * @return whether anything changed
+	 */
+	boolean diff(Vfs2NioDirectorySnapshot later, Listener listener) {
+		int i = 0, j = 0;
+		boolean changed = false;
+		while (i < names.length || j < later.names.length) {
+			int c;
+			if (i == names.length)
+				c = 1;
+			else if (j == later.names.length)
+				c = -1;
+			else
+				c = names[i].compareTo(later.names[j]);
+			if (c < 0) {
+				listener.deleted(names[i++]);
+				changed = true;
+			} else if (c > 0) {
+				listener.created(later.names[j++]);
+				changed = true;
+			} else {
+				if (sizes[i] != later.sizes[j] || modified[i] != later.modified[j]) {
+					listener.modified(names[i]);
+					changed = true;
+				}
+				i++;
+				j++;
+			}
+		}
+		return changed;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.Path;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for backend operations, one event type per
+ * {@link Vfs2NioOperation}, named
+ * <code>com.sshtools.vfs2nio.&lt;Operation&gt;</code> and found under the
+ * <strong>vfs2nio</strong> category in JDK Mission Control.
+ * <p>
+ * Events are begun when an operation starts and committed when it finishes, so
+ * their duration is the time the operation took. Nothing at all is done unless
+ * a recording is running.
+ */
+final class Vfs2NioEvents {
+	private static volatile boolean recording;
+
+	static {
+		FlightRecorder.addListener(new Listener());
+	}
+
+	private Vfs2NioEvents() {
+	}
+
+	/**
+	 * Make sure the recorder is being listened to. Will fail with a
+	 * {@link LinkageError} if the <code>jdk.jfr</code> module is not available.
+	 */
+	static void init() {
+	}
+
+	static boolean isRecording() {
+		return recording;
+	}
+
+	/**
+	 * Begin an event for an operation that is starting.
+	 * 
+	 * @param op operation
+	 * @return event to pass to {@link #commit(Object, Path, String, long)}, or
+	 *         <code>null</code> if events of its type are not enabled
+	 */
+	static Object begin(Vfs2NioOperation op) {
+		var event = create(op);
+		if (!event.isEnabled())
+			return null;
+		event.begin();
+		return event;
+	}
+
+	static void commit(Object started, Path path, String scheme, long bytes) {
+		var event = (OperationEvent) started;
+		event.path = path == null ? null : path.toString();
+		event.scheme = scheme;
+		event.bytes = bytes;
+		event.commit();
+	}
+
+	private static OperationEvent create(Vfs2NioOperation op) {
+		switch (op) {
+		case CHECK_ACCESS:
+			return new CheckAccessEvent();
+		case RESOLVE:
+			return new ResolveEvent();
+		case LIST:
+			return new ListEvent();
+		case READ_ATTRIBUTES:
+			return new ReadAttributesEvent();
+		case OPEN:
+			return new OpenEvent();
+		case READ:
+			return new ReadEvent();
+		case WRITE:
+			return new WriteEvent();
+		case COPY:
+			return new CopyEvent();
+		case MOVE:
+			return new MoveEvent();
+		case DELETE:
+			return new DeleteEvent();
+		case CREATE_DIRECTORY:
+			return new CreateDirectoryEvent();
+		default:
+			throw new IllegalArgumentException(op.name());
+		}
+	}
+
+	@Category("vfs2nio")
+	@StackTrace(false)
+	abstract static class OperationEvent extends Event {
+		@Label("Path")
+		String path;
+
+		@Label("Scheme")
+		String scheme;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("com.sshtools.vfs2nio.CheckAccess")
+	@Label("Check Access")
+	static final class CheckAccessEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Resolve")
+	@Label("Resolve")
+	@Description("Resolve a path to a Commons VFS file object")
+	static final class ResolveEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.List")
+	@Label("List Directory")
+	static final class ListEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.ReadAttributes")
+	@Label("Read Attributes")
+	static final class ReadAttributesEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Open")
+	@Label("Open")
+	static final class OpenEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Read")
+	@Label("Read")
+	@Description("A single read from a stream or channel")
+	static final class ReadEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Write")
+	@Label("Write")
+	@Description("A single write to a stream or channel")
+	static final class WriteEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Copy")
+	@Label("Copy")
+	static final class CopyEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Move")
+	@Label("Move")
+	static final class MoveEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.Delete")
+	@Label("Delete")
+	static final class DeleteEvent extends OperationEvent {
+	}
+
+	@Name("com.sshtools.vfs2nio.CreateDirectory")
+	@Label("Create Directory")
+	static final class CreateDirectoryEvent extends OperationEvent {
+	}
+
+	private static final class Listener implements FlightRecorderListener {
+		@Override
+		public void recorderInitialized(FlightRecorder recorder) {
+			update(recorder);
+		}
+
+		@Override
+		public void recordingStateChanged(Recording changed) {
+			update(FlightRecorder.getFlightRecorder());
+		}
+
+		private void update(FlightRecorder recorder) {
+			var running = false;
+			for (var r : recorder.getRecordings()) {
+				if (r.getState() == RecordingState.RUNNING) {
+					running = true;
+					break;
+				}
+			}
+			recording = running;
+		}
+	}
+}
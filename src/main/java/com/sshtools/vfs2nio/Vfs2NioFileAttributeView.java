@@ -18,7 +18,9 @@ package com.sshtools.vfs2nio;
 import java.io.IOException;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileOwnerAttributeView;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -35,6 +37,10 @@ public class Vfs2NioFileAttributeView implements BasicFileAttributeView {
 			return (V) new Vfs2NioFileAttributeView(path, false);
 		if (type == Vfs2NioFileAttributeView.class)
 			return (V) new Vfs2NioFileAttributeView(path, true);
+		if (type == PosixFileAttributeView.class)
+			return (V) new Vfs2NioPosixFileAttributeView(path, true);
+		if (type == FileOwnerAttributeView.class)
+			return (V) new Vfs2NioPosixFileAttributeView(path, false);
 		return null;
 	}
 	static Vfs2NioFileAttributeView get(Vfs2NioPath path, String type) {
@@ -134,9 +140,19 @@ public class Vfs2NioFileAttributeView implements BasicFileAttributeView {
 
 	void setAttribute(String attribute, Object value) throws IOException {
 		try {
-			if (Attribute.valueOf(attribute) == Attribute.lastModifiedTime)
+			switch (Attribute.valueOf(attribute)) {
+			case lastModifiedTime:
 				setTimes((FileTime) value, null, null);
-			return;
+				return;
+			case lastAccessTime:
+				setTimes(null, (FileTime) value, null);
+				return;
+			case creationTime:
+				setTimes(null, null, (FileTime) value);
+				return;
+			default:
+				break;
+			}
 		} catch (IllegalArgumentException x) {
 		}
 		throw new UnsupportedOperationException("'" + attribute + "' is unknown or read-only attribute");
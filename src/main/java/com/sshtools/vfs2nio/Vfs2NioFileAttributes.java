@@ -21,6 +21,7 @@ import java.security.cert.Certificate;
 import java.util.Collections;
 import java.util.Map;
 
+import org.apache.commons.vfs2.FileContent;
 import org.apache.commons.vfs2.FileContentInfo;
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
@@ -28,12 +29,74 @@ import org.apache.commons.vfs2.FileType;
 
 public class Vfs2NioFileAttributes implements BasicFileAttributes {
 	private final FileObject e;
+	private final boolean snapshot;
+	private final FileType type;
+	private final long size;
+	private final long lastModified;
 
 	Vfs2NioFileAttributes(FileObject e) {
 		this.e = e;
+		this.snapshot = false;
+		this.type = null;
+		this.size = 0;
+		this.lastModified = 0;
+	}
+
+	/**
+	 * Constructor for attributes that have already been retrieved, and so will
+	 * not change. The file object may be <code>null</code>, in which case the
+	 * extended <strong>vfs</strong> attributes will not be available.
+	 * 
+	 * @param e            file object (may be null)
+	 * @param type         type
+	 * @param size         size
+	 * @param lastModified last modified time in milliseconds
+	 */
+	Vfs2NioFileAttributes(FileObject e, FileType type, long size, long lastModified) {
+		this.e = e;
+		this.snapshot = true;
+		this.type = type;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * Retrieve the basic attributes of a file object now, rather than each time
+	 * they are asked for.
+	 * 
+	 * @param e file object
+	 * @return attributes
+	 * @throws FileSystemException on error
+	 */
+	static Vfs2NioFileAttributes snapshot(FileObject e) throws FileSystemException {
+		var type = e.getType();
+		var content = type.hasContent() || type.hasChildren() ? e.getContent() : null;
+		return new Vfs2NioFileAttributes(e, type, type.hasContent() ? content.getSize() : 0,
+				content == null ? 0 : lastModified(content));
+	}
+
+	private static long lastModified(FileContent content) {
+		try {
+			return content.getLastModifiedTime();
+		} catch (FileSystemException fse) {
+			/* Some providers have no time for synthetic folders, such as the root of an archive */
+			return 0;
+		}
+	}
+
+	/**
+	 * Get whether these attributes were retrieved at a point in time, and so
+	 * will not reflect later changes to the file.
+	 * 
+	 * @return snapshot
+	 */
+	public boolean isSnapshot() {
+		return snapshot;
 	}
 
 	public Map<String, Object> attributes() {
+		if (e == null)
+			return Collections.emptyMap();
 		try {
 			return e.getContent().getAttributes();
 		} catch (FileSystemException e) {
@@ -42,6 +105,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 	}
 
 	public Certificate[] certificates() {
+		if (e == null)
+			return null;
 		try {
 			return e.getContent().getCertificates();
 		} catch (FileSystemException e) {
@@ -50,6 +115,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 	}
 
 	public String contentEncoding() {
+		if (e == null)
+			return null;
 		try {
 			FileContentInfo info = e.getContent().getContentInfo();
 			if (info != null)
@@ -60,6 +127,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 	}
 
 	public String contentType() {
+		if (e == null)
+			return null;
 		try {
 			FileContentInfo info = e.getContent().getContentInfo();
 			if (info != null)
@@ -85,6 +154,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 
 	@Override
 	public boolean isDirectory() {
+		if (snapshot)
+			return type == FileType.FILE_OR_FOLDER || type == FileType.FOLDER;
 		try {
 			return e.getType() == FileType.FILE_OR_FOLDER || e.getType() == FileType.FOLDER;
 		} catch (FileSystemException e) {
@@ -99,6 +170,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 
 	@Override
 	public boolean isRegularFile() {
+		if (snapshot)
+			return type == FileType.FILE;
 		try {
 			return e.getType() == FileType.FILE;
 		} catch (FileSystemException e) {
@@ -108,6 +181,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 
 	@Override
 	public boolean isSymbolicLink() {
+		if (e == null)
+			return false;
 		try {
             return e.isSymbolicLink();
         } catch (FileSystemException e) {
@@ -126,6 +201,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 
 	@Override
 	public FileTime lastModifiedTime() {
+		if (snapshot)
+			return FileTime.fromMillis(lastModified);
 		try {
 			return FileTime.fromMillis(e.getContent().getLastModifiedTime());
 		} catch (FileSystemException e) {
@@ -135,6 +212,8 @@ public class Vfs2NioFileAttributes implements BasicFileAttributes {
 
 	@Override
 	public long size() {
+		if (snapshot)
+			return size;
 		try {
 			return e.getContent().getSize();
 		} catch (FileSystemException e) {
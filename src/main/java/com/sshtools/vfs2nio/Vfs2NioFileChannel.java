@@ -0,0 +1,513 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.vfs2.RandomAccessContent;
+
+/**
+ * A {@link FileChannel} on top of Commons VFS {@link RandomAccessContent}.
+ * File locks are emulated by the file system's {@link Vfs2NioLockTable}.
+ * <p>
+ * The channel keeps track of its own position, and holds on to the stream
+ * returned by {@link RandomAccessContent#getInputStream()} for as long as reads
+ * are sequential, only seeking (and so acquiring a new stream) when the
+ * position actually changes. Depending on the backend, getting a new stream
+ * may be expensive or throw away buffered data.
+ */
+class Vfs2NioFileChannel extends FileChannel {
+	private final Vfs2NioFileSystem fs;
+	private final Vfs2NioPath path;
+	private final RandomAccessContent rac;
+	private final boolean writable;
+	private final boolean append;
+
+	/* Where the next read or write will happen */
+	private long position;
+	/* The stream being read from, and the position it is at */
+	private InputStream in;
+	private long inPosition = -1;
+	/* The position of the file pointer of the content if known, or -1 */
+	private long racPosition;
+	/*
+	 * When space has been preallocated, the size of the file as far as the user
+	 * is concerned, otherwise -1
+	 */
+	private long logicalSize = -1;
+	private byte[] buffer;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param fs          file system
+	 * @param path        path
+	 * @param rac         content
+	 * @param writable    whether the channel was opened for writing
+	 * @param append      whether all writes should go to the end of the file
+	 * @param preallocate size to reserve up front, or -1
+	 * @throws IOException on error
+	 */
+	Vfs2NioFileChannel(Vfs2NioFileSystem fs, Vfs2NioPath path, RandomAccessContent rac, boolean writable,
+			boolean append, long preallocate) throws IOException {
+		this.fs = fs;
+		this.path = path;
+		this.rac = rac;
+		this.writable = writable;
+		this.append = append;
+		this.racPosition = rac.getFilePointer();
+		this.position = racPosition;
+		if (writable && preallocate > 0) {
+			var length = rac.length();
+			if (length < preallocate) {
+				rac.setLength(preallocate);
+				logicalSize = length;
+				racPosition = -1;
+			}
+		}
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		var start = fs.begin(Vfs2NioOperation.READ, path);
+		var r = 0;
+		try {
+			r = readAt(dst);
+			return r;
+		} finally {
+			fs.end(Vfs2NioOperation.READ, path, start, Math.max(0, r));
+		}
+	}
+
+	@Override
+	public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		ensureOpen();
+		var start = fs.begin(Vfs2NioOperation.READ, path);
+		var t = 0l;
+		try {
+			for (int i = offset; i < offset + length; i++) {
+				if (!dsts[i].hasRemaining())
+					continue;
+				var r = readAt(dsts[i]);
+				if (r == -1)
+					return t == 0 ? -1 : t;
+				t += r;
+				if (dsts[i].hasRemaining())
+					break;
+			}
+			return t;
+		} finally {
+			fs.end(Vfs2NioOperation.READ, path, start, t);
+		}
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		var start = fs.begin(Vfs2NioOperation.WRITE, path);
+		var w = 0;
+		try {
+			w = writeAt(src);
+			return w;
+		} finally {
+			fs.end(Vfs2NioOperation.WRITE, path, start, w);
+		}
+	}
+
+	@Override
+	public synchronized long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		ensureOpen();
+		var start = fs.begin(Vfs2NioOperation.WRITE, path);
+		var t = 0l;
+		try {
+			for (int i = offset; i < offset + length; i++)
+				t += writeAt(srcs[i]);
+			return t;
+		} finally {
+			fs.end(Vfs2NioOperation.WRITE, path, start, t);
+		}
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized FileChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException();
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public synchronized long size() throws IOException {
+		ensureOpen();
+		return logicalSize == -1 ? rac.length() : logicalSize;
+	}
+
+	@Override
+	public synchronized FileChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0)
+			throw new IllegalArgumentException("Negative size");
+		if (!writable)
+			throw new NonWritableChannelException();
+		if (size < size()) {
+			var start = fs.begin(Vfs2NioOperation.WRITE, path);
+			try {
+				rac.setLength(size);
+			} finally {
+				fs.end(Vfs2NioOperation.WRITE, path, start, 0);
+			}
+			if (logicalSize != -1)
+				logicalSize = size;
+			in = null;
+			racPosition = -1;
+		}
+		if (position > size)
+			position = size;
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		// Noop?
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException();
+		ensureOpen();
+		return transfer(count, (bb, off) -> read(bb, position + off), (bb, off) -> target.write(bb), true);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		if (position < 0 || count < 0)
+			throw new IllegalArgumentException();
+		ensureOpen();
+		if (!writable)
+			throw new NonWritableChannelException();
+		return transfer(count, (bb, off) -> src.read(bb), (bb, off) -> write(bb, position + off), false);
+	}
+
+	@FunctionalInterface
+	private interface Transfer {
+		int transfer(ByteBuffer buf, long offset) throws IOException;
+	}
+
+	/*
+	 * Copy up to count bytes through pooled direct buffers. Anything larger than
+	 * a single buffer is pipelined, with one thread from the file system pool
+	 * reading ahead into one buffer while the calling thread writes out the other,
+	 * so a slow backend and a slow socket overlap rather than add up.
+	 * 
+	 * If writing fails part way, the count so far is returned only when the
+	 * source can be read again from there (reread). Otherwise the bytes already
+	 * read but not written would be silently lost, so the failure is thrown.
+	 */
+	private long transfer(long count, Transfer reader, Transfer writer, boolean reread) throws IOException {
+		if (count == 0)
+			return 0;
+		if (count <= Vfs2NioBufferPool.BUFFER_SIZE) {
+			var bb = Vfs2NioBufferPool.acquire();
+			try {
+				bb.limit((int) count);
+				var nr = reader.transfer(bb, 0);
+				if (nr <= 0)
+					return 0;
+				bb.flip();
+				long tw = 0;
+				try {
+					while (bb.hasRemaining()) {
+						var nw = writer.transfer(bb, tw);
+						if (nw <= 0)
+							break;
+						tw += nw;
+					}
+					return tw;
+				} catch (IOException ioe) {
+					if (tw > 0 && reread)
+						return tw;
+					throw ioe;
+				}
+			} finally {
+				Vfs2NioBufferPool.release(bb);
+			}
+		}
+		return pipeline(count, reader, writer, reread);
+	}
+
+	private long pipeline(long count, Transfer reader, Transfer writer, boolean reread) throws IOException {
+		var buffers = new ByteBuffer[] { Vfs2NioBufferPool.acquire(), Vfs2NioBufferPool.acquire() };
+		var free = new ArrayBlockingQueue<ByteBuffer>(buffers.length);
+		/* Room for every buffer plus the end marker, so the reader never blocks here */
+		var full = new ArrayBlockingQueue<Object>(buffers.length + 1);
+		var stop = new AtomicBoolean();
+		free.addAll(Arrays.asList(buffers));
+
+		var readAhead = CompletableFuture.runAsync(() -> {
+			var off = 0l;
+			Object end = Boolean.TRUE;
+			try {
+				while (off < count) {
+					var bb = free.take();
+					if (stop.get()) {
+						free.add(bb);
+						break;
+					}
+					bb.clear();
+					bb.limit((int) Math.min(bb.capacity(), count - off));
+					var nr = reader.transfer(bb, off);
+					if (nr <= 0) {
+						free.add(bb);
+						break;
+					}
+					bb.flip();
+					off += nr;
+					full.add(bb);
+				}
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				end = new InterruptedIOException();
+			} catch (Throwable e) {
+				end = e;
+			}
+			full.add(end);
+		}, fs.getPool());
+
+		var tw = 0l;
+		ByteBuffer held = null;
+		try {
+			while (true) {
+				Object next;
+				try {
+					next = Vfs2NioDigester.take(full, readAhead);
+				} catch (InterruptedIOException iioe) {
+					if (tw > 0)
+						return tw;
+					throw iioe;
+				}
+				if (next instanceof IOException) {
+					/* Everything read before the failure has been written */
+					if (tw > 0)
+						return tw;
+					throw (IOException) next;
+				} else if (next instanceof RuntimeException)
+					throw (RuntimeException) next;
+				else if (next instanceof Error)
+					throw (Error) next;
+				else if (!(next instanceof ByteBuffer))
+					break;
+				held = (ByteBuffer) next;
+				while (held.hasRemaining()) {
+					int nw;
+					try {
+						nw = writer.transfer(held, tw);
+					} catch (IOException ioe) {
+						if (tw > 0 && reread)
+							return tw;
+						throw ioe;
+					}
+					if (nw <= 0) {
+						/* Non-blocking target is full, so stop here */
+						return tw;
+					}
+					tw += nw;
+				}
+				free.add(held);
+				held = null;
+			}
+			return tw;
+		} finally {
+			stop.set(true);
+			/* Wake the reader if it is waiting on the buffer we still hold */
+			if (held != null)
+				free.add(held);
+			readAhead.join();
+			for (var bb : buffers)
+				Vfs2NioBufferPool.release(bb);
+		}
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst, long position) throws IOException {
+		if (position < 0)
+			throw new IllegalArgumentException();
+		/* Positional reads do not change the channel's position */
+		var was = this.position;
+		this.position = position;
+		try {
+			return read(dst);
+		} finally {
+			this.position = was;
+		}
+	}
+
+	@Override
+	public synchronized int write(ByteBuffer src, long position) throws IOException {
+		if (position < 0)
+			throw new IllegalArgumentException();
+		var was = this.position;
+		this.position = position;
+		try {
+			return write(src);
+		} finally {
+			this.position = was;
+		}
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		if (!shared && !writable)
+			throw new NonWritableChannelException();
+		return fs.getLocks().lock(this, path, position, size, shared, true);
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		ensureOpen();
+		if (!shared && !writable)
+			throw new NonWritableChannelException();
+		return fs.getLocks().lock(this, path, position, size, shared, false);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		try {
+			/* Give back any preallocated space that was not used */
+			if (logicalSize != -1 && rac.length() > logicalSize)
+				rac.setLength(logicalSize);
+		} finally {
+			try {
+				rac.close();
+			} finally {
+				try {
+					fs.getLocks().release(this, path);
+				} finally {
+					fs.untrack(this);
+				}
+			}
+		}
+	}
+
+	private int readAt(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		var max = dst.remaining();
+		if (logicalSize != -1) {
+			/* Don't read into space that is only preallocated */
+			if (position >= logicalSize)
+				return -1;
+			max = (int) Math.min(max, logicalSize - position);
+		}
+		if (in == null || inPosition != position) {
+			/* Only seek, and so get a new stream, when not reading sequentially */
+			if (racPosition != position)
+				rac.seek(position);
+			in = rac.getInputStream();
+			inPosition = position;
+		}
+		/* Reading moves the file pointer of most, but not all, implementations */
+		racPosition = -1;
+		int r;
+		if (dst.hasArray()) {
+			r = in.read(dst.array(), dst.arrayOffset() + dst.position(), max);
+			if (r > 0)
+				dst.position(dst.position() + r);
+		} else {
+			var arr = buffer(max);
+			r = in.read(arr, 0, Math.min(arr.length, max));
+			if (r > 0)
+				dst.put(arr, 0, r);
+		}
+		if (r > 0) {
+			position += r;
+			inPosition = position;
+		}
+		return r;
+	}
+
+	private int writeAt(ByteBuffer src) throws IOException {
+		if (!writable)
+			throw new NonWritableChannelException();
+		var n = src.remaining();
+		if (n == 0)
+			return 0;
+		if (append)
+			position = size();
+		if (racPosition != position)
+			rac.seek(position);
+		if (src.hasArray()) {
+			rac.write(src.array(), src.arrayOffset() + src.position(), n);
+			src.position(src.limit());
+		} else {
+			var arr = buffer(n);
+			var w = 0;
+			while (w < n) {
+				var c = Math.min(arr.length, n - w);
+				src.get(arr, 0, c);
+				rac.write(arr, 0, c);
+				w += c;
+			}
+		}
+		position += n;
+		racPosition = position;
+		if (logicalSize != -1 && position > logicalSize)
+			logicalSize = position;
+		/* Any stream being read from is now stale */
+		in = null;
+		return n;
+	}
+
+	private byte[] buffer(int size) {
+		var sz = Math.min(size, 65536);
+		if (buffer == null || buffer.length < sz)
+			buffer = new byte[sz];
+		return buffer;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (!isOpen())
+			throw new ClosedChannelException();
+	}
+}
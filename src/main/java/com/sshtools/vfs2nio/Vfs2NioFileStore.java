@@ -19,37 +19,15 @@ import java.io.IOException;
 import java.nio.file.FileStore;
 import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.FileOwnerAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
 
 public class Vfs2NioFileStore extends FileStore {
-	private static class CVFS2NioFSFileStoreAttributes {
-		Vfs2NioFileStore fstore;
-
-		public CVFS2NioFSFileStoreAttributes(Vfs2NioFileStore fstore) throws IOException {
-			this.fstore = fstore;
-		}
-
-		public long totalSpace() {
-			return fstore.fs.getTotalSpace();
-		}
-
-		public long unallocatedSpace() throws IOException {
-			if (!fstore.isReadOnly())
-				return fstore.fs.getUnallocatedSpace();
-			return 0;
-		}
-
-		public long usableSpace() throws IOException {
-			if (!fstore.isReadOnly())
-				return fstore.fs.getUsableSpace();
-			return 0;
-		}
-	}
-
 	private final Vfs2NioFileSystem fs;
 
-	Vfs2NioFileStore(Vfs2NioPath zpath) {
-		this.fs = zpath.getFileSystem();
+	Vfs2NioFileStore(Vfs2NioFileSystem fs) {
+		this.fs = fs;
 	}
 
 	@Override
@@ -72,17 +50,17 @@ public class Vfs2NioFileStore extends FileStore {
 
 	@Override
 	public long getTotalSpace() throws IOException {
-		return new CVFS2NioFSFileStoreAttributes(this).totalSpace();
+		return fs.getTotalSpace();
 	}
 
 	@Override
 	public long getUnallocatedSpace() throws IOException {
-		return new CVFS2NioFSFileStoreAttributes(this).unallocatedSpace();
+		return isReadOnly() ? 0 : fs.getUnallocatedSpace();
 	}
 
 	@Override
 	public long getUsableSpace() throws IOException {
-		return new CVFS2NioFSFileStoreAttributes(this).usableSpace();
+		return isReadOnly() ? 0 : fs.getUsableSpace();
 	}
 
 	@Override
@@ -97,12 +75,13 @@ public class Vfs2NioFileStore extends FileStore {
 
 	@Override
 	public boolean supportsFileAttributeView(Class<? extends FileAttributeView> type) {
-		return (type == BasicFileAttributeView.class || type == Vfs2NioFileAttributeView.class);
+		return (type == BasicFileAttributeView.class || type == Vfs2NioFileAttributeView.class
+				|| type == PosixFileAttributeView.class || type == FileOwnerAttributeView.class);
 	}
 
 	@Override
 	public boolean supportsFileAttributeView(String name) {
-		return name.equals("basic") || name.equals("vfs");
+		return fs.supportedFileAttributeViews().contains(name);
 	}
 
 	@Override
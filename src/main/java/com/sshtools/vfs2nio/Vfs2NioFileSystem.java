@@ -15,47 +15,390 @@
  */
 package com.sshtools.vfs2nio;
 
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedFileSystemException;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemManager;
+import org.apache.commons.vfs2.FileSystemOptions;
 import org.apache.nio.BaseFileSystem;
 import org.apache.nio.ImmutableList;
 
 public class Vfs2NioFileSystem extends BaseFileSystem<Vfs2NioPath, Vfs2NioFileSystemProvider> {
 	private static final Set<String> supportedFileAttributeViews = Collections
-			.unmodifiableSet(new HashSet<String>(Arrays.asList("basic", "vfs")));
-	private boolean open = true;
-	private FileObject root;
+			.unmodifiableSet(new HashSet<String>(Arrays.asList("basic", "vfs", "posix", "owner")));
 
-	private URI uri;
+	private static final boolean JFR = jfrAvailable();
+
+	private static ScheduledExecutorService idleMonitor;
+
+	private volatile boolean open = true;
+	private volatile FileObject root;
+	private volatile long lastUsed = System.currentTimeMillis();
+
+	private final URI uri;
+	private final FileSystemManager manager;
+	private final String rootUri;
+	private final FileSystemOptions options;
+	private final long idleTimeout;
+	private final Vfs2NioMetrics metrics;
+	private final Vfs2NioOperationListener[] listeners;
+	private final long watchInterval;
+	private final long watchMaxInterval;
+	private final int parallelism;
+	private final Vfs2NioBatchDelete batchDelete;
+	private final boolean serveFromIndex;
+	private final Path indexFile;
+	private volatile Vfs2NioMetadataIndex index;
+	private final AtomicReference<CompletableFuture<Vfs2NioMetadataIndex>> indexBuild = new AtomicReference<>();
+	private final Vfs2NioNegativeCache negativeCache;
+	private final Vfs2NioHedge hedge;
+	private final Path archivePath;
+	private final Path archiveIndexFile;
+	private volatile Vfs2NioArchiveIndex archiveIndex;
+	private final AtomicReference<CompletableFuture<Vfs2NioArchiveIndex>> archiveIndexBuild = new AtomicReference<>();
+	private volatile boolean archiveIndexFailed;
+	private final Vfs2NioSpaceCache space;
+	private final Vfs2NioFileStore store;
+	private final Vfs2NioLockTable locks;
+	private ForkJoinPool pool;
+	private final int flowThreads;
+	private ThreadPoolExecutor flowExecutor;
+	private final Set<Closeable> resources = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<Flight, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicInteger busy = new AtomicInteger();
+	private ScheduledFuture<?> idleTask;
 
 	public Vfs2NioFileSystem(Vfs2NioFileSystemProvider provider, FileObject root, URI uri) throws FileSystemException {
-		super(provider);
+		this(provider, root.getFileSystem().getFileSystemManager(), root, uri, Collections.emptyMap());
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param provider    provider
+	 * @param manager     the manager that resolved the root, and that is used to
+	 *                    release and re-create the backend file system
+	 * @param root        root
+	 * @param uri         uri
+	 * @param env         environment passed to
+	 *                    {@link Vfs2NioFileSystemProvider#newFileSystem(URI, Map)}
+	 * @throws FileSystemException on error
+	 */
+	public Vfs2NioFileSystem(Vfs2NioFileSystemProvider provider, FileSystemManager manager, FileObject root, URI uri,
+			Map<String, ?> env) throws FileSystemException {
+		this(provider, manager, root.getName().getURI(), root.getFileSystem().getFileSystemOptions(), uri, env);
 		this.root = root;
+	}
+
+	/**
+	 * Constructor for a file system whose root is not resolved until it is first
+	 * needed.
+	 *
+	 * @param provider provider
+	 * @param manager  manager to resolve the root with
+	 * @param rootUri  URI of root
+	 * @param options  options to resolve the root with
+	 * @param uri      uri
+	 * @param env      environment passed to
+	 *                 {@link Vfs2NioFileSystemProvider#newFileSystem(URI, Map)}
+	 */
+	Vfs2NioFileSystem(Vfs2NioFileSystemProvider provider, FileSystemManager manager, String rootUri,
+			FileSystemOptions options, URI uri, Map<String, ?> env) {
+		super(provider);
 		this.uri = uri;
+		this.manager = manager;
+		this.rootUri = rootUri;
+		this.options = options;
+		this.idleTimeout = Vfs2NioFileSystemProvider.toMillis(env.get(Vfs2NioFileSystemProvider.IDLE_TIMEOUT));
+		if (Vfs2NioFileSystemProvider.toBoolean(env.get(Vfs2NioFileSystemProvider.METRICS))) {
+			metrics = new Vfs2NioMetrics(uri.getScheme());
+			metrics.register(uri);
+		} else
+			metrics = null;
+		listeners = toListeners(env.get(Vfs2NioFileSystemProvider.LISTENERS));
+		var watchInterval = Vfs2NioFileSystemProvider.toMillis(env.get(Vfs2NioFileSystemProvider.WATCH_INTERVAL));
+		this.watchInterval = watchInterval < 1 ? 2000 : watchInterval;
+		var watchMaxInterval = Vfs2NioFileSystemProvider
+				.toMillis(env.get(Vfs2NioFileSystemProvider.WATCH_MAX_INTERVAL));
+		this.watchMaxInterval = Math.max(this.watchInterval, watchMaxInterval < 1 ? 60000 : watchMaxInterval);
+		var parallelism = env.get(Vfs2NioFileSystemProvider.PARALLELISM);
+		this.parallelism = parallelism == null ? 8 : Integer.parseInt(parallelism.toString());
+		var flowThreads = env.get(Vfs2NioFileSystemProvider.FLOW_THREADS);
+		this.flowThreads = flowThreads == null ? 4 : Integer.parseInt(flowThreads.toString());
+		batchDelete = (Vfs2NioBatchDelete) env.get(Vfs2NioFileSystemProvider.BATCH_DELETE);
+		this.serveFromIndex = Vfs2NioFileSystemProvider.toBoolean(env.get(Vfs2NioFileSystemProvider.INDEX));
+		var negativeCacheTtl = Vfs2NioFileSystemProvider
+				.toMillis(env.get(Vfs2NioFileSystemProvider.NEGATIVE_CACHE_TTL));
+		var negativeCacheSize = env.get(Vfs2NioFileSystemProvider.NEGATIVE_CACHE_SIZE);
+		negativeCache = negativeCacheTtl < 1 ? null
+				: new Vfs2NioNegativeCache(negativeCacheTtl,
+						negativeCacheSize == null ? 10000 : Integer.parseInt(negativeCacheSize.toString()));
+		var hedgePercentile = env.get(Vfs2NioFileSystemProvider.HEDGE_PERCENTILE);
+		var hedgeBudget = env.get(Vfs2NioFileSystemProvider.HEDGE_BUDGET);
+		var percentile = hedgePercentile == null ? 0 : Double.parseDouble(hedgePercentile.toString());
+		hedge = percentile <= 0 ? null
+				: new Vfs2NioHedge(percentile,
+						hedgeBudget == null ? 0.05 : Double.parseDouble(hedgeBudget.toString()), metrics);
+		var archivePath = Vfs2NioFileSystemProvider.toBoolean(env.get(Vfs2NioFileSystemProvider.ARCHIVE_INDEX))
+				? toArchivePath(rootUri)
+				: null;
+		if (archivePath == null) {
+			this.archivePath = null;
+			this.archiveIndexFile = null;
+		} else {
+			this.archivePath = archivePath;
+			var dir = env.get(Vfs2NioFileSystemProvider.ARCHIVE_INDEX_DIRECTORY);
+			var name = archivePath.getFileName().toString();
+			/* Only kept between mounts if asked to, nothing is written next to the archive */
+			this.archiveIndexFile = dir == null ? null
+					: (dir instanceof Path ? (Path) dir : Paths.get(dir.toString())).resolve(name + "-"
+							+ Integer.toHexString(archivePath.toAbsolutePath().toString().hashCode()) + ".vfsindex");
+		}
+		var spaceTtl = env.get(Vfs2NioFileSystemProvider.SPACE_TTL);
+		space = new Vfs2NioSpaceCache(this::getRoot, (Vfs2NioSpace) env.get(Vfs2NioFileSystemProvider.SPACE),
+				spaceTtl == null ? 10000 : Vfs2NioFileSystemProvider.toMillis(spaceTtl));
+		store = new Vfs2NioFileStore(this);
+		locks = new Vfs2NioLockTable(Vfs2NioFileSystemProvider.toBoolean(env.get(Vfs2NioFileSystemProvider.LOCK_FILES)),
+				Vfs2NioFileSystemProvider.toMillis(env.get(Vfs2NioFileSystemProvider.LOCK_FILE_TIMEOUT)));
+		var indexFile = env.get(Vfs2NioFileSystemProvider.INDEX_FILE);
+		this.indexFile = indexFile == null ? null
+				: (indexFile instanceof Path ? (Path) indexFile : Paths.get(indexFile.toString()));
+		if (idleTimeout > 0) {
+			long period = Math.max(100, idleTimeout / 4);
+			idleTask = getIdleMonitor().scheduleWithFixedDelay(this::checkIdle, period, period, TimeUnit.MILLISECONDS);
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (!open)
-			throw new IOException("Not open");
-		open = false;
-		provider().removeFileSystem(uri);
+		synchronized (this) {
+			if (!open)
+				throw new IOException("Not open");
+			open = false;
+			if (idleTask != null)
+				idleTask.cancel(false);
+		}
+		IOException ioe = null;
+		for (var resource : new ArrayList<>(resources)) {
+			try {
+				resource.close();
+			} catch (IOException e) {
+				if (ioe == null)
+					ioe = e;
+				else
+					ioe.addSuppressed(e);
+			}
+		}
+		resources.clear();
+		if (metrics != null)
+			metrics.unregister();
+		if (index != null && indexFile != null) {
+			try {
+				index.save(indexFile);
+			} catch (IOException e) {
+				if (ioe == null)
+					ioe = e;
+				else
+					ioe.addSuppressed(e);
+			}
+		}
+		synchronized (this) {
+			if (pool != null)
+				pool.shutdownNow();
+			if (flowExecutor != null)
+				flowExecutor.shutdownNow();
+		}
+		try {
+			provider().removeFileSystem(uri);
+		} finally {
+			release();
+		}
+		if (ioe != null)
+			throw ioe;
 	}
 
-	public Vfs2NioFileAttributes getFileAttributes(Vfs2NioPath path) {
-		return new Vfs2NioFileAttributes(pathToFileObject(path));
+	/**
+	 * Get the attributes of a path, or <code>null</code> if it does not exist.
+	 * The attributes are read from the backend once, and concurrent requests for
+	 * the same path share the result.
+	 * 
+	 * @param path path
+	 * @return attributes or <code>null</code>
+	 * @throws IOException on error
+	 */
+	public Vfs2NioFileAttributes getFileAttributes(Vfs2NioPath path) throws IOException {
+		var archive = getArchiveIndex();
+		if (archive != null) {
+			var entry = archive.find(path.toAbsolutePath().normalize().toString());
+			return entry == -1 ? null : archive.getAttributes(entry);
+		}
+		if (serveFromIndex) {
+			var attrs = getIndex().getAttributes(path);
+			if (attrs != null)
+				return attrs;
+		}
+		if (isKnownMissing(path))
+			return null;
+		return coalesce(Vfs2NioOperation.READ_ATTRIBUTES, path, false, () -> {
+			var generation = negativeCache == null ? 0 : negativeCache.generation();
+			var obj = pathToFileObject(path);
+			if (obj.exists())
+				return Vfs2NioFileAttributes.snapshot(obj);
+			missing(path, generation);
+			return null;
+		});
+	}
+
+	/**
+	 * Get the metadata index for this file system, building it if it does not
+	 * yet exist (or loading it if the {@link Vfs2NioFileSystemProvider#INDEX_FILE}
+	 * option was provided and the file exists). The index is only used to answer
+	 * directory listings and attribute reads if the file system was created with
+	 * the {@link Vfs2NioFileSystemProvider#INDEX} option, otherwise it must be
+	 * queried directly.
+	 * 
+	 * @return index
+	 */
+	public Vfs2NioMetadataIndex getIndex() {
+		var idx = index;
+		if (idx != null)
+			return idx;
+		/*
+		 * Only one thread builds the index, and without holding the monitor, as
+		 * the crawl itself needs the root
+		 */
+		var mine = new CompletableFuture<Vfs2NioMetadataIndex>();
+		var flight = indexBuild.compareAndExchange(null, mine);
+		if (flight == null) {
+			try {
+				idx = new Vfs2NioMetadataIndex(this, getRootDirectories().iterator().next());
+				if (indexFile != null && Files.exists(indexFile)) {
+					idx.load(indexFile);
+					idx.refresh();
+				} else
+					idx.build();
+				index = idx;
+				mine.complete(idx);
+				return idx;
+			} catch (IOException ioe) {
+				var e = new Vfs2NioException("Failed to build index.", ioe);
+				mine.completeExceptionally(e);
+				throw e;
+			} catch (RuntimeException | Error e) {
+				mine.completeExceptionally(e);
+				throw e;
+			} finally {
+				/* Let a failed build be tried again */
+				if (index == null)
+					indexBuild.set(null);
+			}
+		}
+		try {
+			return flight.join();
+		} catch (CompletionException ce) {
+			var cause = ce.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw ce;
+		}
+	}
+
+	/**
+	 * Read the basic attributes of many paths at once. Paths are grouped by their
+	 * parent directory, and each group with more than one member is satisfied by
+	 * a single listing of that directory. Groups are fetched in parallel (see
+	 * {@link #getParallelism()}).
+	 * <p>
+	 * The returned attributes are snapshots, so will not reflect later changes.
+	 * Paths that do not exist are not present in the returned map.
+	 * 
+	 * @param paths paths
+	 * @return map of the given paths to their attributes
+	 * @throws IOException on error
+	 */
+	public Map<Path, Vfs2NioFileAttributes> readAttributesBulk(Collection<? extends Path> paths) throws IOException {
+		var groups = new HashMap<Vfs2NioPath, Map<String, List<Path>>>();
+		for (var path : paths) {
+			var vpath = Vfs2NioFileSystemProvider.toVFSPath(path).toAbsolutePath().normalize();
+			if (vpath.getFileSystem() != this)
+				throw new ProviderMismatchException();
+			var parent = vpath.getParent();
+			var name = vpath.getFileName();
+			groups.computeIfAbsent(parent == null ? vpath : parent, k -> new HashMap<>())
+					.computeIfAbsent(name == null ? "" : name.toString(), k -> new ArrayList<>()).add(path);
+		}
+		var results = new ConcurrentHashMap<Path, Vfs2NioFileAttributes>();
+		var tasks = new ArrayList<ForkJoinTask<?>>(groups.size());
+		for (var group : groups.entrySet()) {
+			tasks.add(ForkJoinTask.adapt(() -> {
+				try {
+					readAttributesGroup(group.getKey(), group.getValue(), results);
+				} catch (IOException ioe) {
+					throw new UncheckedIOException(ioe);
+				}
+			}));
+		}
+		invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		return results;
+	}
+
+	/**
+	 * Get the maximum number of backend operations to perform concurrently when
+	 * parallelising a task.
+	 * 
+	 * @return parallelism
+	 */
+	public int getParallelism() {
+		return parallelism;
 	}
 
 	@Override
@@ -69,23 +412,83 @@ public class Vfs2NioFileSystem extends BaseFileSystem<Vfs2NioPath, Vfs2NioFileSy
 	    }
     }
 
-    public FileObject getRoot() {
-		return root;
+	public FileObject getRoot() {
+		lastUsed = System.currentTimeMillis();
+		var fo = root;
+		if (fo == null) {
+			synchronized (this) {
+				if (!open)
+					throw new ClosedFileSystemException();
+				fo = root;
+				if (fo == null) {
+					try {
+						root = fo = manager.resolveFile(rootUri, options);
+					} catch (FileSystemException e) {
+						throw new Vfs2NioException("Failed to reconnect.", e);
+					}
+				}
+			}
+		}
+		return fo;
+	}
+
+	/**
+	 * Get the time in milliseconds of inactivity after which the backend
+	 * connection is released. It will be transparently re-established on next
+	 * use.
+	 * 
+	 * @return idle timeout, or zero if connections are never released
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
 	}
 
-	public long getTotalSpace() {
-		// TODO from FileSystem attributes?
-		return 0;
+	/**
+	 * Get the metrics for this file system.
+	 * 
+	 * @return metrics, or <code>null</code> if the file system was not created
+	 *         with the {@link Vfs2NioFileSystemProvider#METRICS} option
+	 */
+	public Vfs2NioMetrics getMetrics() {
+		return metrics;
 	}
 
-	public long getUnallocatedSpace() {
-		// TODO from FileSystem attributes?
-		return 0;
+	/**
+	 * Get whether there is currently a live connection to the backend.
+	 * 
+	 * @return connected
+	 */
+	public boolean isConnected() {
+		return root != null;
 	}
 
-	public long getUsableSpace() {
-		// TODO from FileSystem attributes?
-		return 0;
+	public long getTotalSpace() throws IOException {
+		return getSpace().getTotal();
+	}
+
+	public long getUnallocatedSpace() throws IOException {
+		return getSpace().getUnallocated();
+	}
+
+	public long getUsableSpace() throws IOException {
+		return getSpace().getUsable();
+	}
+
+	/**
+	 * Get the space on the store this file system is on. This may be up to
+	 * {@link Vfs2NioFileSystemProvider#SPACE_TTL} old, and is refreshed in the
+	 * background once it is.
+	 *
+	 * @return usage
+	 * @throws IOException on error
+	 */
+	public Vfs2NioSpace.Usage getSpace() throws IOException {
+		return space.get();
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return Collections.<FileStore>singleton(store);
 	}
 
 	@Override
@@ -95,16 +498,29 @@ public class Vfs2NioFileSystem extends BaseFileSystem<Vfs2NioPath, Vfs2NioFileSy
 
 	@Override
 	public boolean isReadOnly() {
+		if (archivePath != null && !archiveIndexFailed)
+			return true;
 		try {
-			return !root.isWriteable();
+			return !getRoot().isWriteable();
 		} catch (FileSystemException e) {
 			return true;
 		}
 	}
 
 	public Iterator<Path> iterator(Path path, Filter<? super Path> filter) throws IOException {
-		var obj = pathToFileObject(Vfs2NioFileSystemProvider.toVFSPath(path));
-		var children = obj.getChildren();
+		var archive = getArchiveIndex();
+		if (archive != null) {
+			var entry = archive.find(path.toAbsolutePath().normalize().toString());
+			if (entry == -1)
+				throw new NoSuchFileException(path.toString());
+			return archive.list(entry).stream().map(n -> (Path) getPath("/" + n)).iterator();
+		}
+		if (serveFromIndex) {
+			var indexed = getIndex().getChildren(path);
+			if (indexed != null)
+				return indexed.iterator();
+		}
+		var children = children(Vfs2NioFileSystemProvider.toVFSPath(path), false);
 		return new Iterator<Path>() {
 			int index;
 
@@ -120,22 +536,48 @@ public class Vfs2NioFileSystem extends BaseFileSystem<Vfs2NioPath, Vfs2NioFileSy
 //				return new Vfs2NioPath(Vfs2NioFileSystem.this, croot.toString(),
 //						(f == null ? "" : f.toString() + "/") + children[index++].getName().getBaseName().toString());
 			    
-			    return new Vfs2NioPath(Vfs2NioFileSystem.this, null, children[index++].getName().getPath());
+				return getPath(children[index++].getName().getPath());
 			}
 		};
 	}
 
-	public void setTimes(Vfs2NioPath path, FileTime mtime, FileTime atime, FileTime ctime) {
-		if (atime != null || ctime != null)
-			throw new UnsupportedOperationException();
-		var object = pathToFileObject(path);
+	public void setTimes(Vfs2NioPath path, FileTime mtime, FileTime atime, FileTime ctime) throws IOException {
+		enter();
 		try {
-			object.getContent().setLastModifiedTime(mtime.toMillis());
-		} catch (FileSystemException e) {
-			throw new Vfs2NioException("Failed to set last modified.", e);
+			var object = pathToFileObject(path);
+			var local = Vfs2NioFileSystemProvider.toLocalPath(object);
+			if (local != null) {
+				/* All of the times in one call */
+				Files.getFileAttributeView(local, BasicFileAttributeView.class).setTimes(mtime, atime, ctime);
+			} else {
+				if (atime != null || ctime != null)
+					throw new UnsupportedOperationException();
+				if (mtime == null)
+					return;
+				try {
+					object.getContent().setLastModifiedTime(mtime.toMillis());
+				} catch (FileSystemException e) {
+					throw new Vfs2NioException("Failed to set last modified.", e);
+				}
+			}
+			invalidate(path);
+		} finally {
+			exit();
 		}
 	}
 
+	@Override
+	public WatchService newWatchService() throws IOException {
+		if (!open)
+			throw new ClosedFileSystemException();
+		return track(new Vfs2NioWatchService(this, watchInterval, watchMaxInterval));
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		return Vfs2NioPosixFileAttributeView.LOOKUP;
+	}
+
 	@Override
 	public Set<String> supportedFileAttributeViews() {
 		return supportedFileAttributeViews;
@@ -148,21 +590,589 @@ public class Vfs2NioFileSystem extends BaseFileSystem<Vfs2NioPath, Vfs2NioFileSy
 
 	boolean exists(Vfs2NioPath path) {
 		try {
-			return pathToFileObject(path).exists();
+			return lookupExists(path);
 		} catch (Exception e) {
 			return false;
 		}
 	}
 
+	/**
+	 * Get the index of the archive this file system is mounted on, building it
+	 * if needed, if the {@link Vfs2NioFileSystemProvider#ARCHIVE_INDEX} option
+	 * was set and the root is a zip or tar archive in a local file.
+	 * 
+	 * @return archive index, or <code>null</code> if there is none, or it could
+	 *         not be built
+	 */
+	Vfs2NioArchiveIndex getArchiveIndex() {
+		if (archivePath == null || archiveIndexFailed)
+			return null;
+		var idx = archiveIndex;
+		if (idx != null)
+			return idx;
+		/* Only one thread scans the archive, and without holding the monitor */
+		var mine = new CompletableFuture<Vfs2NioArchiveIndex>();
+		var flight = archiveIndexBuild.compareAndExchange(null, mine);
+		if (flight == null) {
+			try {
+				archiveIndex = idx = Vfs2NioArchiveIndex.open(archivePath, !rootUri.startsWith("tar:"),
+						archiveIndexFile);
+			} catch (IOException | LinkageError e) {
+				/* Not readable as an archive, or no Commons Compress, so leave it to Commons VFS */
+				archiveIndexFailed = true;
+			} catch (RuntimeException re) {
+				/* Let it be tried again */
+				archiveIndexBuild.set(null);
+				mine.completeExceptionally(re);
+				throw re;
+			}
+			mine.complete(idx);
+			return idx;
+		}
+		try {
+			return flight.join();
+		} catch (CompletionException ce) {
+			var cause = ce.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw ce;
+		}
+	}
+
+	/**
+	 * Get the local archive file a root URI such as
+	 * <code>zip:file:///data/big.zip!/</code> is in, if it is the root of a zip,
+	 * jar or uncompressed tar archive in a local file.
+	 * 
+	 * @param rootUri root URI
+	 * @return path of archive or <code>null</code>
+	 */
+	static Path toArchivePath(String rootUri) {
+		var colon = rootUri.indexOf(':');
+		if (colon == -1 || !rootUri.endsWith("!/"))
+			return null;
+		var scheme = rootUri.substring(0, colon);
+		if (!scheme.equals("zip") && !scheme.equals("jar") && !scheme.equals("tar"))
+			return null;
+		var outer = rootUri.substring(colon + 1, rootUri.length() - 2);
+		if (!outer.startsWith("file:") || outer.contains("!/"))
+			return null;
+		try {
+			return Paths.get(URI.create(outer));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the hedging policy for slow opens, if the
+	 * {@link Vfs2NioFileSystemProvider#HEDGE_PERCENTILE} option was set.
+	 * 
+	 * @return hedge or <code>null</code>
+	 */
+	Vfs2NioHedge getHedge() {
+		return hedge;
+	}
+
+	Vfs2NioLockTable getLocks() {
+		return locks;
+	}
+
+	boolean lookupExists(Vfs2NioPath path) throws IOException {
+		var archive = getArchiveIndex();
+		if (archive != null)
+			return archive.find(path.toAbsolutePath().normalize().toString()) != -1;
+		if (isKnownMissing(path))
+			return false;
+		return coalesce(Vfs2NioOperation.CHECK_ACCESS, path, false, () -> {
+			var generation = negativeCache == null ? 0 : negativeCache.generation();
+			if (pathToFileObject(path).exists())
+				return true;
+			missing(path, generation);
+			return false;
+		});
+	}
+
+	/**
+	 * Get whether a path was recently found not to exist, and has not been
+	 * created through this file system since. Always <code>false</code> unless
+	 * the {@link Vfs2NioFileSystemProvider#NEGATIVE_CACHE_TTL} option is set.
+	 * 
+	 * @param path path
+	 * @return known to be missing
+	 */
+	boolean isKnownMissing(Path path) {
+		return negativeCache != null && negativeCache.isMissing(cacheKey(path));
+	}
+
+	private void missing(Path path, long generation) {
+		if (negativeCache != null)
+			negativeCache.missing(cacheKey(path), generation);
+	}
+
+	private static String cacheKey(Path path) {
+		return path.toAbsolutePath().normalize().toString();
+	}
+
 	FileStore getFileStore(Vfs2NioPath path) {
-		return new Vfs2NioFileStore(path);
+		return store;
+	}
+
+	Timing begin(Vfs2NioOperation op, Path path) {
+		/*
+		 * Streams and channels are tracked for as long as they are open, anything
+		 * else keeps the backend connected while it runs
+		 */
+		if (op != Vfs2NioOperation.READ && op != Vfs2NioOperation.WRITE)
+			enter();
+		if (listeners.length > 0) {
+			for (var l : listeners)
+				l.operationStarted(op, path);
+		} else if (metrics == null && !isRecording())
+			return null;
+		/* Begin the event now, so its duration covers the operation */
+		return new Timing(System.nanoTime(), isRecording() ? Vfs2NioEvents.begin(op) : null);
+	}
+
+	void end(Vfs2NioOperation op, Path path, Timing timing, long bytes) {
+		if (op != Vfs2NioOperation.READ && op != Vfs2NioOperation.WRITE)
+			exit();
+		if (timing == null)
+			return;
+		if (metrics != null || listeners.length > 0) {
+			var elapsed = System.nanoTime() - timing.start;
+			if (metrics != null)
+				metrics.record(op, elapsed, bytes);
+			for (var l : listeners)
+				l.operationFinished(op, path, bytes, elapsed);
+		}
+		if (timing.event != null)
+			Vfs2NioEvents.commit(timing.event, path, uri.getScheme(), bytes);
+	}
+
+	private static boolean isRecording() {
+		return JFR && Vfs2NioEvents.isRecording();
+	}
+
+	private static boolean jfrAvailable() {
+		try {
+			Vfs2NioEvents.init();
+			return true;
+		} catch (LinkageError e) {
+			/* No jdk.jfr module */
+			return false;
+		}
+	}
+
+	void enter() {
+		busy.incrementAndGet();
+		lastUsed = System.currentTimeMillis();
+	}
+
+	void exit() {
+		lastUsed = System.currentTimeMillis();
+		busy.decrementAndGet();
+	}
+
+	FileObject currentRoot() {
+		return root;
+	}
+
+	InputStream track(InputStream in, Path path) {
+		var tin = new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				var start = begin(Vfs2NioOperation.READ, path);
+				var r = in.read();
+				end(Vfs2NioOperation.READ, path, start, r == -1 ? 0 : 1);
+				return r;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				var start = begin(Vfs2NioOperation.READ, path);
+				var r = in.read(b, off, len);
+				end(Vfs2NioOperation.READ, path, start, r);
+				return r;
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					untrack(this);
+				}
+			}
+		};
+		resources.add(tin);
+		return tin;
+	}
+
+	OutputStream track(OutputStream out, Path path) {
+		var tout = new FilterOutputStream(out) {
+			@Override
+			public void write(int b) throws IOException {
+				var start = begin(Vfs2NioOperation.WRITE, path);
+				out.write(b);
+				end(Vfs2NioOperation.WRITE, path, start, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				var start = begin(Vfs2NioOperation.WRITE, path);
+				out.write(b, off, len);
+				end(Vfs2NioOperation.WRITE, path, start, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					untrack(this);
+				}
+			}
+		};
+		resources.add(tout);
+		return tout;
+	}
+
+	<C extends Closeable> C track(C resource) {
+		resources.add(resource);
+		return resource;
+	}
+
+	void untrack(Closeable resource) {
+		resources.remove(resource);
+		lastUsed = System.currentTimeMillis();
+	}
+
+	Vfs2NioBatchDelete getBatchDelete() {
+		return batchDelete;
+	}
+
+	/**
+	 * Get a {@link Flow.Publisher} of the content of a file. The file is opened
+	 * and read on this file system's own executor (see
+	 * {@link Vfs2NioFileSystemProvider#FLOW_THREADS}), and only as fast as the
+	 * subscriber requests buffers. Buffers are pooled, so are only valid until
+	 * {@link Flow.Subscriber#onNext(Object)} returns. Each subscriber reads the
+	 * file separately.
+	 *
+	 * @param path path
+	 * @return publisher
+	 */
+	public Flow.Publisher<ByteBuffer> newContentPublisher(Path path) {
+		return Vfs2NioFlow.content(getFlowExecutor(), checkPath(path));
+	}
+
+	/**
+	 * Get a {@link Flow.Publisher} of the paths in a directory, listed on this
+	 * file system's own executor.
+	 *
+	 * @param dir directory
+	 * @return publisher
+	 */
+	public Flow.Publisher<Path> newDirectoryPublisher(Path dir) {
+		return Vfs2NioFlow.directory(getFlowExecutor(), checkPath(dir));
+	}
+
+	/**
+	 * Get a {@link Flow.Subscriber} that writes the buffers it receives to a
+	 * file, on this file system's own executor. Buffers are only requested as
+	 * fast as they can be written.
+	 *
+	 * @param path    path
+	 * @param options options to open the file with, by default it is created or
+	 *                truncated
+	 * @return subscriber
+	 */
+	public Vfs2NioContentSubscriber newContentSubscriber(Path path, OpenOption... options) {
+		return new Vfs2NioContentSubscriber(getFlowExecutor(), checkPath(path), options);
+	}
+
+	private Path checkPath(Path path) {
+		if (Vfs2NioFileSystemProvider.toVFSPath(path).getFileSystem() != this)
+			throw new ProviderMismatchException();
+		return path;
+	}
+
+	private synchronized ThreadPoolExecutor getFlowExecutor() {
+		if (!open)
+			throw new ClosedFileSystemException();
+		if (flowExecutor == null) {
+			var count = new AtomicInteger();
+			flowExecutor = new ThreadPoolExecutor(flowThreads, flowThreads, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(), r -> {
+						var t = new Thread(r, "Vfs2NioFlow-" + count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+			flowExecutor.allowCoreThreadTimeOut(true);
+		}
+		return flowExecutor;
+	}
+
+	synchronized ForkJoinPool getPool() {
+		if (pool == null)
+			pool = new ForkJoinPool(parallelism);
+		return pool;
+	}
+
+	/**
+	 * Run a task on the pool and wait for it, unwrapping any I/O error it
+	 * failed with.
+	 */
+	<T> T invoke(ForkJoinTask<T> task) throws IOException {
+		try {
+			return getPool().submit(task).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted.", e);
+		} catch (ExecutionException e) {
+			var cause = e.getCause();
+			if (cause instanceof UncheckedIOException)
+				throw ((UncheckedIOException) cause).getCause();
+			else if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException("Task failed.", cause);
+		}
+	}
+
+	void invalidate(Path path) {
+		var idx = index;
+		if (idx != null)
+			idx.invalidate(path);
+		if (negativeCache != null)
+			negativeCache.invalidate(cacheKey(path));
+	}
+
+	private void readAttributesGroup(Vfs2NioPath parent, Map<String, List<Path>> names,
+			Map<Path, Vfs2NioFileAttributes> results) throws IOException {
+		if (names.size() == 1) {
+			/* A single lookup is cheaper than listing the parent */
+			var group = names.entrySet().iterator().next();
+			readAttributesDirect(group.getKey().isEmpty() ? parent : parent.resolve(group.getKey()), group.getValue(),
+					results);
+			return;
+		}
+		/* The root is grouped under itself, and is not one of its own children */
+		var self = names.get("");
+		if (self != null && !readAttributesDirect(parent, self, results))
+			return;
+		FileObject[] children;
+		try {
+			children = children(parent, true);
+		} catch (NoSuchFileException nsfe) {
+			return;
+		}
+		for (var child : children) {
+			var matches = names.get(child.getName().getBaseName());
+			if (matches != null) {
+				var attrs = Vfs2NioFileAttributes.snapshot(child);
+				for (var p : matches)
+					results.put(p, attrs);
+			}
+		}
+	}
+
+	private boolean readAttributesDirect(Vfs2NioPath path, List<Path> paths, Map<Path, Vfs2NioFileAttributes> results)
+			throws IOException {
+		var start = begin(Vfs2NioOperation.READ_ATTRIBUTES, path);
+		try {
+			var obj = pathToFileObject(path);
+			obj.refresh();
+			if (!obj.exists())
+				return false;
+			var attrs = Vfs2NioFileAttributes.snapshot(obj);
+			for (var p : paths)
+				results.put(p, attrs);
+			return true;
+		} finally {
+			end(Vfs2NioOperation.READ_ATTRIBUTES, path, start, 0);
+		}
+	}
+
+	FileObject[] children(Vfs2NioPath path, boolean refresh) throws IOException {
+		return coalesce(Vfs2NioOperation.LIST, path, refresh, () -> {
+			var obj = pathToFileObject(path);
+			var start = begin(Vfs2NioOperation.LIST, path);
+			try {
+				if (refresh) {
+					obj.refresh();
+					if (!obj.exists())
+						throw new NoSuchFileException(path.toString());
+				}
+				return obj.getChildren();
+			} finally {
+				end(Vfs2NioOperation.LIST, path, start, 0);
+			}
+		});
+	}
+
+	/*
+	 * Run a metadata lookup, unless an identical one is already in progress in
+	 * another thread, in which case wait for and share its result instead. Only
+	 * lookups that overlap are shared, nothing is cached once the lookup
+	 * completes. The results must therefore be safe to share, which file objects
+	 * and attribute snapshots are.
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> T coalesce(Vfs2NioOperation op, Vfs2NioPath path, boolean refresh, Lookup<T> lookup)
+			throws IOException {
+		var key = new Flight(op, path.toString(), refresh);
+		var flight = inFlight.get(key);
+		if (flight == null) {
+			var mine = new CompletableFuture<Object>();
+			flight = inFlight.putIfAbsent(key, mine);
+			if (flight == null) {
+				enter();
+				try {
+					var result = lookup.lookup();
+					mine.complete(result);
+					return result;
+				} catch (IOException | RuntimeException | Error e) {
+					mine.completeExceptionally(e);
+					throw e;
+				} finally {
+					inFlight.remove(key, mine);
+					exit();
+				}
+			}
+		}
+		if (metrics != null)
+			metrics.recordCoalesced();
+		try {
+			return (T) flight.join();
+		} catch (CompletionException ce) {
+			var cause = ce.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException("Lookup failed.", cause);
+		}
 	}
 
 	FileObject pathToFileObject(Vfs2NioPath path) {
+		var start = begin(Vfs2NioOperation.RESOLVE, path);
 		try {
-			return root.resolveFile(path.toString());
+			return getRoot().resolveFile(path.toString());
 		} catch (FileSystemException e) {
 			throw new Vfs2NioException("Failed to resolve.", e);
+		} finally {
+			end(Vfs2NioOperation.RESOLVE, path, start, 0);
+		}
+	}
+
+	private void checkIdle() {
+		if (open && root != null && isIdle()) {
+			synchronized (this) {
+				if (isIdle())
+					release();
+			}
+		}
+	}
+
+	private boolean isIdle() {
+		return resources.isEmpty() && busy.get() == 0 && System.currentTimeMillis() - lastUsed >= idleTimeout;
+	}
+
+	private synchronized void release() {
+		var fo = root;
+		if (fo == null)
+			return;
+		root = null;
+		/*
+		 * Anything that started after the idle check may already have the root
+		 */
+		if (busy.get() > 0) {
+			root = fo;
+			return;
+		}
+		var backend = fo.getFileSystem();
+		try {
+			fo.close();
+		} catch (FileSystemException e) {
+		}
+		/*
+		 * Several mounts may share the same Commons VFS file system (e.g. two
+		 * different paths on the same SFTP server), so only close it when nothing
+		 * else is using it
+		 */
+		if (!provider().isBackendInUse(this, backend))
+			manager.closeFileSystem(backend);
+	}
+
+	@FunctionalInterface
+	private interface Lookup<T> {
+		T lookup() throws IOException;
+	}
+
+	/*
+	 * The start of an operation, as given to end(). The event is a Flight
+	 * Recorder event, typed loosely so that jdk.jfr is only needed when recording
+	 */
+	static final class Timing {
+		private final long start;
+		private final Object event;
+
+		Timing(long start, Object event) {
+			this.start = start;
+			this.event = event;
+		}
+	}
+
+	private static final class Flight {
+		private final Vfs2NioOperation op;
+		private final String path;
+		private final boolean refresh;
+
+		Flight(Vfs2NioOperation op, String path, boolean refresh) {
+			this.op = op;
+			this.path = path;
+			this.refresh = refresh;
+		}
+
+		@Override
+		public int hashCode() {
+			return (path.hashCode() * 31 + op.hashCode()) * 31 + (refresh ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Flight))
+				return false;
+			var other = (Flight) obj;
+			return op == other.op && refresh == other.refresh && path.equals(other.path);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Vfs2NioOperationListener[] toListeners(Object val) {
+		if (val == null)
+			return new Vfs2NioOperationListener[0];
+		else if (val instanceof Vfs2NioOperationListener)
+			return new Vfs2NioOperationListener[] { (Vfs2NioOperationListener) val };
+		else if (val instanceof Vfs2NioOperationListener[])
+			return ((Vfs2NioOperationListener[]) val).clone();
+		else
+			return ((Collection<Vfs2NioOperationListener>) val).toArray(new Vfs2NioOperationListener[0]);
+	}
+
+	private static synchronized ScheduledExecutorService getIdleMonitor() {
+		if (idleMonitor == null) {
+			idleMonitor = Executors.newSingleThreadScheduledExecutor(r -> {
+				var t = new Thread(r, "Vfs2NioIdleMonitor");
+				t.setDaemon(true);
+				return t;
+			});
 		}
+		return idleMonitor;
 	}
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemConfigBuilder;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.impl.DefaultFileReplicator;
+import org.apache.commons.vfs2.impl.DefaultFileSystemManager;
+import org.apache.commons.vfs2.impl.PrivilegedFileReplicator;
+import org.apache.commons.vfs2.provider.FileProvider;
+import org.apache.commons.vfs2.provider.url.UrlFileProvider;
+
+/**
+ * A {@link DefaultFileSystemManager} that knows the providers Commons VFS
+ * ships with, but only loads and initialises the provider for a scheme the
+ * first time that scheme is used. {@link org.apache.commons.vfs2.VFS#getManager()}
+ * parses <code>providers.xml</code> and creates every provider it lists
+ * (along with their libraries) before the first file can be resolved, which
+ * is most of the start up time of a short-lived process that only wants a
+ * local or in-memory file.
+ * <p>
+ * Further providers may be added with
+ * {@link #addProvider(String, FileProvider)} as usual.
+ */
+public class Vfs2NioFileSystemManager extends DefaultFileSystemManager {
+
+	private final static Map<String, String[]> PROVIDERS = new HashMap<>();
+	private final static String PKG = "org.apache.commons.vfs2.provider.";
+	private final static String HTTP3 = "org.apache.commons.httpclient.HttpClient";
+	private final static String HTTP4 = "org.apache.http.client.HttpClient";
+	private final static String HTTP5 = "org.apache.hc.client5.http.classic.HttpClient";
+
+	static {
+		/*
+		 * Scheme, provider class, then classes (or "scheme:" for schemes) that must
+		 * be available. Mirrors providers.xml in Commons VFS
+		 */
+		provider("file", "local.DefaultLocalFileProvider");
+		provider("ram", "ram.RamFileProvider");
+		provider("tmp", "temp.TemporaryFileProvider");
+		provider("res", "res.ResourceFileProvider");
+		provider("zip", "zip.ZipFileProvider");
+		provider("gz", "gzip.GzipFileProvider");
+		provider("tar", "tar.TarFileProvider", "org.apache.commons.compress.archivers.tar.TarArchiveOutputStream");
+		provider("bz2", "bzip2.Bzip2FileProvider",
+				"org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream");
+		provider("tgz", "tar.TarFileProvider", "scheme:gz", "scheme:tar");
+		provider("tbz2", "tar.TarFileProvider", "scheme:bz2", "scheme:tar");
+		for (var scheme : new String[] { "jar", "sar", "ear", "par", "ejb3", "war" })
+			provider(scheme, "jar.JarFileProvider");
+		provider("ftp", "ftp.FtpFileProvider", "org.apache.commons.net.ftp.FTPFile");
+		provider("ftps", "ftps.FtpsFileProvider", "org.apache.commons.net.ftp.FTPFile");
+		provider("http", "http.HttpFileProvider", HTTP3);
+		provider("http3", "http.HttpFileProvider", HTTP3);
+		provider("https", "https.HttpsFileProvider", HTTP3);
+		provider("http3s", "https.HttpsFileProvider", HTTP3);
+		provider("http4", "http4.Http4FileProvider", HTTP4);
+		provider("http4s", "http4s.Http4sFileProvider", HTTP4);
+		provider("http5", "http5.Http5FileProvider", HTTP5);
+		provider("http5s", "http5s.Http5sFileProvider", HTTP5);
+		provider("sftp", "sftp.SftpFileProvider", "com.jcraft.jsch.JSch");
+		provider("webdav", "webdav.WebdavFileProvider", HTTP3,
+				"org.apache.jackrabbit.webdav.client.methods.DavMethod", PKG + "webdav.WebdavFileSystem");
+		provider("webdav3", "webdav.WebdavFileProvider", HTTP3,
+				"org.apache.jackrabbit.webdav.client.methods.DavMethod", PKG + "webdav.WebdavFileSystem");
+		provider("webdav4", "webdav4.Webdav4FileProvider", HTTP4,
+				"org.apache.jackrabbit.webdav.client.methods.BaseDavRequest", PKG + "webdav4.Webdav4FileSystem");
+		provider("webdav4s", "webdav4s.Webdav4sFileProvider", HTTP4,
+				"org.apache.jackrabbit.webdav.client.methods.BaseDavRequest", PKG + "webdav4.Webdav4FileSystem");
+		provider("hdfs", "hdfs.HdfsFileProvider", "org.apache.hadoop.fs.FileSystem");
+	}
+
+	private static Vfs2NioFileSystemManager instance;
+
+	private static void provider(String scheme, String className, String... requires) {
+		var def = new String[requires.length + 1];
+		def[0] = PKG + className;
+		System.arraycopy(requires, 0, def, 1, requires.length);
+		PROVIDERS.put(scheme, def);
+	}
+
+	/**
+	 * Get the shared, initialised instance, creating it if necessary.
+	 *
+	 * @return manager
+	 * @throws FileSystemException on error
+	 */
+	public static synchronized Vfs2NioFileSystemManager getInstance() throws FileSystemException {
+		if (instance == null) {
+			var mgr = new Vfs2NioFileSystemManager();
+			mgr.init();
+			instance = mgr;
+		}
+		return instance;
+	}
+
+	private final Map<String, Boolean> available = new HashMap<>();
+
+	@Override
+	public void init() throws FileSystemException {
+		/* Same defaults as StandardFileSystemManager, which 'tmp' and layered file systems need */
+		var replicator = new DefaultFileReplicator();
+		setReplicator(new PrivilegedFileReplicator(replicator));
+		setTemporaryFileStore(replicator);
+		setDefaultProvider(new UrlFileProvider());
+		for (var ext : new String[] { "zip", "tar", "jar", "bz2", "gz", "tgz", "tbz2" })
+			addExtensionMap(ext, ext);
+		addMimeTypeMap("application/zip", "zip");
+		addMimeTypeMap("application/x-tar", "tar");
+		addMimeTypeMap("application/x-gzip", "gz");
+		super.init();
+	}
+
+	@Override
+	public String[] getSchemes() {
+		var schemes = new LinkedHashSet<>(Arrays.asList(super.getSchemes()));
+		schemes.addAll(PROVIDERS.keySet());
+		return schemes.toArray(new String[0]);
+	}
+
+	@Override
+	public boolean hasProvider(String scheme) {
+		return super.hasProvider(scheme) || load(scheme);
+	}
+
+	@Override
+	public FileObject resolveFile(FileObject baseFile, String uri, FileSystemOptions fileSystemOptions)
+			throws FileSystemException {
+		loadAll(uri);
+		return super.resolveFile(baseFile, uri, fileSystemOptions);
+	}
+
+	@Override
+	public FileObject createFileSystem(String scheme, FileObject file) throws FileSystemException {
+		hasProvider(scheme);
+		return super.createFileSystem(scheme, file);
+	}
+
+	@Override
+	public FileSystemConfigBuilder getFileSystemConfigBuilder(String scheme) throws FileSystemException {
+		hasProvider(scheme);
+		return super.getFileSystemConfigBuilder(scheme);
+	}
+
+	private void loadAll(String uri) {
+		/*
+		 * Load the provider for every scheme in a (possibly layered) URI, e.g. both
+		 * 'zip' and 'file' for 'zip:file:///tmp/a.zip!/'. A URI with no known scheme
+		 * is a local file name
+		 */
+		var found = false;
+		var start = 0;
+		for (var i = 0; i < uri.length(); i++) {
+			var ch = uri.charAt(i);
+			if (ch == ':') {
+				if (i > start && hasProvider(uri.substring(start, i)))
+					found = true;
+				start = i + 1;
+			} else if (!Character.isLetterOrDigit(ch) && ch != '+' && ch != '-' && ch != '.')
+				break;
+		}
+		if (!found)
+			hasProvider("file");
+	}
+
+	private synchronized boolean load(String scheme) {
+		if (super.hasProvider(scheme))
+			return true;
+		var ok = available.get(scheme);
+		if (ok != null)
+			return ok;
+		var def = PROVIDERS.get(scheme);
+		ok = false;
+		if (def != null) {
+			try {
+				var loader = DefaultFileSystemManager.class.getClassLoader();
+				ok = true;
+				for (var i = 1; i < def.length && ok; i++) {
+					if (def[i].startsWith("scheme:"))
+						ok = hasProvider(def[i].substring(7));
+					else
+						Class.forName(def[i], false, loader);
+				}
+				if (ok)
+					addProvider(scheme,
+							(FileProvider) Class.forName(def[0], true, loader).getDeclaredConstructor().newInstance());
+			} catch (ReflectiveOperationException | LinkageError | FileSystemException e) {
+				getLogger().debug(String.format("Provider for scheme %s is not available.", scheme), e);
+				ok = false;
+			}
+		}
+		available.put(scheme, ok);
+		return ok;
+	}
+}
@@ -15,19 +15,16 @@
  */
 package com.sshtools.vfs2nio;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
 import java.nio.file.CopyOption;
@@ -38,32 +35,43 @@ import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.ProviderMismatchException;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.spi.FileSystemProvider;
+import java.time.Duration;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.vfs2.AllFileSelector;
+import org.apache.commons.vfs2.Capability;
+import org.apache.commons.vfs2.FileObject;
 import org.apache.commons.vfs2.FileSystemException;
 import org.apache.commons.vfs2.FileSystemManager;
 import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.RandomAccessContent;
 import org.apache.commons.vfs2.UserAuthenticationData;
 import org.apache.commons.vfs2.UserAuthenticationData.Type;
 import org.apache.commons.vfs2.UserAuthenticator;
 import org.apache.commons.vfs2.VFS;
 import org.apache.commons.vfs2.impl.DefaultFileSystemConfigBuilder;
+import org.apache.commons.vfs2.provider.AbstractFileObject;
+import org.apache.commons.vfs2.provider.local.LocalFile;
 import org.apache.commons.vfs2.util.RandomAccessMode;
 
 public class Vfs2NioFileSystemProvider extends FileSystemProvider {
@@ -73,6 +81,145 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
     public final static String USERNAME = "com.sshtools.vfs2nio.username";
     public final static String PASSWORD = "com.sshtools.vfs2nio.password";
     public final static String DOMAIN = "com.sshtools.vfs2nio.domain";
+    /**
+     * Milliseconds of inactivity after which the backend connection is released.
+     * May be a {@link Number}, a {@link Duration} or a {@link String}. The
+     * connection is transparently re-established on next use.
+     */
+    public final static String IDLE_TIMEOUT = "com.sshtools.vfs2nio.idleTimeout";
+    /**
+     * Set to <code>true</code> to collect per-operation counts, latency histograms
+     * and bytes transferred. See {@link Vfs2NioFileSystem#getMetrics()}.
+     */
+    public final static String METRICS = "com.sshtools.vfs2nio.metrics";
+    /**
+     * A {@link Vfs2NioOperationListener}, or an array or {@link java.util.Collection} of
+     * them, to notify before and after every backend interaction.
+     */
+    public final static String LISTENERS = "com.sshtools.vfs2nio.listeners";
+    /**
+     * Milliseconds between polls of a watched directory that has recently changed.
+     * May be a {@link Number}, a {@link Duration} or a {@link String}. Defaults to
+     * 2 seconds.
+     */
+    public final static String WATCH_INTERVAL = "com.sshtools.vfs2nio.watchInterval";
+    /**
+     * The longest time in milliseconds between polls of a watched directory. The
+     * poll interval doubles each time nothing has changed, up to this limit.
+     * Defaults to 60 seconds.
+     */
+    public final static String WATCH_MAX_INTERVAL = "com.sshtools.vfs2nio.watchMaxInterval";
+    /**
+     * The maximum number of backend operations to perform concurrently when a
+     * task such as indexing is parallelised. Defaults to 8.
+     */
+    public final static String PARALLELISM = "com.sshtools.vfs2nio.parallelism";
+    /**
+     * Set to <code>true</code> to answer directory listings and attribute reads
+     * from the {@link Vfs2NioMetadataIndex}, so that {@link java.nio.file.Files#walk(Path, java.nio.file.FileVisitOption...)} and
+     * {@link java.nio.file.Files#find(Path, int, java.util.function.BiPredicate, java.nio.file.FileVisitOption...)} do not
+     * contact the backend. Results will be only as fresh as the index.
+     */
+    public final static String INDEX = "com.sshtools.vfs2nio.index";
+    /**
+     * A local file ({@link Path} or {@link String}) to load the
+     * {@link Vfs2NioMetadataIndex} from when first used, and to save it to when
+     * the file system is closed.
+     */
+    public final static String INDEX_FILE = "com.sshtools.vfs2nio.indexFile";
+    /**
+     * A {@link Vfs2NioBatchDelete} to use when deleting the files in a directory
+     * tree, for backends that can delete many files in one request.
+     */
+    public final static String BATCH_DELETE = "com.sshtools.vfs2nio.batchDelete";
+    /**
+     * Milliseconds to remember that a path does not exist, so that existence
+     * checks and opens for files that are known to be missing do not contact
+     * the backend. May be a {@link Number}, a {@link Duration} or a
+     * {@link String}. Paths are forgotten as soon as they are created, written,
+     * copied or moved to through this provider, but changes made by other
+     * clients will not be seen until the time expires. Defaults to 0, which
+     * disables the cache.
+     */
+    public final static String NEGATIVE_CACHE_TTL = "com.sshtools.vfs2nio.negativeCacheTtl";
+    /**
+     * The maximum number of missing paths to remember when
+     * {@link #NEGATIVE_CACHE_TTL} is set. Defaults to 10000.
+     */
+    public final static String NEGATIVE_CACHE_SIZE = "com.sshtools.vfs2nio.negativeCacheSize";
+    /**
+     * Set to a percentile (e.g. <code>95</code>) to hedge slow opens for reading.
+     * If the backend has not answered within that percentile of recent open
+     * latencies, a second identical request is made and whichever answers first
+     * is used. Only useful for backends where duplicate requests are cheap and
+     * independent, such as HTTP. Defaults to 0, which disables hedging.
+     */
+    public final static String HEDGE_PERCENTILE = "com.sshtools.vfs2nio.hedgePercentile";
+    /**
+     * The most extra requests that hedging may make, as a fraction of all
+     * requests. Defaults to <code>0.05</code>.
+     */
+    public final static String HEDGE_BUDGET = "com.sshtools.vfs2nio.hedgeBudget";
+    /**
+     * Set to <code>true</code> when mounting a zip or uncompressed tar archive in
+     * a local file (e.g. <code>vfs:zip:file:///data/big.zip</code>) to read it
+     * through a {@link Vfs2NioArchiveIndex} rather than Commons VFS. The archive
+     * is not scanned when mounted, and entries are read by seeking straight to
+     * their data. Requires Apache Commons Compress.
+     */
+    public final static String ARCHIVE_INDEX = "com.sshtools.vfs2nio.archiveIndex";
+    /**
+     * A directory ({@link Path} or {@link String}) to keep archive indexes in,
+     * so they are only built again when the archive changes. By default, the
+     * index is only kept in memory.
+     */
+    public final static String ARCHIVE_INDEX_DIRECTORY = "com.sshtools.vfs2nio.archiveIndexDirectory";
+    /**
+     * Set to <code>true</code> to use the shared
+     * {@link Vfs2NioFileSystemManager} rather than
+     * {@link VFS#getManager()} when no {@link #VFS_MANAGER} is given. Only the
+     * providers for the schemes that are actually mounted are loaded, which
+     * makes the first mount much quicker.
+     */
+    public final static String LAZY_MANAGER = "com.sshtools.vfs2nio.lazyManager";
+    /**
+     * A {@link Vfs2NioSpace} to query the total and free space of the backend
+     * with, for {@link FileStore}. Local files and SFTP are supported without
+     * one.
+     */
+    public final static String SPACE = "com.sshtools.vfs2nio.space";
+    /**
+     * Milliseconds that the space reported by {@link FileStore} may be out of
+     * date by. May be a {@link Number}, a {@link Duration} or a {@link String}.
+     * Once expired, the last known space is still returned while it is
+     * refreshed in the background. Defaults to 10 seconds, 0 queries the
+     * backend every time.
+     */
+    public final static String SPACE_TTL = "com.sshtools.vfs2nio.spaceTtl";
+    /**
+     * Set to <code>true</code> to also take an advisory lock file
+     * (<code>name.lock</code>) on the backend while any part of a file is locked
+     * with {@link FileChannel#lock()}, so that other processes using this
+     * provider with the same option stay out. This is advisory, and only
+     * exclusive for local files; elsewhere two processes racing for the lock
+     * file may both get it. Without it, locks only apply within the file
+     * system.
+     */
+    public final static String LOCK_FILES = "com.sshtools.vfs2nio.lockFiles";
+    /**
+     * Milliseconds after which a lock file left by another process is assumed
+     * to be abandoned and is taken over. May be a {@link Number}, a
+     * {@link Duration} or a {@link String}. Defaults to 0, lock files are never
+     * taken over.
+     */
+    public final static String LOCK_FILE_TIMEOUT = "com.sshtools.vfs2nio.lockFileTimeout";
+    /**
+     * The number of threads that the {@link java.util.concurrent.Flow} publishers
+     * and subscribers of a file system (see
+     * {@link Vfs2NioFileSystem#newContentPublisher(Path)}) may use for I/O.
+     * Defaults to 4.
+     */
+    public final static String FLOW_THREADS = "com.sshtools.vfs2nio.flowThreads";
 
     // Checks that the given file is a UnixPath
     static final Vfs2NioPath toVFSPath(Path path) {
@@ -93,7 +240,27 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
     @Override
     public void checkAccess(Path path, AccessMode... modes) throws IOException {
         var p = toVFSPath(path);
-        var fo = p.toFileObject();
+        var fs = p.getFileSystem();
+        var start = fs.begin(Vfs2NioOperation.CHECK_ACCESS, p);
+        try {
+            var archive = fs.getArchiveIndex();
+            if (archive != null) {
+                if (archive.find(p.toAbsolutePath().normalize().toString()) == -1)
+                    throw new NoSuchFileException(path.toString());
+                if (Arrays.asList(modes).contains(AccessMode.WRITE))
+                    throw new AccessDeniedException(String.format("No %s access to %s", AccessMode.WRITE, path));
+            } else if (modes.length == 0) {
+                /* Plain existence checks are shared between concurrent callers */
+                if (!fs.lookupExists(p.normalize()))
+                    throw new NoSuchFileException(path.toString());
+            } else
+                checkAccess(path, p.toFileObject(), modes);
+        } finally {
+            fs.end(Vfs2NioOperation.CHECK_ACCESS, p, start, 0);
+        }
+    }
+
+    private void checkAccess(Path path, FileObject fo, AccessMode... modes) throws IOException {
         for (AccessMode m : modes) {
             switch (m) {
             case EXECUTE:
@@ -119,26 +286,75 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
         /*
          * TODO: Support REPLACE_EXISTING, COPY_ATTRIBUTES, ATOMIC_MOVE if possible
          */
-        toVFSPath(target).toFileObject().copyFrom(toVFSPath(src).toFileObject(), new AllFileSelector());
+        var fs = toVFSPath(target).getFileSystem();
+        fs.enter();
+        var start = fs.begin(Vfs2NioOperation.COPY, src);
+        var bytes = 0l;
+        try {
+            var srcObj = toVFSPath(src).toFileObject();
+            var targetObj = toVFSPath(target).toFileObject();
+            if (Arrays.asList(options).contains(Vfs2NioCopyOption.DELTA) && Vfs2NioDeltaCopy.isSupported(srcObj, targetObj))
+                bytes = Vfs2NioDeltaCopy.copy(toVFSPath(src), srcObj, toVFSPath(target), targetObj,
+                        Vfs2NioDeltaCopy.DEFAULT_BLOCK_SIZE).getBytesWritten();
+            else
+                targetObj.copyFrom(srcObj, new AllFileSelector());
+            fs.invalidate(target);
+        } finally {
+            fs.end(Vfs2NioOperation.COPY, src, start, bytes);
+            fs.exit();
+        }
     }
 
     @Override
     public void createDirectory(Path path, FileAttribute<?>... attrs) throws IOException {
-        /* TODO: Support attributes */
+        var permissions = Vfs2NioPosixFileAttributeView.toCreatePermissions(attrs);
         var p = toVFSPath(path);
         checkAccess(p, AccessMode.WRITE);
         var fo = p.toFileObject();
-        if (fo.exists())
-            throw new FileAlreadyExistsException(p.toString());
-        fo.createFolder();
+        var fs = p.getFileSystem();
+        var start = fs.begin(Vfs2NioOperation.CREATE_DIRECTORY, p);
+        try {
+            var local = toLocalPath(fo);
+            if (local != null) {
+                /* The platform creates the directory with its permissions in one call */
+                Files.createDirectory(local, attrs);
+            } else {
+                if (fo.exists())
+                    throw new FileAlreadyExistsException(p.toString());
+                fo.createFolder();
+                if (permissions != null)
+                    Vfs2NioPosixFileAttributeView.setPermissions(fo, permissions);
+            }
+            fs.invalidate(p);
+        } finally {
+            fs.end(Vfs2NioOperation.CREATE_DIRECTORY, p, start, 0);
+        }
     }
 
     @Override
     public final void delete(Path path) throws IOException {
         var p = toVFSPath(path);
-        checkAccess(p, AccessMode.WRITE);
-        var fo = p.toFileObject();
-        fo.deleteAll();
+        deleteTree(p, p.getFileSystem().getParallelism(), null);
+    }
+
+    long deleteTree(Vfs2NioPath path, int parallelism, Vfs2NioDeleteListener listener) throws IOException {
+        var fs = path.getFileSystem();
+        fs.enter();
+        try {
+            var fo = path.toFileObject();
+            var start = fs.begin(Vfs2NioOperation.DELETE, path);
+            try {
+                if (!fo.exists())
+                    throw new NoSuchFileException(path.toString());
+                checkAccess(path, fo, AccessMode.WRITE);
+                return new Vfs2NioTreeDelete(fs, parallelism, listener).delete(path, fo);
+            } finally {
+                fs.invalidate(path);
+                fs.end(Vfs2NioOperation.DELETE, path, start, 0);
+            }
+        } finally {
+            fs.exit();
+        }
     }
 
     @Override
@@ -199,7 +415,17 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
 
     @Override
     public void move(Path src, Path target, CopyOption... options) throws IOException {
-        toVFSPath(src).toFileObject().moveTo(toVFSPath(target).toFileObject());
+        var fs = toVFSPath(src).getFileSystem();
+        fs.enter();
+        var start = fs.begin(Vfs2NioOperation.MOVE, src);
+        try {
+            toVFSPath(src).toFileObject().moveTo(toVFSPath(target).toFileObject());
+            fs.invalidate(src);
+            toVFSPath(target).getFileSystem().invalidate(target);
+        } finally {
+            fs.end(Vfs2NioOperation.MOVE, src, start, 0);
+            fs.exit();
+        }
     }
 
     @Override
@@ -223,184 +449,113 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
     public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
             throws IOException {
         /* TODO support more options */
-        var fileObject = toVFSPath(path).toFileObject();
-        if (fileObject.exists() && options.contains(StandardOpenOption.CREATE_NEW))
-            throw new FileAlreadyExistsException(path.toString());
-        else if (!fileObject.exists()
-                && (options.contains(StandardOpenOption.CREATE_NEW) || options.contains(StandardOpenOption.CREATE)))
-            fileObject.createFile();
-        var content = fileObject.getContent();
-        var rac = content.getRandomAccessContent(toRandomAccessMode(options));
-        return new FileChannel() {
-
-            @Override
-            public int read(ByteBuffer dst) throws IOException {
-                var arr = new byte[dst.remaining()];
-                int r = rac.getInputStream().read(arr, 0, arr.length);
-                if(r > 0)
-                    dst.put(arr, 0, r);
-                return r;
-            }
-
-            @Override
-            public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
-                long t = 0;
-                for (var dst : dsts) {
-                    var arr = new byte[dst.remaining()];
-                    int r = rac.getInputStream().read(arr, offset, length);
-                    if(r > 0)
-                        dst.put(arr, 0, r); 
-                    t += r;
-                }
-                return t;
-            }
-
-            @Override
-            public int write(ByteBuffer src) throws IOException {
-                var arr = new byte[src.remaining()];
-                src.get(arr);
-                rac.write(arr);
-                return arr.length;
-            }
-
-            @Override
-            public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
-                long t = 0;
-                for (var src : srcs) {
-                    var arr = new byte[src.remaining()];
-                    src.get(arr);
-                    rac.write(arr, offset, length);
-                    t += arr.length;
-                }
-                return t;
-            }
-
-            @Override
-            public long position() throws IOException {
-                return rac.getFilePointer();
-            }
-
-            @Override
-            public FileChannel position(long newPosition) throws IOException {
-                rac.seek(newPosition);
-                return this;
-            }
-
-            @Override
-            public long size() throws IOException {
-                return rac.length();
-            }
-
-            @Override
-            public FileChannel truncate(long size) throws IOException {
-                throw new UnsupportedOperationException();
-            }
-
-            @Override
-            public void force(boolean metaData) throws IOException {
-                // Noop?
-            }
-
-            @Override
-            public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
-                // Untrusted target: Use a newly-erased buffer
-                int c = (int) Math.min(count, TRANSFER_SIZE);
-                ByteBuffer bb = ByteBuffer.allocate(c);
-                long tw = 0; // Total bytes written
-                long pos = position;
+        var archive = toVFSPath(path).getFileSystem().getArchiveIndex();
+        if (archive != null && !options.contains(StandardOpenOption.WRITE)
+                && !options.contains(StandardOpenOption.APPEND)) {
+            var p = toVFSPath(path);
+            var entry = archive.find(p.toAbsolutePath().normalize().toString());
+            if (entry == -1)
+                throw new NoSuchFileException(path.toString());
+            if (archive.isReadable(entry)) {
+                var fs = p.getFileSystem();
+                var start = fs.begin(Vfs2NioOperation.OPEN, p);
                 try {
-                    while (tw < count) {
-                        bb.limit((int) Math.min(count - tw, TRANSFER_SIZE));
-                        int nr = read(bb, pos);
-                        if (nr <= 0)
-                            break;
-                        bb.flip();
-                        // ## Bug: Will block writing target if this channel
-                        // ## is asynchronously closed
-                        int nw = target.write(bb);
-                        tw += nw;
-                        if (nw != nr)
-                            break;
-                        pos += nw;
-                        bb.clear();
-                    }
-                    return tw;
-                } catch (IOException x) {
-                    if (tw > 0)
-                        return tw;
-                    throw x;
-                }
-            }
-
-            @Override
-            public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
-                // Untrusted target: Use a newly-erased buffer
-                int c = (int) Math.min(count, TRANSFER_SIZE);
-                ByteBuffer bb = ByteBuffer.allocate(c);
-                long tw = 0; // Total bytes written
-                long pos = position;
-                try {
-                    while (tw < count) {
-                        bb.limit((int) Math.min((count - tw), (long) TRANSFER_SIZE));
-                        // ## Bug: Will block reading src if this channel
-                        // ## is asynchronously closed
-                        int nr = src.read(bb);
-                        if (nr <= 0)
-                            break;
-                        bb.flip();
-                        int nw = write(bb, pos);
-                        tw += nw;
-                        if (nw != nr)
-                            break;
-                        pos += nw;
-                        bb.clear();
-                    }
-                    return tw;
-                } catch (IOException x) {
-                    if (tw > 0)
-                        return tw;
-                    throw x;
+                    return fs.track(new Vfs2NioTrackedChannel(fs, archive.newChannel(fs, p, entry)));
+                } finally {
+                    fs.end(Vfs2NioOperation.OPEN, p, start, 0);
                 }
             }
-
-            @Override
-            public int read(ByteBuffer dst, long position) throws IOException {
-                position(position);
-                return read(dst);
-            }
-
-            @Override
-            public int write(ByteBuffer src, long position) throws IOException {
-                position(position);
-                return write(src);
-            }
-
-            @Override
-            public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
-                throw new UnsupportedOperationException();
+        }
+        var local = toLocalPath(toVFSPath(path).toFileObject());
+        if (local != null) {
+            var fs = toVFSPath(path).getFileSystem();
+            var start = fs.begin(Vfs2NioOperation.OPEN, path);
+            try {
+                /* The platform creates the file with its permissions in one call */
+                var channel = FileChannel.open(local, toLocalOptions(options), attrs);
+                if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND))
+                    fs.invalidate(path);
+                return fs.track(new Vfs2NioTrackedChannel(fs, channel));
+            } finally {
+                fs.end(Vfs2NioOperation.OPEN, path, start, 0);
             }
-
-            @Override
-            public FileLock lock(long position, long size, boolean shared) throws IOException {
-                throw new UnsupportedOperationException();
+        }
+        var permissions = Vfs2NioPosixFileAttributeView.toCreatePermissions(attrs);
+        var append = options.contains(StandardOpenOption.APPEND);
+        if (append && (options.contains(StandardOpenOption.READ) || options.contains(StandardOpenOption.TRUNCATE_EXISTING)))
+            throw new IllegalArgumentException(String.format("%s cannot be combined with %s or %s.",
+                    StandardOpenOption.APPEND, StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING));
+        var fs = toVFSPath(path).getFileSystem();
+        var fileObject = toVFSPath(path).toFileObject();
+        var start = fs.begin(Vfs2NioOperation.OPEN, path);
+        var mode = toRandomAccessMode(options);
+        /* As with FileChannel.open(), CREATE and CREATE_NEW are ignored unless writing */
+        var write = mode == RandomAccessMode.READWRITE;
+        RandomAccessContent rac;
+        try {
+            var exists = !fs.isKnownMissing(path) && fileObject.exists();
+            if (exists && write && options.contains(StandardOpenOption.CREATE_NEW))
+                throw new FileAlreadyExistsException(path.toString());
+            else if (!exists) {
+                if (write && (options.contains(StandardOpenOption.CREATE_NEW) || options.contains(StandardOpenOption.CREATE))) {
+                    fileObject.createFile();
+                    if (permissions != null)
+                        Vfs2NioPosixFileAttributeView.setPermissions(fileObject, permissions);
+                    fs.invalidate(path);
+                } else
+                    throw new NoSuchFileException(path.toString());
             }
-
-            @Override
-            public FileLock tryLock(long position, long size, boolean shared) throws IOException {
-                throw new UnsupportedOperationException();
+            var hedge = fs.getHedge();
+            if (hedge != null && mode == RandomAccessMode.READ && fileObject instanceof AbstractFileObject) {
+                var afo = (AbstractFileObject<?>) fileObject;
+                rac = hedge.call(Vfs2NioOperation.OPEN, () -> afo.getRandomAccessContent(mode));
+            } else
+                rac = fileObject.getContent().getRandomAccessContent(mode);
+            if (mode == RandomAccessMode.READWRITE) {
+                /* Truncate in place, rather than deleting and creating again */
+                if (options.contains(StandardOpenOption.TRUNCATE_EXISTING) && rac.length() > 0)
+                    rac.setLength(0);
+                fs.invalidate(path);
             }
+        } finally {
+            fs.end(Vfs2NioOperation.OPEN, path, start, 0);
+        }
+        return fs.track(new Vfs2NioFileChannel(fs, toVFSPath(path), rac, mode == RandomAccessMode.READWRITE, append,
+                Vfs2NioPreallocateOption.find(options)));
+    }
 
-            @Override
-            protected void implCloseChannel() throws IOException {
-                rac.close();
+    /**
+     * Get the local path of a file object if it is a Commons VFS local file, so
+     * that it may be accessed directly rather than through the Commons VFS
+     * wrappers. Channels opened this way are the platform's own, so support
+     * zero-copy transfers, mapping and locking.
+     *
+     * @param fo file object
+     * @return local path or <code>null</code>
+     */
+    static Path toLocalPath(FileObject fo) {
+        /* Temporary files are local files too, but their URLs are not file URLs */
+        if (fo instanceof LocalFile && "file".equals(fo.getName().getScheme())) {
+            try {
+                return Paths.get(fo.getURL().toURI());
+            } catch (FileSystemException | URISyntaxException e) {
             }
+        }
+        return null;
+    }
 
-        };
+    /* The default provider rejects options it does not know */
+    private static Set<OpenOption> toLocalOptions(Collection<? extends OpenOption> options) {
+        var l = new HashSet<OpenOption>();
+        for (var opt : options) {
+            if (opt instanceof StandardOpenOption || opt instanceof LinkOption)
+                l.add(opt);
+        }
+        return l;
     }
 
     private RandomAccessMode toRandomAccessMode(Set<? extends OpenOption> options) {
-        if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.CREATE)
-                || options.contains(StandardOpenOption.CREATE_NEW))
+        if (options.contains(StandardOpenOption.WRITE) || options.contains(StandardOpenOption.APPEND))
             return RandomAccessMode.READWRITE;
         return RandomAccessMode.READ;
     }
@@ -416,14 +571,16 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
         var path = toFsUri(uri);
         if (filesystems.containsKey(path))
             throw new FileSystemAlreadyExistsException();
+        if (env == null)
+            env = Collections.emptyMap();
         synchronized (filesystems) {
-            var mgr = env == null ? null : (FileSystemManager) env.get(VFS_MANAGER);
+            var mgr = (FileSystemManager) env.get(VFS_MANAGER);
             if (mgr == null)
-                mgr = VFS.getManager();
-            var opts = env == null ? null : (FileSystemOptions) env.get(FILE_SYSTEM_OPTIONS);
+                mgr = toBoolean(env.get(LAZY_MANAGER)) ? Vfs2NioFileSystemManager.getInstance() : VFS.getManager();
+            var opts = (FileSystemOptions) env.get(FILE_SYSTEM_OPTIONS);
             if (opts == null)
                 opts = new FileSystemOptions();
-            if (!Arrays.asList(mgr.getSchemes()).contains(path.getScheme())) {
+            if (!mgr.hasProvider(path.getScheme())) {
                 /*
                  * TODO monitor state of Commons VFS JPMS compatibility for adjustments to
                  * message
@@ -451,12 +608,18 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
              * homes directory.
              */
             var root = toPathlessURI(path);
+            if (toBoolean(env.get(ARCHIVE_INDEX)) && Vfs2NioFileSystem.toArchivePath(root.toString()) != null) {
+                /* Archive is indexed, so only open it with Commons VFS if it is actually needed */
+                var vfs = new Vfs2NioFileSystem(this, mgr, root.toString(), opts, path, env);
+                filesystems.put(path, vfs);
+                return vfs;
+            }
             var foRoot = mgr.resolveFile(root.toString(), opts);
             if (path.getPath() != null) {
                 foRoot = foRoot.resolveFile(path.getPath().substring(1));
             }
 
-            var vfs = new Vfs2NioFileSystem(this, foRoot, path);
+            var vfs = new Vfs2NioFileSystem(this, mgr, foRoot, path, env);
 
             filesystems.put(path, vfs);
             return vfs;
@@ -469,8 +632,42 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
         if (optlist.contains(StandardOpenOption.WRITE))
             throw new IllegalArgumentException(
                     String.format("%s is not supported by this method.", StandardOpenOption.WRITE));
+        var p = toVFSPath(path);
+        var fs = p.getFileSystem();
+        var archive = fs.getArchiveIndex();
+        if (archive != null) {
+            var entry = archive.find(p.toAbsolutePath().normalize().toString());
+            if (entry == -1)
+                throw new NoSuchFileException(path.toString());
+            if (archive.isReadable(entry)) {
+                var start = fs.begin(Vfs2NioOperation.OPEN, p);
+                try {
+                    return fs.track(archive.newInputStream(entry), p);
+                } finally {
+                    fs.end(Vfs2NioOperation.OPEN, p, start, 0);
+                }
+            }
+        }
         checkAccess(path, AccessMode.READ);
-        return toVFSPath(path).toFileObject().getContent().getInputStream();
+        var fo = p.toFileObject();
+        var start = fs.begin(Vfs2NioOperation.OPEN, p);
+        try {
+            var local = toLocalPath(fo);
+            if (local != null)
+                return fs.track(Files.newInputStream(local, toLocalOptions(optlist).toArray(new OpenOption[0])), p);
+            var hedge = fs.getHedge();
+            if (hedge != null && fo instanceof AbstractFileObject) {
+                /*
+                 * The file object's own stream, rather than the content's, as that is
+                 * not tied to the thread that opened it
+                 */
+                var afo = (AbstractFileObject<?>) fo;
+                return fs.track(new BufferedInputStream(hedge.call(Vfs2NioOperation.OPEN, afo::getInputStream)), p);
+            }
+            return fs.track(fo.getContent().getInputStream(), p);
+        } finally {
+            fs.end(Vfs2NioOperation.OPEN, p, start, 0);
+        }
     }
 
     @Override
@@ -479,26 +676,95 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
         if (optlist.contains(StandardOpenOption.READ))
             throw new IllegalArgumentException(
                     String.format("%s is not supported by this method.", StandardOpenOption.READ));
+        var local = toLocalPath(toVFSPath(path).toFileObject());
+        if (local != null) {
+            var fs = toVFSPath(path).getFileSystem();
+            var start = fs.begin(Vfs2NioOperation.OPEN, path);
+            try {
+                var out = Files.newOutputStream(local, toLocalOptions(optlist).toArray(new OpenOption[0]));
+                fs.invalidate(path);
+                return fs.track(out, path);
+            } finally {
+                fs.end(Vfs2NioOperation.OPEN, path, start, 0);
+            }
+        }
+        if (optlist.isEmpty())
+            optlist = Arrays.asList(StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE);
+        var append = optlist.contains(StandardOpenOption.APPEND);
+        var truncate = optlist.contains(StandardOpenOption.TRUNCATE_EXISTING);
+        if (append && truncate)
+            throw new IllegalArgumentException(String.format("%s cannot be combined with %s.",
+                    StandardOpenOption.APPEND, StandardOpenOption.TRUNCATE_EXISTING));
         var fo = toVFSPath(path).toFileObject();
-        if (optlist.contains(StandardOpenOption.CREATE_NEW) && fo.exists())
-            throw new IOException(String.format("%s already exists, and the option %s was specified.", fo,
+        var exists = !toVFSPath(path).getFileSystem().isKnownMissing(path) && fo.exists();
+        if (optlist.contains(StandardOpenOption.CREATE_NEW) && exists)
+            throw new FileAlreadyExistsException(String.format("%s already exists, and the option %s was specified.", fo,
                     StandardOpenOption.CREATE_NEW));
+        if (!exists && !optlist.contains(StandardOpenOption.CREATE) && !optlist.contains(StandardOpenOption.CREATE_NEW))
+            throw new NoSuchFileException(path.toString());
         checkAccess(path, AccessMode.WRITE);
-        return fo.getContent().getOutputStream(optlist.contains(StandardOpenOption.APPEND));
+        var fs = toVFSPath(path).getFileSystem();
+        if (fo.getFileSystem().hasCapability(Capability.RANDOM_ACCESS_WRITE)
+                && ((exists && !append) || Vfs2NioPreallocateOption.find(optlist) != -1)) {
+            /*
+             * Overwriting with or without truncating, or reserving space, is done with
+             * random access where possible. Not all Commons VFS providers truncate
+             * an existing file when opening an output stream (e.g. local files
+             * in 2.9), and this avoids a delete and create. The channel is tracked,
+             * and the stream closes it
+             */
+            var chopts = new HashSet<OpenOption>(optlist);
+            chopts.add(StandardOpenOption.WRITE);
+            return Channels.newOutputStream(newFileChannel(path, chopts));
+        }
+        var start = fs.begin(Vfs2NioOperation.OPEN, path);
+        try {
+            var out = fo.getContent().getOutputStream(append);
+            fs.invalidate(path);
+            return fs.track(out, path);
+        } finally {
+            fs.end(Vfs2NioOperation.OPEN, path, start, 0);
+        }
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
             throws IOException {
-        if (type == BasicFileAttributes.class || type == Vfs2NioFileAttributes.class)
-            return (A) toVFSPath(path).getAttributes();
+        if (type == BasicFileAttributes.class || type == Vfs2NioFileAttributes.class) {
+            var p = toVFSPath(path);
+            var fs = p.getFileSystem();
+            var start = fs.begin(Vfs2NioOperation.READ_ATTRIBUTES, p);
+            try {
+                return (A) p.getAttributes();
+            } finally {
+                fs.end(Vfs2NioOperation.READ_ATTRIBUTES, p, start, 0);
+            }
+        }
+        if (type == PosixFileAttributes.class) {
+            var p = toVFSPath(path);
+            var fs = p.getFileSystem();
+            var start = fs.begin(Vfs2NioOperation.READ_ATTRIBUTES, p);
+            try {
+                return (A) new Vfs2NioPosixFileAttributeView(p, true).readAttributes();
+            } finally {
+                fs.end(Vfs2NioOperation.READ_ATTRIBUTES, p, start, 0);
+            }
+        }
         return null;
     }
 
     @Override
     public Map<String, Object> readAttributes(Path path, String attribute, LinkOption... options) throws IOException {
-        return toVFSPath(path).readAttributes(attribute, options);
+        var p = toVFSPath(path);
+        var fs = p.getFileSystem();
+        var start = fs.begin(Vfs2NioOperation.READ_ATTRIBUTES, p);
+        try {
+            return p.readAttributes(attribute, options);
+        } finally {
+            fs.end(Vfs2NioOperation.READ_ATTRIBUTES, p, start, 0);
+        }
     }
 
     @Override
@@ -513,6 +779,11 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
 
     protected URI toPathlessURI(URI uri) {
         try {
+            if (uri.isOpaque())
+                /* A layered file system such as zip:file:///archive.zip, mounted at the root of the archive */
+                return new URI(uri + "!/");
+            if (uri.getAuthority() == null)
+                return new URI(uri.getScheme() + ":///");
             return new URI(uri.getScheme(), uri.getAuthority(), null, uri.getQuery(), uri.getFragment());
         } catch (URISyntaxException e) {
             throw new IllegalArgumentException(e.getMessage(), e);
@@ -558,6 +829,36 @@ public class Vfs2NioFileSystemProvider extends FileSystemProvider {
         filesystems.remove(path);
     }
 
+    boolean isBackendInUse(Vfs2NioFileSystem exclude, org.apache.commons.vfs2.FileSystem backend) {
+        synchronized (filesystems) {
+            for (var fs : filesystems.values()) {
+                if (fs != exclude) {
+                    var fsRoot = fs.currentRoot();
+                    if (fsRoot != null && fsRoot.getFileSystem() == backend)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static boolean toBoolean(Object val) {
+        if (val instanceof Boolean)
+            return (Boolean) val;
+        return val != null && Boolean.parseBoolean(val.toString());
+    }
+
+    static long toMillis(Object val) {
+        if (val == null)
+            return 0;
+        else if (val instanceof Duration)
+            return ((Duration) val).toMillis();
+        else if (val instanceof Number)
+            return ((Number) val).longValue();
+        else
+            return Long.parseLong(val.toString());
+    }
+
     static class UA implements UserAuthenticator {
 
         private Map<String, Object> env;
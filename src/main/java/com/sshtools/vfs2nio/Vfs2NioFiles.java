@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Utility methods that complement {@link Files}, taking advantage of the
+ * ability to have several requests to the backend in flight at once.
+ */
+public final class Vfs2NioFiles {
+
+	private Vfs2NioFiles() {
+	}
+
+	/**
+	 * Walk a file tree, listing up to {@link Vfs2NioFileSystem#getParallelism()}
+	 * directories concurrently. See {@link #walk(Path, int, int)}.
+	 * 
+	 * @param start    starting path
+	 * @param maxDepth maximum number of directory levels to visit
+	 * @return stream of paths
+	 * @throws IOException on error
+	 */
+	public static Stream<Path> walk(Path start, int maxDepth) throws IOException {
+		return walk(start, maxDepth, Vfs2NioFileSystemProvider.toVFSPath(start).getFileSystem().getParallelism());
+	}
+
+	/**
+	 * Walk a file tree in the same order as {@link Files#walk(Path, int,
+	 * java.nio.file.FileVisitOption...)}, but with directories listed ahead of
+	 * time on the file system's pool, up to <code>parallelism</code> at a time.
+	 * The stream may also be made {@link Stream#parallel()}, in which case
+	 * separate subtrees are consumed concurrently.
+	 * <p>
+	 * To use the attributes retrieved when each directory was listed, rather
+	 * than reading them again, see
+	 * {@link #find(Path, int, int, BiPredicate)}.
+	 * <p>
+	 * As with {@link Files#walk(Path, int, java.nio.file.FileVisitOption...)},
+	 * errors while walking are thrown as
+	 * {@link java.io.UncheckedIOException}, and the stream should be closed
+	 * when done with.
+	 * 
+	 * @param start       starting path
+	 * @param maxDepth    maximum number of directory levels to visit
+	 * @param parallelism maximum number of directory listings in flight
+	 * @return stream of paths
+	 * @throws IOException on error reading the starting path
+	 */
+	public static Stream<Path> walk(Path start, int maxDepth, int parallelism) throws IOException {
+		return nodes(start, maxDepth, parallelism).map(Vfs2NioWalkSpliterator.Node::path);
+	}
+
+	/**
+	 * Find files in a file tree in the same way as {@link Files#find(Path, int,
+	 * BiPredicate, java.nio.file.FileVisitOption...)}, walking it as
+	 * {@link #walk(Path, int, int)} does. The attributes passed to the matcher
+	 * are those retrieved when each directory was listed, so no further requests
+	 * are made for them.
+	 * 
+	 * @param start       starting path
+	 * @param maxDepth    maximum number of directory levels to visit
+	 * @param parallelism maximum number of directory listings in flight
+	 * @param matcher     function to decide if a path should be included
+	 * @return stream of matching paths
+	 * @throws IOException on error reading the starting path
+	 */
+	public static Stream<Path> find(Path start, int maxDepth, int parallelism,
+			BiPredicate<Path, BasicFileAttributes> matcher) throws IOException {
+		return nodes(start, maxDepth, parallelism).filter(n -> matcher.test(n.path(), n.attributes()))
+				.map(Vfs2NioWalkSpliterator.Node::path);
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it. This is what
+	 * {@link Files#delete(Path)} does for this file system, but allows the
+	 * concurrency to be chosen and progress to be monitored.
+	 * <p>
+	 * Directories are listed in parallel, the files within them deleted
+	 * concurrently, and each directory deleted once it is empty. No more than
+	 * <code>parallelism</code> requests are made at once (nor more than the file
+	 * system's own {@link Vfs2NioFileSystem#getParallelism()}). If something
+	 * cannot be deleted, the rest of the tree is still deleted before the first
+	 * error is thrown (with any others attached as suppressed exceptions).
+	 * 
+	 * @param path        path to delete
+	 * @param parallelism maximum number of requests in flight
+	 * @param listener    listener to report progress to, or <code>null</code>
+	 * @return number of files and directories deleted
+	 * @throws IOException on error
+	 */
+	public static long deleteTree(Path path, int parallelism, Vfs2NioDeleteListener listener) throws IOException {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("'parallelism' must be at least 1");
+		var p = Vfs2NioFileSystemProvider.toVFSPath(path);
+		return p.getFileSystem().provider().deleteTree(p, parallelism, listener);
+	}
+
+	/**
+	 * Make an existing file the same as another by writing only the blocks that
+	 * differ, which is much quicker than a full copy when a large file has only
+	 * changed a little. Both files are read in full (the target concurrently with
+	 * the source), and each block of the source is compared with the block at the
+	 * same offset in the target using a weak and a strong checksum.
+	 * <p>
+	 * If the target does not exist or does not support random access writes, a
+	 * normal copy is made instead (and every byte is reported as written). The
+	 * same can be done using {@link Files#copy(Path, Path, java.nio.file.CopyOption...)}
+	 * with {@link Vfs2NioCopyOption#DELTA}.
+	 * 
+	 * @param source    source file
+	 * @param target    target file
+	 * @param blockSize size of blocks to compare
+	 * @return statistics
+	 * @throws IOException on error
+	 */
+	public static Vfs2NioDeltaStats copyDelta(Path source, Path target, int blockSize) throws IOException {
+		if (blockSize < 1)
+			throw new IllegalArgumentException("'blockSize' must be at least 1");
+		var src = Vfs2NioFileSystemProvider.toVFSPath(source);
+		var tgt = Vfs2NioFileSystemProvider.toVFSPath(target);
+		var fs = tgt.getFileSystem();
+		var srcObj = src.toFileObject();
+		var tgtObj = tgt.toFileObject();
+		if (!srcObj.isFile())
+			throw new NoSuchFileException(source.toString());
+		if (!Vfs2NioDeltaCopy.isSupported(srcObj, tgtObj)) {
+			Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+			var size = Files.size(target);
+			return new Vfs2NioDeltaStats(size, size, (int) ((size + blockSize - 1) / blockSize), 0);
+		}
+		fs.enter();
+		var start = fs.begin(Vfs2NioOperation.COPY, src);
+		var bytes = 0l;
+		try {
+			var stats = Vfs2NioDeltaCopy.copy(src, srcObj, tgt, tgtObj, blockSize);
+			bytes = stats.getBytesWritten();
+			return stats;
+		} finally {
+			fs.invalidate(tgt);
+			fs.end(Vfs2NioOperation.COPY, src, start, bytes);
+			fs.exit();
+		}
+	}
+
+	/**
+	 * Compute a digest of a file's content, reading it once. Hashing happens on
+	 * the file system's pool while the next block is being read, so the time
+	 * taken is close to that of reading alone.
+	 * 
+	 * @param path      file
+	 * @param algorithm digest algorithm, e.g. <code>SHA-256</code>
+	 * @return digest
+	 * @throws IOException on error
+	 * @throws IllegalArgumentException if the algorithm is not available
+	 */
+	public static byte[] digest(Path path, String algorithm) throws IOException {
+		var md = Vfs2NioDigester.newDigest(algorithm);
+		try (var in = Files.newInputStream(path)) {
+			return Vfs2NioDigester.digest(in, null, md, pool(path));
+		}
+	}
+
+	/**
+	 * Compute the digest of each fixed size chunk of a file's content, hashing
+	 * the chunks in parallel on the file system's pool. This is much quicker than
+	 * {@link #digest(Path, String)} for large files on fast connections, where
+	 * hashing rather than reading is the bottleneck.
+	 * 
+	 * @param path      file
+	 * @param algorithm digest algorithm, e.g. <code>SHA-256</code>
+	 * @param chunkSize chunk size
+	 * @return chunk digests
+	 * @throws IOException on error
+	 * @throws IllegalArgumentException if the algorithm is not available
+	 */
+	public static Vfs2NioChunkedDigest digestChunks(Path path, String algorithm, int chunkSize) throws IOException {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("'chunkSize' must be at least 1");
+		try (var in = Files.newInputStream(path)) {
+			return Vfs2NioDigester.digestChunks(in, algorithm, chunkSize, pool(path), parallelism(path));
+		}
+	}
+
+	/**
+	 * Copy a file's content, computing a digest of it at the same time, so that
+	 * verifying the copy (for example against a digest computed at the other end)
+	 * does not need it to be read again. The target is replaced if it exists.
+	 * Either path may be in another file system.
+	 * 
+	 * @param source    source file
+	 * @param target    target file
+	 * @param algorithm digest algorithm, e.g. <code>SHA-256</code>
+	 * @return digest of the content copied
+	 * @throws IOException on error
+	 * @throws IllegalArgumentException if the algorithm is not available
+	 */
+	public static byte[] copy(Path source, Path target, String algorithm) throws IOException {
+		var md = Vfs2NioDigester.newDigest(algorithm);
+		try (var in = Files.newInputStream(source); var out = Files.newOutputStream(target)) {
+			return Vfs2NioDigester.digest(in, out, md, pool(source, target));
+		}
+	}
+
+	private static Stream<Vfs2NioWalkSpliterator.Node> nodes(Path start, int maxDepth, int parallelism)
+			throws IOException {
+		if (maxDepth < 0)
+			throw new IllegalArgumentException("'maxDepth' is negative");
+		if (parallelism < 1)
+			throw new IllegalArgumentException("'parallelism' must be at least 1");
+		var path = Vfs2NioFileSystemProvider.toVFSPath(start);
+		var walk = new Vfs2NioWalkSpliterator.Walk(path.getFileSystem(), maxDepth, parallelism);
+		var node = new Vfs2NioWalkSpliterator.Node(path, 0, path.getAttributes());
+		return StreamSupport.stream(new Vfs2NioWalkSpliterator(walk, node), false).onClose(walk::close);
+	}
+
+	private static Executor pool(Path... paths) {
+		for (var path : paths) {
+			if (path instanceof Vfs2NioPath)
+				return ((Vfs2NioPath) path).getFileSystem().getPool();
+		}
+		return ForkJoinPool.commonPool();
+	}
+
+	private static int parallelism(Path path) {
+		return path instanceof Vfs2NioPath ? ((Vfs2NioPath) path).getFileSystem().getParallelism()
+				: ForkJoinPool.getCommonPoolParallelism();
+	}
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Flow.Publisher}s of file content and directory listings. All I/O,
+ * including opening, happens on the given executor and only when the
+ * subscriber has asked for more, so a slow subscriber holds back reading and
+ * subscribers never block on the backend.
+ */
+final class Vfs2NioFlow {
+	/* Items to emit before giving other subscriptions a turn of the executor */
+	private final static int BATCH = 16;
+
+	/**
+	 * Where the items of a subscription come from.
+	 * 
+	 * @param <T> type of item
+	 */
+	interface Source<T> extends Closeable {
+		/**
+		 * Get the next item.
+		 * 
+		 * @return item or <code>null</code> at the end
+		 * @throws IOException on error
+		 */
+		T next() throws IOException;
+
+		/**
+		 * Called once the subscriber is finished with an item.
+		 * 
+		 * @param item item
+		 */
+		default void done(T item) {
+		}
+	}
+
+	interface Opener<T> {
+		Source<T> open() throws IOException;
+	}
+
+	private Vfs2NioFlow() {
+	}
+
+	/**
+	 * Publish the content of a file, in buffers from
+	 * {@link Vfs2NioBufferPool}. Each buffer is only valid until
+	 * {@link Flow.Subscriber#onNext(Object)} returns, after which it is reused.
+	 * 
+	 * @param executor executor to read on
+	 * @param path     path
+	 * @return publisher
+	 */
+	static Flow.Publisher<ByteBuffer> content(Executor executor, Path path) {
+		return publisher(executor, () -> {
+			var channel = Files.newByteChannel(path);
+			return new Source<ByteBuffer>() {
+				@Override
+				public ByteBuffer next() throws IOException {
+					var buf = Vfs2NioBufferPool.acquire();
+					try {
+						if (channel.read(buf) == -1) {
+							Vfs2NioBufferPool.release(buf);
+							return null;
+						}
+					} catch (IOException | RuntimeException e) {
+						Vfs2NioBufferPool.release(buf);
+						throw e;
+					}
+					return buf.flip();
+				}
+
+				@Override
+				public void done(ByteBuffer item) {
+					Vfs2NioBufferPool.release(item);
+				}
+
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		});
+	}
+
+	/**
+	 * Publish the paths in a directory.
+	 * 
+	 * @param executor executor to list on
+	 * @param dir      directory
+	 * @return publisher
+	 */
+	static Flow.Publisher<Path> directory(Executor executor, Path dir) {
+		return publisher(executor, () -> {
+			var stream = Files.newDirectoryStream(dir);
+			return new Source<Path>() {
+				private final Iterator<Path> it = stream.iterator();
+
+				@Override
+				public Path next() throws IOException {
+					return it.hasNext() ? it.next() : null;
+				}
+
+				@Override
+				public void close() throws IOException {
+					stream.close();
+				}
+			};
+		});
+	}
+
+	static <T> Flow.Publisher<T> publisher(Executor executor, Opener<T> opener) {
+		return subscriber -> {
+			var subscription = new Subscription<>(executor, opener, subscriber);
+			subscriber.onSubscribe(subscription);
+		};
+	}
+
+	private final static class Subscription<T> implements Flow.Subscription {
+		private final Executor executor;
+		private final Opener<T> opener;
+		private final Flow.Subscriber<? super T> subscriber;
+		private final AtomicLong demand = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+
+		private volatile boolean cancelled;
+		private volatile Throwable invalid;
+		/* Only used while draining */
+		private Source<T> source;
+		private boolean done;
+
+		Subscription(Executor executor, Opener<T> opener, Flow.Subscriber<? super T> subscriber) {
+			this.executor = executor;
+			this.opener = opener;
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0)
+				invalid = new IllegalArgumentException("Must request a positive number of items.");
+			else
+				demand.getAndUpdate(d -> d + n < 0 ? Long.MAX_VALUE : d + n);
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			schedule();
+		}
+
+		private void schedule() {
+			if (wip.getAndIncrement() == 0)
+				execute();
+		}
+
+		private void execute() {
+			try {
+				executor.execute(this::drain);
+			} catch (RejectedExecutionException ree) {
+				/* File system closed */
+				cancelled = true;
+				if (!done) {
+					done = true;
+					subscriber.onError(ree);
+				}
+			}
+		}
+
+		private void drain() {
+			var missed = 1;
+			while (true) {
+				if (!done) {
+					try {
+						if (!emit())
+							/* More to do, but let others have a turn first */
+							return;
+					} catch (Throwable e) {
+						finish(e);
+					}
+				}
+				missed = wip.addAndGet(-missed);
+				if (missed == 0)
+					return;
+			}
+		}
+
+		private boolean emit() throws IOException {
+			if (invalid != null) {
+				finish(invalid);
+				return true;
+			}
+			if (cancelled) {
+				done = true;
+				closeSource();
+				return true;
+			}
+			var emitted = 0;
+			while (demand.get() > 0 && !cancelled) {
+				if (emitted == BATCH) {
+					execute();
+					return false;
+				}
+				if (source == null)
+					source = opener.open();
+				var item = source.next();
+				if (item == null) {
+					finish(null);
+					return true;
+				}
+				try {
+					subscriber.onNext(item);
+				} finally {
+					source.done(item);
+				}
+				demand.decrementAndGet();
+				emitted++;
+			}
+			if (cancelled) {
+				done = true;
+				closeSource();
+			}
+			return true;
+		}
+
+		private void finish(Throwable error) {
+			done = true;
+			try {
+				closeSource();
+			} catch (IOException ioe) {
+				if (error == null)
+					error = ioe;
+			}
+			if (cancelled)
+				return;
+			if (error == null)
+				subscriber.onComplete();
+			else
+				subscriber.onError(error);
+		}
+
+		private void closeSource() throws IOException {
+			if (source != null) {
+				try {
+					source.close();
+				} finally {
+					source = null;
+				}
+			}
+		}
+	}
+}
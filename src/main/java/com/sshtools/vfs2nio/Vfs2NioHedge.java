@@ -0,0 +1,203 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues a second, duplicate request for an operation when the first has not
+ * answered within a given percentile of that operation's recent latencies,
+ * and uses whichever answers first. The other result is closed when it
+ * arrives.
+ * <p>
+ * Hedging stays within a budget, expressed as a fraction of the number of
+ * requests made. Each request adds that fraction to a small pool of credit,
+ * and each duplicate spends a whole one, so that a backend that is slow for
+ * everyone is not sent twice the load.
+ */
+final class Vfs2NioHedge {
+	/* Latencies to collect before the percentile is trusted */
+	static final int MIN_SAMPLES = 20;
+
+	private static final long MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long CREDIT = 1000;
+	private static final long MAX_CREDIT = 10 * CREDIT;
+
+	private static ExecutorService executor;
+
+	private final double percentile;
+	private final long creditPerRequest;
+	private final Vfs2NioMetrics metrics;
+	private final Vfs2NioLatencyHistogram[] histograms;
+	private final AtomicLong credit = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param percentile percentile of latency after which to hedge
+	 * @param budget     maximum duplicate requests as a fraction of all requests
+	 * @param metrics    metrics to record hedged requests in, or
+	 *                   <code>null</code>
+	 */
+	Vfs2NioHedge(double percentile, double budget, Vfs2NioMetrics metrics) {
+		this.percentile = percentile;
+		this.creditPerRequest = Math.round(budget * CREDIT);
+		this.metrics = metrics;
+		var ops = Vfs2NioOperation.values();
+		histograms = new Vfs2NioLatencyHistogram[ops.length];
+		for (int i = 0; i < ops.length; i++)
+			histograms[i] = new Vfs2NioLatencyHistogram();
+	}
+
+	/**
+	 * Get how long a request for an operation will be given before it is hedged.
+	 * 
+	 * @param op operation
+	 * @return delay in nanoseconds, or -1 if not enough is known about the
+	 *         operation yet
+	 */
+	long getDelay(Vfs2NioOperation op) {
+		var histogram = histograms[op.ordinal()];
+		if (histogram.getCount() < MIN_SAMPLES)
+			return -1;
+		return Math.max(MIN_DELAY, histogram.getValueAtPercentile(percentile));
+	}
+
+	/**
+	 * Perform a request, hedging it if it is slow. The request must be safe to
+	 * make twice, and each call must return a new resource.
+	 * 
+	 * @param <T>     type of result
+	 * @param op      operation
+	 * @param request request
+	 * @return result
+	 * @throws IOException on error
+	 */
+	<T extends Closeable> T call(Vfs2NioOperation op, Callable<T> request) throws IOException {
+		var histogram = histograms[op.ordinal()];
+		var c = credit.addAndGet(creditPerRequest);
+		if (c > MAX_CREDIT)
+			credit.compareAndSet(c, MAX_CREDIT);
+
+		var delay = getDelay(op);
+		if (delay == -1) {
+			/* Learning */
+			var started = System.nanoTime();
+			var result = unchecked(request);
+			histogram.record(System.nanoTime() - started);
+			return result;
+		}
+
+		var winner = new CompletableFuture<T>();
+		var failures = new AtomicInteger();
+		var attempts = new AtomicInteger(1);
+		submit(request, histogram, winner, failures, attempts);
+		try {
+			try {
+				return winner.get(delay, TimeUnit.NANOSECONDS);
+			} catch (TimeoutException te) {
+				if (spend()) {
+					attempts.incrementAndGet();
+					if (metrics != null)
+						metrics.recordHedged();
+					submit(request, histogram, winner, failures, attempts);
+				}
+				return winner.get();
+			}
+		} catch (InterruptedException ie) {
+			/* Any result that arrives later will be closed */
+			winner.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException ee) {
+			var cause = ee.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException("Request failed.", cause);
+		}
+	}
+
+	private boolean spend() {
+		long c;
+		do {
+			c = credit.get();
+			if (c < CREDIT)
+				return false;
+		} while (!credit.compareAndSet(c, c - CREDIT));
+		return true;
+	}
+
+	/*
+	 * Start an attempt. The first to succeed completes the winner, and any later
+	 * success is closed. The winner only fails if every attempt does
+	 */
+	private <T extends Closeable> void submit(Callable<T> request, Vfs2NioLatencyHistogram histogram,
+			CompletableFuture<T> winner, AtomicInteger failures, AtomicInteger attempts) {
+		CompletableFuture.runAsync(() -> {
+			var started = System.nanoTime();
+			try {
+				var result = unchecked(request);
+				histogram.record(System.nanoTime() - started);
+				if (!winner.complete(result))
+					closeQuietly(result);
+			} catch (IOException | RuntimeException e) {
+				if (failures.incrementAndGet() == attempts.get())
+					winner.completeExceptionally(e);
+			}
+		}, getExecutor());
+	}
+
+	private static <T> T unchecked(Callable<T> request) throws IOException {
+		try {
+			return request.call();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Request failed.", e);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			executor = Executors.newCachedThreadPool(r -> {
+				var t = new Thread(r, "Vfs2NioHedge");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return executor;
+	}
+}
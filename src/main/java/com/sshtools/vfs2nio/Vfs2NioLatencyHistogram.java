@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free, fixed size histogram of latencies in nanoseconds. Values are
+ * placed in log-linear buckets (8 linear sub-buckets per power of two), so any
+ * recorded value is reported to within 12.5% of its actual value, while
+ * recording is just a couple of atomic increments.
+ */
+public class Vfs2NioLatencyHistogram {
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		total.add(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+			;
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getTotal() {
+		return total.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public long getMean() {
+		var c = count.sum();
+		return c == 0 ? 0 : total.sum() / c;
+	}
+
+	/**
+	 * Get the (approximate) value below which the given percentage of recorded
+	 * values fall.
+	 * 
+	 * @param percentile percentile between 0 and 100
+	 * @return value in nanoseconds
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long c = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			c += counts.get(i);
+		if (c == 0)
+			return 0;
+		var target = Math.max(1, (long) Math.ceil((Math.min(100d, percentile) / 100d) * c));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	static int bucket(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		var exp = 63 - Long.numberOfLeadingZeros(value);
+		var sub = (int) (value >>> (exp - SUB_BITS)) - SUB_BUCKETS;
+		return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int bucket) {
+		if (bucket < SUB_BUCKETS)
+			return bucket;
+		var exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		var sub = bucket % SUB_BUCKETS;
+		var shift = exp - SUB_BITS;
+		return ((long) (SUB_BUCKETS + sub) << shift) + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.FileLockInterruptionException;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Emulates {@link FileChannel#lock(long, long, boolean)} for backends that
+ * have no locking of their own. Locks are byte ranges, either shared (any
+ * number may overlap) or exclusive, and are held by channels.
+ * <p>
+ * Locks are only known to this file system, so paths are hashed to one of a
+ * number of stripes, each with its own lock and map of paths, so that
+ * unrelated files do not contend. The locks on a path are kept sorted by
+ * position, along with the longest lock, so that only the locks that could
+ * possibly overlap a range are examined.
+ * <p>
+ * Optionally, other processes may be kept out by an advisory lock file next to
+ * the locked file (<code>name.lock</code>), held for as long as any range of
+ * the file is locked. It only helps against clients that follow the same
+ * protocol. Local lock files are created exclusively, so exactly one owner
+ * wins. Commons VFS has no exclusive create, so elsewhere the owner is written
+ * and read back after a short delay, which is only a best effort: two clients
+ * that write at nearly the same time on a slow backend may both believe they
+ * hold the file. The first range is reserved while the lock file is taken, and
+ * the backend is only contacted with the stripe unlocked.
+ */
+final class Vfs2NioLockTable {
+	private final static int STRIPES = 64;
+	/* How often to look again at a lock file held by someone else */
+	private final static long LOCK_FILE_POLL = TimeUnit.MILLISECONDS.toNanos(100);
+	/* How long to wait before reading back a lock file that could not be created exclusively */
+	private final static long LOCK_FILE_SETTLE = 250;
+
+	private final static class Stripe {
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition released = lock.newCondition();
+		private final Map<String, Ranges> paths = new HashMap<>();
+	}
+
+	private final static class Ranges {
+		private final TreeMap<Long, List<RangeLock>> byPosition = new TreeMap<>();
+		/* How many locks there are of each length, so the longest is known as locks come and go */
+		private final TreeMap<Long, Integer> lengths = new TreeMap<>();
+		private int count;
+		private boolean lockFile;
+		/* The lock file is being taken or removed, outside of the stripe lock */
+		private boolean busy;
+	}
+
+	private final class RangeLock extends FileLock {
+		private final String key;
+		private final Path path;
+		private final long end;
+		private volatile boolean valid = true;
+
+		RangeLock(FileChannel channel, String key, Path path, long position, long size, boolean shared) {
+			super(channel, position, size, shared);
+			this.key = key;
+			this.path = path;
+			var end = position + size;
+			this.end = end < 0 ? Long.MAX_VALUE : end;
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid && channel().isOpen();
+		}
+
+		@Override
+		public void release() throws IOException {
+			if (!channel().isOpen())
+				throw new ClosedChannelException();
+			Vfs2NioLockTable.this.release(this);
+		}
+	}
+
+	private final Stripe[] stripes = new Stripe[STRIPES];
+	private final boolean lockFiles;
+	private final long lockFileTimeout;
+	private final String owner = UUID.randomUUID().toString();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param lockFiles       whether to also take a lock file on the backend
+	 * @param lockFileTimeout milliseconds after which another owner's lock file
+	 *                        is considered abandoned, or 0 for never
+	 */
+	Vfs2NioLockTable(boolean lockFiles, long lockFileTimeout) {
+		this.lockFiles = lockFiles;
+		this.lockFileTimeout = lockFileTimeout;
+		for (var i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	/**
+	 * Lock a range of a file.
+	 * 
+	 * @param channel  channel to hold the lock
+	 * @param path     path of the file
+	 * @param position start of the range
+	 * @param size     length of the range
+	 * @param shared   whether the lock is shared
+	 * @param wait     whether to wait for conflicting locks to be released
+	 * @return lock, or <code>null</code> if not waiting and the range is locked
+	 * @throws IOException on error
+	 */
+	FileLock lock(FileChannel channel, Path path, long position, long size, boolean shared, boolean wait)
+			throws IOException {
+		var key = path.toAbsolutePath().normalize().toString();
+		var stripe = stripe(key);
+		var lock = new RangeLock(channel, key, path, position, size, shared);
+		stripe.lock.lock();
+		try {
+			while (true) {
+				if (!channel.isOpen())
+					throw new AsynchronousCloseException();
+				var ranges = stripe.paths.get(key);
+				if (ranges != null && ranges.busy) {
+					/* Wait to see whether the lock file was taken */
+					await(stripe, 0);
+					continue;
+				}
+				if (ranges != null && conflicts(ranges, lock)) {
+					if (!wait)
+						return null;
+					await(stripe, 0);
+					continue;
+				}
+				if (ranges == null) {
+					ranges = new Ranges();
+					stripe.paths.put(key, ranges);
+				}
+				add(ranges, lock);
+				if (!lockFiles || ranges.lockFile)
+					return lock;
+
+				/*
+				 * Reserve the range while the lock file is taken, so that other files
+				 * in the stripe are not held up by the backend
+				 */
+				ranges.busy = true;
+				var locked = false;
+				stripe.lock.unlock();
+				try {
+					locked = lockFile(path);
+				} finally {
+					stripe.lock.lock();
+					ranges.busy = false;
+					stripe.released.signalAll();
+					if (locked)
+						ranges.lockFile = true;
+					else if (remove(ranges, lock) == 0)
+						stripe.paths.remove(key);
+				}
+				if (locked)
+					return lock;
+				/* Someone else has the file, check again later */
+				if (!wait)
+					return null;
+				await(stripe, LOCK_FILE_POLL);
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+	}
+
+	/**
+	 * Release all locks held by a channel on a file, when the channel is closed.
+	 * 
+	 * @param channel channel
+	 * @param path    path of the file
+	 * @throws IOException on error
+	 */
+	void release(FileChannel channel, Path path) throws IOException {
+		var key = path.toAbsolutePath().normalize().toString();
+		var stripe = stripe(key);
+		var held = new ArrayList<RangeLock>();
+		stripe.lock.lock();
+		try {
+			var ranges = stripe.paths.get(key);
+			if (ranges == null)
+				return;
+			for (var locks : ranges.byPosition.values()) {
+				for (var lock : locks) {
+					if (lock.channel() == channel)
+						held.add(lock);
+				}
+			}
+		} finally {
+			stripe.lock.unlock();
+		}
+		for (var lock : held)
+			release(lock);
+	}
+
+	private void release(RangeLock lock) throws IOException {
+		var key = lock.key;
+		var stripe = stripe(key);
+		Ranges ranges;
+		stripe.lock.lock();
+		try {
+			if (!lock.valid)
+				return;
+			lock.valid = false;
+			ranges = stripe.paths.get(key);
+			stripe.released.signalAll();
+			if (remove(ranges, lock) > 0)
+				return;
+			if (!ranges.lockFile) {
+				stripe.paths.remove(key);
+				return;
+			}
+			/* Keep anyone else out until the lock file has gone */
+			ranges.lockFile = false;
+			ranges.busy = true;
+		} finally {
+			stripe.lock.unlock();
+		}
+		try {
+			unlockFile(lock.path);
+		} finally {
+			stripe.lock.lock();
+			try {
+				ranges.busy = false;
+				if (ranges.count == 0)
+					stripe.paths.remove(key);
+				stripe.released.signalAll();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	private static void add(Ranges ranges, RangeLock lock) {
+		ranges.byPosition.computeIfAbsent(lock.position(), k -> new ArrayList<>(1)).add(lock);
+		ranges.lengths.merge(lock.end - lock.position(), 1, Integer::sum);
+		ranges.count++;
+	}
+
+	private static int remove(Ranges ranges, RangeLock lock) {
+		var locks = ranges.byPosition.get(lock.position());
+		locks.remove(lock);
+		if (locks.isEmpty())
+			ranges.byPosition.remove(lock.position());
+		ranges.lengths.computeIfPresent(lock.end - lock.position(), (k, v) -> v == 1 ? null : v - 1);
+		return --ranges.count;
+	}
+
+	private Stripe stripe(String key) {
+		var h = key.hashCode();
+		return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+	}
+
+	private static boolean conflicts(Ranges ranges, RangeLock lock) {
+		/* Only locks starting within the longest lock of this one can overlap it */
+		var longest = ranges.lengths.isEmpty() ? 0 : ranges.lengths.lastKey();
+		var from = Math.max(0, lock.position() - longest);
+		for (var locks : ranges.byPosition.subMap(from, true, lock.end, false).values()) {
+			for (var other : locks) {
+				if (other.end <= lock.position())
+					continue;
+				if (other.channel() == lock.channel())
+					throw new OverlappingFileLockException();
+				if (!lock.isShared() || !other.isShared())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static void await(Stripe stripe, long nanos) throws IOException {
+		try {
+			if (nanos == 0)
+				stripe.released.await();
+			else
+				stripe.released.awaitNanos(nanos);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FileLockInterruptionException();
+		}
+	}
+
+	private boolean lockFile(Path path) throws IOException {
+		var lockPath = toLockPath(path);
+		var fo = ((Vfs2NioPath) lockPath).toFileObject();
+		try {
+			fo.refresh();
+			if (fo.exists()) {
+				var content = fo.getContent();
+				if (lockFileTimeout < 1
+						|| System.currentTimeMillis() - content.getLastModifiedTime() < lockFileTimeout)
+					return false;
+				/* Abandoned */
+				fo.delete();
+			}
+			var local = Vfs2NioFileSystemProvider.toLocalPath(fo);
+			if (local != null) {
+				try (var out = Files.newOutputStream(local, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+					out.write(owner.getBytes(StandardCharsets.UTF_8));
+					return true;
+				} catch (FileAlreadyExistsException e) {
+					return false;
+				}
+			}
+			try (var out = fo.getContent().getOutputStream()) {
+				out.write(owner.getBytes(StandardCharsets.UTF_8));
+			}
+			/*
+			 * Anyone else who saw no lock file may overwrite it, so give them time
+			 * to do so before reading back who has it
+			 */
+			try {
+				Thread.sleep(LOCK_FILE_SETTLE);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FileLockInterruptionException();
+			}
+			fo.refresh();
+			try (var in = fo.getContent().getInputStream()) {
+				return owner.equals(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		} finally {
+			((Vfs2NioPath) lockPath).getFileSystem().invalidate(lockPath);
+		}
+	}
+
+	private void unlockFile(Path path) throws IOException {
+		var lockPath = toLockPath(path);
+		try {
+			((Vfs2NioPath) lockPath).toFileObject().delete();
+		} finally {
+			((Vfs2NioPath) lockPath).getFileSystem().invalidate(lockPath);
+		}
+	}
+
+	private static Path toLockPath(Path path) {
+		return path.resolveSibling(path.getFileName() + ".lock");
+	}
+}
@@ -0,0 +1,629 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+import org.apache.commons.vfs2.FileType;
+
+/**
+ * An in-memory index of the path, size, modification time and type of every
+ * file in a tree, allowing searches to be made without contacting the backend.
+ * <p>
+ * Metadata is stored in columns (a sorted array of paths, with parallel
+ * primitive arrays for everything else), so even very large trees take up
+ * little more memory than the path names themselves. Paths are sorted with the
+ * separator before any other character, so every sub-tree occupies a
+ * contiguous range of the index immediately following its directory.
+ * <p>
+ * The index is built by listing directories in parallel, and may be brought
+ * up to date by {@link #refresh()}, which only re-lists directories whose
+ * modification time has changed, or by {@link #refresh(Path)} for a single
+ * directory (for example, in response to a {@link java.nio.file.WatchEvent}).
+ * It may also be saved to and loaded from a local file.
+ */
+public class Vfs2NioMetadataIndex {
+	final static byte TYPE_FILE = 0;
+	final static byte TYPE_DIRECTORY = 1;
+	final static byte TYPE_OTHER = 2;
+
+	/**
+	 * The modification time of a directory whose children have changed since
+	 * it was last listed
+	 */
+	private final static long STALE = -1;
+
+	private final static int MAGIC = 0x5646534e;
+	private final static int VERSION = 1;
+
+	private final static class Entry implements Comparable<Entry> {
+		final String path;
+		final long size;
+		final long modified;
+		final byte type;
+
+		Entry(String path, long size, long modified, byte type) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.type = type;
+		}
+
+		@Override
+		public int compareTo(Entry o) {
+			return comparePaths(path, o.path);
+		}
+	}
+
+	private final static class Columns {
+		final String[] paths;
+		final long[] sizes;
+		final long[] modified;
+		final byte[] types;
+
+		Columns(int size) {
+			paths = new String[size];
+			sizes = new long[size];
+			modified = new long[size];
+			types = new byte[size];
+		}
+
+		Columns(List<Entry> entries) {
+			this(entries.size());
+			for (int i = 0; i < paths.length; i++)
+				set(i, entries.get(i));
+		}
+
+		void set(int i, Entry e) {
+			paths[i] = e.path;
+			sizes[i] = e.size;
+			modified[i] = e.modified;
+			types[i] = e.type;
+		}
+
+		Entry get(int i) {
+			return new Entry(paths[i], sizes[i], modified[i], types[i]);
+		}
+
+		int indexOf(String path) {
+			return Arrays.binarySearch(paths, path, Vfs2NioMetadataIndex::comparePaths);
+		}
+
+		/**
+		 * Get the index after the last entry in the sub-tree that starts at the
+		 * given index.
+		 */
+		int endOfTree(int index) {
+			var prefix = childPrefix(paths[index]);
+			var end = Arrays.binarySearch(paths, index + 1, paths.length, prefix + Character.MAX_VALUE,
+					Vfs2NioMetadataIndex::comparePaths);
+			return end < 0 ? -end - 1 : end;
+		}
+	}
+
+	private final Vfs2NioFileSystem fs;
+	private final String root;
+	private volatile Columns columns = new Columns(0);
+
+	/*
+	 * A refresh lists directories from a snapshot without holding any lock, so
+	 * while any are running, invalidations are recorded along with a generation
+	 * number. A refresh that started before an invalidation leaves what it did
+	 * alone
+	 */
+	private final AtomicLong generation = new AtomicLong();
+	private final ConcurrentHashMap<String, Long> invalidatedTrees = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Long> invalidatedEntries = new ConcurrentHashMap<>();
+	private int refreshing;
+
+	Vfs2NioMetadataIndex(Vfs2NioFileSystem fs, Path root) {
+		this.fs = fs;
+		this.root = root.toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Get the root of the indexed tree.
+	 * 
+	 * @return root
+	 */
+	public Path getRoot() {
+		return fs.getPath(root);
+	}
+
+	/**
+	 * Get the number of files and directories in the index.
+	 * 
+	 * @return size
+	 */
+	public int size() {
+		return columns.paths.length;
+	}
+
+	/**
+	 * Get whether a path is in the index.
+	 * 
+	 * @param path path
+	 * @return indexed
+	 */
+	public boolean contains(Path path) {
+		return columns.indexOf(key(path)) >= 0;
+	}
+
+	/**
+	 * Get the indexed attributes of a path.
+	 * 
+	 * @param path path
+	 * @return attributes or <code>null</code> if the path is not in the index,
+	 *         or is a directory whose children have changed since it was last
+	 *         listed
+	 */
+	public Vfs2NioFileAttributes getAttributes(Path path) {
+		var cols = columns;
+		var idx = cols.indexOf(key(path));
+		return idx < 0 || cols.modified[idx] == STALE ? null : attributes(cols, idx);
+	}
+
+	/**
+	 * Get the indexed children of a directory.
+	 * 
+	 * @param dir directory
+	 * @return children, or <code>null</code> if the directory is not in the
+	 *         index, or its children have changed since it was last listed
+	 */
+	public List<Path> getChildren(Path dir) {
+		var cols = columns;
+		var idx = cols.indexOf(key(dir));
+		if (idx < 0 || cols.types[idx] != TYPE_DIRECTORY || cols.modified[idx] == STALE)
+			return null;
+		var l = new ArrayList<Path>();
+		var depth = depth(cols.paths[idx]);
+		var end = cols.endOfTree(idx);
+		for (int i = idx + 1; i < end; i++) {
+			if (depth(cols.paths[i]) == depth + 1)
+				l.add(fs.getPath(cols.paths[i]));
+		}
+		return l;
+	}
+
+	/**
+	 * Search the index, in the same way as
+	 * {@link Files#find(Path, int, BiPredicate, java.nio.file.FileVisitOption...)}.
+	 * 
+	 * @param start    starting directory
+	 * @param maxDepth maximum number of directory levels to search
+	 * @param matcher  function to decide if a path should be included
+	 * @return stream of matching paths
+	 */
+	public Stream<Path> find(Path start, int maxDepth, BiPredicate<Path, BasicFileAttributes> matcher) {
+		var cols = columns;
+		var idx = cols.indexOf(key(start));
+		if (idx < 0)
+			return Stream.empty();
+		var depth = depth(cols.paths[idx]);
+		var end = cols.endOfTree(idx);
+		return IntStream.range(idx, end).filter(i -> depth(cols.paths[i]) - depth <= maxDepth).<Path>mapToObj(i -> {
+			var p = fs.getPath(cols.paths[i]);
+			return matcher.test(p, attributes(cols, i)) ? p : null;
+		}).filter(p -> p != null);
+	}
+
+	/**
+	 * Re-build the index from scratch by listing every directory.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void build() throws IOException {
+		var entries = new ConcurrentLinkedQueue<Entry>();
+		var rootObj = fs.pathToFileObject(fs.getPath(root));
+		rootObj.refresh();
+		var rootEntry = entry(rootObj);
+		entries.add(rootEntry);
+		if (rootEntry.type == TYPE_DIRECTORY)
+			fs.invoke(new Crawl(rootObj, entries));
+		var l = new ArrayList<>(entries);
+		Collections.sort(l);
+		columns = new Columns(l);
+	}
+
+	/**
+	 * Bring the index up to date. The modification time of every indexed
+	 * directory is checked (in parallel), and those that have changed are listed
+	 * again. Note that on most file systems, changing the content of a file does
+	 * not change the modification time of its directory, so only added, removed
+	 * and renamed files will be detected.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void refresh() throws IOException {
+		var cols = columns;
+		if (cols.paths.length == 0) {
+			build();
+			return;
+		}
+		var changed = ConcurrentHashMap.<String>newKeySet();
+		fs.invoke(ForkJoinTask.adapt(() -> IntStream.range(0, cols.paths.length).parallel()
+				.filter(i -> cols.types[i] == TYPE_DIRECTORY).forEach(i -> {
+					try {
+						var fo = fs.pathToFileObject(fs.getPath(cols.paths[i]));
+						fo.refresh();
+						if (!fo.exists() || fo.getContent().getLastModifiedTime() != cols.modified[i])
+							changed.add(cols.paths[i]);
+					} catch (FileSystemException e) {
+						changed.add(cols.paths[i]);
+					}
+				})));
+		refreshDirectories(changed);
+	}
+
+	/**
+	 * Bring a single directory of the index up to date by listing it again.
+	 * 
+	 * @param dir directory
+	 * @throws IOException on error
+	 */
+	public void refresh(Path dir) throws IOException {
+		refreshDirectories(Collections.singleton(key(dir)));
+	}
+
+	/**
+	 * Forget about a path (and everything beneath it), so that the next
+	 * {@link #refresh()} will find it again. Its parent is marked as stale, so
+	 * that its children are listed from the backend until then. Called by the
+	 * provider when it modifies a file.
+	 * 
+	 * @param path path
+	 */
+	void invalidate(Path path) {
+		var k = key(path);
+		var gen = generation.incrementAndGet();
+		var parent = parentKey(k);
+		if (isRefreshing()) {
+			invalidatedTrees.put(k, gen);
+			if (parent != null)
+				invalidatedEntries.put(parent, gen);
+		}
+		var cols = columns;
+		var removed = new HashSet<String>();
+		var added = new ArrayList<Entry>();
+		if (cols.indexOf(k) >= 0)
+			removed.add(k);
+		/* Force the parent to be listed again on the next refresh */
+		var pidx = parent == null ? -1 : cols.indexOf(parent);
+		if (pidx >= 0) {
+			removed.add(parent);
+			added.add(new Entry(parent, cols.sizes[pidx], STALE, cols.types[pidx]));
+		}
+		if (!removed.isEmpty())
+			apply(removed, Collections.singleton(k), added, -1);
+	}
+
+	/**
+	 * Save the index to a local file.
+	 * 
+	 * @param file file
+	 * @throws IOException on error
+	 */
+	public void save(Path file) throws IOException {
+		var cols = columns;
+		try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 65536))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(root);
+			out.writeInt(cols.paths.length);
+			for (int i = 0; i < cols.paths.length; i++) {
+				out.writeUTF(cols.paths[i]);
+				out.writeLong(cols.sizes[i]);
+				out.writeLong(cols.modified[i]);
+				out.writeByte(cols.types[i]);
+			}
+		}
+	}
+
+	/**
+	 * Replace the contents of this index with those previously saved to a local
+	 * file. It is advisable to {@link #refresh()} afterwards.
+	 * 
+	 * @param file file
+	 * @throws IOException on error, or if the file is not an index of the same
+	 *                     root
+	 */
+	public void load(Path file) throws IOException {
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(String.format("%s is not an index file.", file));
+			var fileRoot = in.readUTF();
+			if (!fileRoot.equals(root))
+				throw new IOException(String.format("%s is an index of %s, not %s.", file, fileRoot, root));
+			var cols = new Columns(in.readInt());
+			for (int i = 0; i < cols.paths.length; i++)
+				cols.set(i, new Entry(in.readUTF(), in.readLong(), in.readLong(), in.readByte()));
+			columns = cols;
+		}
+	}
+
+	private void refreshDirectories(Set<String> dirs) throws IOException {
+		if (dirs.isEmpty())
+			return;
+		synchronized (this) {
+			refreshing++;
+		}
+		try {
+			refreshDirectories(dirs, generation.get());
+		} finally {
+			synchronized (this) {
+				if (--refreshing == 0) {
+					invalidatedTrees.clear();
+					invalidatedEntries.clear();
+				}
+			}
+		}
+	}
+
+	private void refreshDirectories(Set<String> dirs, long gen) throws IOException {
+		var cols = columns;
+		var removed = ConcurrentHashMap.<String>newKeySet();
+		var removedTrees = ConcurrentHashMap.<String>newKeySet();
+		var added = new ConcurrentLinkedQueue<Entry>();
+		fs.invoke(ForkJoinTask.adapt(() -> dirs.parallelStream().forEach(dir -> {
+			try {
+				var idx = cols.indexOf(dir);
+				var fo = fs.pathToFileObject(fs.getPath(dir));
+				fo.refresh();
+				if (!fo.exists() || !fo.isFolder()) {
+					if (idx >= 0) {
+						removed.add(dir);
+						removedTrees.add(dir);
+					}
+					if (fo.exists())
+						added.add(entry(fo));
+					return;
+				}
+				/* The directory itself */
+				var dirEntry = entry(fo);
+				if (idx >= 0)
+					removed.add(dir);
+				added.add(dirEntry);
+
+				/* Existing children */
+				var was = new HashMap<String, Integer>();
+				if (idx >= 0) {
+					var depth = depth(dir);
+					var end = cols.endOfTree(idx);
+					for (int i = idx + 1; i < end; i++) {
+						if (depth(cols.paths[i]) == depth + 1)
+							was.put(cols.paths[i], i);
+					}
+				}
+
+				/* Current children */
+				for (var child : fo.getChildren()) {
+					var childEntry = entry(child);
+					var cidx = was.remove(childEntry.path);
+					if (cidx == null) {
+						added.add(childEntry);
+						if (childEntry.type == TYPE_DIRECTORY)
+							new Crawl(child, added).invoke();
+					} else if (cols.types[cidx] != childEntry.type || cols.sizes[cidx] != childEntry.size
+							|| cols.modified[cidx] != childEntry.modified) {
+						removed.add(childEntry.path);
+						if (cols.types[cidx] != childEntry.type) {
+							removedTrees.add(childEntry.path);
+							if (childEntry.type == TYPE_DIRECTORY)
+								new Crawl(child, added).invoke();
+						}
+						added.add(childEntry);
+					}
+				}
+
+				/* Anything left has been deleted */
+				for (var gone : was.keySet()) {
+					removed.add(gone);
+					removedTrees.add(gone);
+				}
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		})));
+		apply(removed, removedTrees, new ArrayList<>(added), gen);
+	}
+
+	private synchronized boolean isRefreshing() {
+		return refreshing > 0;
+	}
+
+	/**
+	 * Get whether a path has been invalidated since a refresh that started at
+	 * the given generation, so what the refresh found is out of date.
+	 */
+	private boolean isInvalidatedSince(String path, long gen) {
+		var g = invalidatedEntries.get(path);
+		if (g != null && g > gen)
+			return true;
+		for (var p = path; p != null; p = parentKey(p)) {
+			g = invalidatedTrees.get(p);
+			if (g != null && g > gen)
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized void apply(Set<String> removed, Set<String> removedTrees, List<Entry> added, long gen) {
+		if (gen != -1 && !(invalidatedTrees.isEmpty() && invalidatedEntries.isEmpty())) {
+			/* Keep whatever invalidations since the refresh started left */
+			removed.removeIf(p -> isInvalidatedSince(p, gen));
+			removedTrees.removeIf(p -> isInvalidatedSince(p, gen));
+			added.removeIf(e -> isInvalidatedSince(e.path, gen));
+		}
+		var cols = columns;
+		Collections.sort(added);
+		/* A directory may be added both by itself and as a child of its parent */
+		for (int k = added.size() - 1; k > 0; k--) {
+			if (added.get(k).path.equals(added.get(k - 1).path))
+				added.remove(k);
+		}
+		var l = new ArrayList<Entry>(cols.paths.length + added.size());
+		int i = 0, j = 0;
+		while (i < cols.paths.length || j < added.size()) {
+			if (i < cols.paths.length && removed.contains(cols.paths[i])) {
+				i = removedTrees.contains(cols.paths[i]) ? cols.endOfTree(i) : i + 1;
+				continue;
+			}
+			int c;
+			if (i == cols.paths.length)
+				c = 1;
+			else if (j == added.size())
+				c = -1;
+			else
+				c = comparePaths(cols.paths[i], added.get(j).path);
+			if (c < 0)
+				l.add(cols.get(i++));
+			else if (c > 0)
+				l.add(added.get(j++));
+			else {
+				l.add(added.get(j++));
+				i++;
+			}
+		}
+		columns = new Columns(l);
+	}
+
+	private Vfs2NioFileAttributes attributes(Columns cols, int idx) {
+		FileType type;
+		switch (cols.types[idx]) {
+		case TYPE_FILE:
+			type = FileType.FILE;
+			break;
+		case TYPE_DIRECTORY:
+			type = FileType.FOLDER;
+			break;
+		default:
+			type = FileType.IMAGINARY;
+			break;
+		}
+		return new Vfs2NioFileAttributes(null, type, cols.sizes[idx], cols.modified[idx]);
+	}
+
+	private String key(Path path) {
+		return Vfs2NioFileSystemProvider.toVFSPath(path).toAbsolutePath().normalize().toString();
+	}
+
+	/**
+	 * Compare two paths, treating the separator as less than any other
+	 * character.
+	 */
+	static int comparePaths(String p1, String p2) {
+		var n = Math.min(p1.length(), p2.length());
+		for (int i = 0; i < n; i++) {
+			var c1 = p1.charAt(i);
+			var c2 = p2.charAt(i);
+			if (c1 != c2) {
+				if (c1 == '/')
+					return -1;
+				if (c2 == '/')
+					return 1;
+				return c1 - c2;
+			}
+		}
+		return p1.length() - p2.length();
+	}
+
+	private static String childPrefix(String path) {
+		return path.endsWith("/") ? path : path + "/";
+	}
+
+	private static String parentKey(String path) {
+		var idx = path.lastIndexOf('/');
+		return idx < 1 ? (path.length() > 1 ? "/" : null) : path.substring(0, idx);
+	}
+
+	private static int depth(String path) {
+		int d = 0;
+		for (int i = 0; i < path.length(); i++) {
+			if (path.charAt(i) == '/')
+				d++;
+		}
+		return path.length() > 1 ? d : 0;
+	}
+
+	private static Entry entry(FileObject fo) throws FileSystemException {
+		var type = fo.getType();
+		byte t;
+		long size = 0;
+		long modified = 0;
+		if (type == FileType.FILE) {
+			t = TYPE_FILE;
+			size = fo.getContent().getSize();
+			modified = fo.getContent().getLastModifiedTime();
+		} else if (type.hasChildren()) {
+			t = TYPE_DIRECTORY;
+			modified = fo.getContent().getLastModifiedTime();
+		} else
+			t = TYPE_OTHER;
+		return new Entry(fo.getName().getPath(), size, modified, t);
+	}
+
+	@SuppressWarnings("serial")
+	private final static class Crawl extends RecursiveAction {
+		private final FileObject dir;
+		private final ConcurrentLinkedQueue<Entry> entries;
+
+		Crawl(FileObject dir, ConcurrentLinkedQueue<Entry> entries) {
+			this.dir = dir;
+			this.entries = entries;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				var subdirs = new ArrayList<Crawl>();
+				for (var child : dir.getChildren()) {
+					var e = entry(child);
+					entries.add(e);
+					if (e.type == TYPE_DIRECTORY)
+						subdirs.add(new Crawl(child, entries));
+				}
+				invokeAll(subdirs);
+			} catch (FileSystemException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per file system operation counters and latency histograms. Metrics are only
+ * collected when the file system is created with the
+ * {@link Vfs2NioFileSystemProvider#METRICS} option, and are then available from
+ * {@link Vfs2NioFileSystem#getMetrics()} and as a JMX MXBean named
+ * <code>com.sshtools.vfs2nio:type=FileSystem,scheme=&lt;scheme&gt;,name=&lt;uri&gt;</code>.
+ */
+public class Vfs2NioMetrics implements Vfs2NioMetricsMXBean {
+	private final String scheme;
+	private final Vfs2NioLatencyHistogram[] histograms;
+	private final LongAdder bytesRead = new LongAdder();
+	private final LongAdder bytesWritten = new LongAdder();
+	private final LongAdder deltaBytesSaved = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder hedged = new LongAdder();
+	private ObjectName objectName;
+
+	Vfs2NioMetrics(String scheme) {
+		this.scheme = scheme;
+		var ops = Vfs2NioOperation.values();
+		histograms = new Vfs2NioLatencyHistogram[ops.length];
+		for (int i = 0; i < ops.length; i++)
+			histograms[i] = new Vfs2NioLatencyHistogram();
+	}
+
+	@Override
+	public String getScheme() {
+		return scheme;
+	}
+
+	@Override
+	public long getBytesRead() {
+		return bytesRead.sum();
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten.sum();
+	}
+
+	@Override
+	public long getDeltaBytesSaved() {
+		return deltaBytesSaved.sum();
+	}
+
+	@Override
+	public long getCoalescedLookups() {
+		return coalesced.sum();
+	}
+
+	@Override
+	public long getHedgedRequests() {
+		return hedged.sum();
+	}
+
+	public Vfs2NioLatencyHistogram getHistogram(Vfs2NioOperation operation) {
+		return histograms[operation.ordinal()];
+	}
+
+	public Vfs2NioOperationStats getStats(Vfs2NioOperation operation) {
+		return new Vfs2NioOperationStats(operation, scheme, getHistogram(operation));
+	}
+
+	@Override
+	public List<Vfs2NioOperationStats> getOperations() {
+		var l = new ArrayList<Vfs2NioOperationStats>();
+		for (var op : Vfs2NioOperation.values())
+			l.add(getStats(op));
+		return l;
+	}
+
+	@Override
+	public void reset() {
+		for (var h : histograms)
+			h.reset();
+		bytesRead.reset();
+		bytesWritten.reset();
+		deltaBytesSaved.reset();
+		coalesced.reset();
+		hedged.reset();
+	}
+
+	void record(Vfs2NioOperation operation, long nanos, long bytes) {
+		histograms[operation.ordinal()].record(nanos);
+		if (bytes > 0) {
+			if (operation == Vfs2NioOperation.READ)
+				bytesRead.add(bytes);
+			else if (operation == Vfs2NioOperation.WRITE)
+				bytesWritten.add(bytes);
+		}
+	}
+
+	void recordDeltaSaved(long bytes) {
+		deltaBytesSaved.add(bytes);
+	}
+
+	void recordCoalesced() {
+		coalesced.increment();
+	}
+
+	void recordHedged() {
+		hedged.increment();
+	}
+
+	void register(URI uri) {
+		try {
+			/* Never expose credentials in the MBean name */
+			var name = uri.getUserInfo() == null ? uri
+					: new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(),
+							uri.getFragment());
+			var on = new ObjectName(String.format("com.sshtools.vfs2nio:type=FileSystem,scheme=%s,name=%s", scheme,
+					ObjectName.quote(name.toString())));
+			var server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(on)) {
+				server.registerMBean(this, on);
+				objectName = on;
+			}
+		} catch (JMException | URISyntaxException e) {
+			// Metrics are still available programmatically
+		}
+	}
+
+	void unregister() {
+		if (objectName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+			} catch (JMException e) {
+			}
+			objectName = null;
+		}
+	}
+}
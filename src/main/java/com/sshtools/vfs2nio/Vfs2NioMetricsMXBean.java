@@ -0,0 +1,60 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.util.List;
+
+/**
+ * JMX view of the {@link Vfs2NioMetrics} of a single {@link Vfs2NioFileSystem}.
+ */
+public interface Vfs2NioMetricsMXBean {
+
+	String getScheme();
+
+	long getBytesRead();
+
+	long getBytesWritten();
+
+	/**
+	 * Get the number of bytes that did not need to be written by
+	 * {@link Vfs2NioCopyOption#DELTA} copies, because the target already
+	 * contained them.
+	 * 
+	 * @return bytes saved
+	 */
+	long getDeltaBytesSaved();
+
+	/**
+	 * Get the number of metadata lookups (existence checks, attribute reads and
+	 * directory listings) that were answered by sharing the result of an
+	 * identical lookup already in progress, rather than going to the backend.
+	 * 
+	 * @return coalesced lookups
+	 */
+	long getCoalescedLookups();
+
+	/**
+	 * Get the number of duplicate requests made because the first was slow. See
+	 * {@link Vfs2NioFileSystemProvider#HEDGE_PERCENTILE}.
+	 * 
+	 * @return hedged requests
+	 */
+	long getHedgedRequests();
+
+	List<Vfs2NioOperationStats> getOperations();
+
+	void reset();
+}
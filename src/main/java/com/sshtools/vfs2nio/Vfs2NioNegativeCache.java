@@ -0,0 +1,91 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers paths that were recently found not to exist, so that repeated
+ * probes for missing files can be answered without contacting the backend.
+ * Entries expire after a fixed time, and are removed as soon as the path (or
+ * a parent of it) is created or written through the provider.
+ * <p>
+ * A lookup that started before an invalidation may finish after it. To avoid
+ * such a lookup caching a result that is already out of date, the caller takes
+ * the {@link #generation()} before the lookup and passes it back to
+ * {@link #missing(String, long)}, which ignores it if anything has been
+ * invalidated since.
+ */
+final class Vfs2NioNegativeCache {
+	private final long ttl;
+	private final int maxSize;
+	private final ConcurrentHashMap<String, Long> missing = new ConcurrentHashMap<>();
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param ttl     how long in milliseconds to remember a missing path
+	 * @param maxSize maximum number of paths to remember
+	 */
+	Vfs2NioNegativeCache(long ttl, int maxSize) {
+		this.ttl = ttl * 1000000l;
+		this.maxSize = maxSize;
+	}
+
+	long generation() {
+		return generation.get();
+	}
+
+	boolean isMissing(String path) {
+		var expires = missing.get(path);
+		if (expires == null)
+			return false;
+		if (System.nanoTime() - expires < 0)
+			return true;
+		missing.remove(path, expires);
+		return false;
+	}
+
+	void missing(String path, long generation) {
+		if (this.generation.get() != generation)
+			return;
+		if (missing.size() >= maxSize)
+			purge();
+		var expires = Long.valueOf(System.nanoTime() + ttl);
+		missing.put(path, expires);
+		/* An invalidation may have happened while adding */
+		if (this.generation.get() != generation)
+			missing.remove(path, expires);
+	}
+
+	void invalidate(String path) {
+		generation.incrementAndGet();
+		if (missing.isEmpty())
+			return;
+		missing.remove(path);
+		var prefix = path.endsWith("/") ? path : path + "/";
+		missing.keySet().removeIf(k -> k.startsWith(prefix));
+	}
+
+	private void purge() {
+		var now = System.nanoTime();
+		missing.values().removeIf(expires -> now - expires >= 0);
+		if (missing.size() >= maxSize)
+			missing.clear();
+	}
+}
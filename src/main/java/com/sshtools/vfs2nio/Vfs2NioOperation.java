@@ -0,0 +1,23 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+/**
+ * The kinds of backend interaction that are instrumented by the provider.
+ */
+public enum Vfs2NioOperation {
+	CHECK_ACCESS, RESOLVE, LIST, READ_ATTRIBUTES, OPEN, READ, WRITE, COPY, MOVE, DELETE, CREATE_DIRECTORY
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.Path;
+
+/**
+ * Receives notification before and after every interaction with the backend.
+ * Register with a file system using the
+ * {@link Vfs2NioFileSystemProvider#LISTENERS} option.
+ * <p>
+ * Listeners are called synchronously on the thread performing the operation,
+ * so should return quickly. Operations may nest, for example a
+ * {@link Vfs2NioOperation#RESOLVE} will happen inside a
+ * {@link Vfs2NioOperation#CHECK_ACCESS}.
+ */
+public interface Vfs2NioOperationListener {
+
+	/**
+	 * An operation is about to start.
+	 * 
+	 * @param operation operation
+	 * @param path      path
+	 */
+	default void operationStarted(Vfs2NioOperation operation, Path path) {
+	}
+
+	/**
+	 * An operation has finished, successfully or not.
+	 * 
+	 * @param operation operation
+	 * @param path      path
+	 * @param bytes     number of bytes transferred, if any
+	 * @param elapsed   elapsed time in nanoseconds
+	 */
+	void operationFinished(Vfs2NioOperation operation, Path path, long bytes, long elapsed);
+}
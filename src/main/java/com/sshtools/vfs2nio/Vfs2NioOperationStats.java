@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+/**
+ * An immutable snapshot of the statistics for a single
+ * {@link Vfs2NioOperation} on a single file system. All times are in
+ * nanoseconds.
+ */
+public final class Vfs2NioOperationStats {
+	private final String operation;
+	private final String scheme;
+	private final long count;
+	private final long totalTime;
+	private final long meanTime;
+	private final long maxTime;
+	private final long p50Time;
+	private final long p90Time;
+	private final long p99Time;
+
+	Vfs2NioOperationStats(Vfs2NioOperation operation, String scheme, Vfs2NioLatencyHistogram histogram) {
+		this.operation = operation.name();
+		this.scheme = scheme;
+		this.count = histogram.getCount();
+		this.totalTime = histogram.getTotal();
+		this.meanTime = histogram.getMean();
+		this.maxTime = histogram.getMax();
+		this.p50Time = histogram.getValueAtPercentile(50);
+		this.p90Time = histogram.getValueAtPercentile(90);
+		this.p99Time = histogram.getValueAtPercentile(99);
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getScheme() {
+		return scheme;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getTotalTime() {
+		return totalTime;
+	}
+
+	public long getMeanTime() {
+		return meanTime;
+	}
+
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	public long getP50Time() {
+		return p50Time;
+	}
+
+	public long getP90Time() {
+		return p90Time;
+	}
+
+	public long getP99Time() {
+		return p99Time;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s[%s] count=%d mean=%dns p50=%dns p90=%dns p99=%dns max=%dns", operation, scheme, count,
+				meanTime, p50Time, p90Time, p99Time, maxTime);
+	}
+}
@@ -20,6 +20,10 @@ import java.nio.file.FileStore;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.nio.file.attribute.FileTime;
 import java.util.Map;
 
@@ -40,6 +44,16 @@ public class Vfs2NioPath extends BasePath<Vfs2NioPath, Vfs2NioFileSystem, Vfs2Ni
 		return getFileSystem().pathToFileObject(this);
 	}
 
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+			throws IOException {
+		if (watcher == null)
+			throw new NullPointerException();
+		if (!(watcher instanceof Vfs2NioWatchService))
+			throw new ProviderMismatchException();
+		return ((Vfs2NioWatchService) watcher).register(this, events);
+	}
+
 	@Override
 	public Path toRealPath(LinkOption... options) throws IOException {
 		// TODO: handle links
@@ -79,6 +93,8 @@ public class Vfs2NioPath extends BasePath<Vfs2NioPath, Vfs2NioFileSystem, Vfs2Ni
 			view = attributes.substring(0, colonPos++);
 			attrs = attributes.substring(colonPos);
 		}
+		if (view.equals("posix") || view.equals("owner"))
+			return new Vfs2NioPosixFileAttributeView(this, view.equals("posix")).readAttributes(attrs);
 		var zfv = Vfs2NioFileAttributeView.get(this, view);
 		if (zfv == null) {
 			throw new UnsupportedOperationException("view not supported");
@@ -97,6 +113,10 @@ public class Vfs2NioPath extends BasePath<Vfs2NioPath, Vfs2NioFileSystem, Vfs2Ni
 			type = attribute.substring(0, colonPos++);
 			attr = attribute.substring(colonPos);
 		}
+		if (type.equals("posix") || type.equals("owner")) {
+			new Vfs2NioPosixFileAttributeView(this, type.equals("posix")).setAttribute(attr, value);
+			return;
+		}
 		var view = Vfs2NioFileAttributeView.get(this, type);
 		if (view == null)
 			throw new UnsupportedOperationException("view <" + view + "> is not supported");
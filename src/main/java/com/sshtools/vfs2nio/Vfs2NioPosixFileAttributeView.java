@@ -0,0 +1,423 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemException;
+
+/**
+ * The <strong>posix</strong> (and <strong>owner</strong>) attribute view. For
+ * local files this is the platform's own view. Otherwise, permissions, owner
+ * and group are taken from the Commons VFS content attributes
+ * (<code>permissions</code>, <code>mode</code>, <code>owner</code> and
+ * <code>group</code>) where the backend provides them. If it does not,
+ * permissions are derived from whether the file is readable, writable and
+ * executable by the connected user, and the owner and group are
+ * <code>null</code>.
+ * <p>
+ * Commons VFS can only set permissions for the owner or for everyone, so when
+ * setting them, a permission granted to the group or others is granted to
+ * everyone.
+ */
+final class Vfs2NioPosixFileAttributeView implements PosixFileAttributeView {
+	private static enum Attribute {
+		permissions, owner, group
+	};
+
+	/**
+	 * Principals on backends other than the local file system, which are just
+	 * names.
+	 */
+	final static class Principal implements GroupPrincipal {
+		private final String name;
+		private final boolean group;
+
+		Principal(String name, boolean group) {
+			this.name = name;
+			this.group = group;
+		}
+
+		@Override
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(group, name);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null || getClass() != obj.getClass())
+				return false;
+			var other = (Principal) obj;
+			return group == other.group && Objects.equals(name, other.name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	final static UserPrincipalLookupService LOOKUP = new UserPrincipalLookupService() {
+		@Override
+		public UserPrincipal lookupPrincipalByName(String name) throws IOException {
+			return new Principal(name, false);
+		}
+
+		@Override
+		public GroupPrincipal lookupPrincipalByGroupName(String group) throws IOException {
+			return new Principal(group, true);
+		}
+	};
+
+	private final static class Attributes implements PosixFileAttributes {
+		private final Vfs2NioFileAttributes basic;
+		private final UserPrincipal owner;
+		private final GroupPrincipal group;
+		private final Set<PosixFilePermission> permissions;
+
+		Attributes(Vfs2NioFileAttributes basic, FileObject fo) throws FileSystemException {
+			this.basic = basic;
+			var attrs = basic.attributes();
+			var owner = attrs.get("owner");
+			var group = attrs.get("group");
+			this.owner = owner == null ? null : new Principal(owner.toString(), false);
+			this.group = group == null ? null : new Principal(group.toString(), true);
+			var permissions = toPermissions(attrs.containsKey("permissions") ? attrs.get("permissions") : attrs.get("mode"));
+			if (permissions == null) {
+				permissions = EnumSet.noneOf(PosixFilePermission.class);
+				if (fo.isReadable())
+					permissions.add(PosixFilePermission.OWNER_READ);
+				if (fo.isWriteable())
+					permissions.add(PosixFilePermission.OWNER_WRITE);
+				if (fo.isExecutable())
+					permissions.add(PosixFilePermission.OWNER_EXECUTE);
+			}
+			this.permissions = Collections.unmodifiableSet(permissions);
+		}
+
+		@Override
+		public FileTime lastModifiedTime() {
+			return basic.lastModifiedTime();
+		}
+
+		@Override
+		public FileTime lastAccessTime() {
+			return basic.lastAccessTime();
+		}
+
+		@Override
+		public FileTime creationTime() {
+			return basic.creationTime();
+		}
+
+		@Override
+		public boolean isRegularFile() {
+			return basic.isRegularFile();
+		}
+
+		@Override
+		public boolean isDirectory() {
+			return basic.isDirectory();
+		}
+
+		@Override
+		public boolean isSymbolicLink() {
+			return basic.isSymbolicLink();
+		}
+
+		@Override
+		public boolean isOther() {
+			return basic.isOther();
+		}
+
+		@Override
+		public long size() {
+			return basic.size();
+		}
+
+		@Override
+		public Object fileKey() {
+			return basic.fileKey();
+		}
+
+		@Override
+		public UserPrincipal owner() {
+			return owner;
+		}
+
+		@Override
+		public GroupPrincipal group() {
+			return group;
+		}
+
+		@Override
+		public Set<PosixFilePermission> permissions() {
+			return permissions;
+		}
+	}
+
+	/**
+	 * Get the permissions to create a file or directory with, checking that all
+	 * of the attributes are supported before anything is created.
+	 * 
+	 * @param attrs attributes
+	 * @return permissions, or <code>null</code> if none were given
+	 */
+	static Set<PosixFilePermission> toCreatePermissions(FileAttribute<?>... attrs) {
+		Set<PosixFilePermission> permissions = null;
+		for (var attr : attrs) {
+			if (!attr.name().equals("posix:permissions"))
+				throw new UnsupportedOperationException(
+						String.format("'%s' cannot be set when creating a file.", attr.name()));
+			permissions = toPermissions(attr.value());
+		}
+		return permissions;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Set<PosixFilePermission> toPermissions(Object value) {
+		if (value == null)
+			return null;
+		if (value instanceof Collection)
+			return EnumSet.copyOf((Collection<PosixFilePermission>) value);
+		if (value instanceof Number) {
+			var mode = ((Number) value).intValue();
+			var permissions = EnumSet.noneOf(PosixFilePermission.class);
+			var all = PosixFilePermission.values();
+			for (var i = 0; i < all.length; i++) {
+				if ((mode & (0400 >> i)) != 0)
+					permissions.add(all[i]);
+			}
+			return permissions;
+		}
+		var str = value.toString();
+		/* May be prefixed with the type, as in 'drwxr-xr-x' */
+		return EnumSet.copyOf(PosixFilePermissions.fromString(str.substring(Math.max(0, str.length() - 9))));
+	}
+
+	private final Vfs2NioPath path;
+	private final boolean posix;
+
+	Vfs2NioPosixFileAttributeView(Vfs2NioPath path, boolean posix) {
+		this.path = path;
+		this.posix = posix;
+	}
+
+	@Override
+	public String name() {
+		return posix ? "posix" : "owner";
+	}
+
+	@Override
+	public PosixFileAttributes readAttributes() throws IOException {
+		var local = localView();
+		if (local != null)
+			return local.readAttributes();
+		var fo = path.toFileObject();
+		return new Attributes(path.getAttributes(), fo);
+	}
+
+	@Override
+	public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException {
+		path.setTimes(lastModifiedTime, lastAccessTime, createTime);
+	}
+
+	@Override
+	public UserPrincipal getOwner() throws IOException {
+		return readAttributes().owner();
+	}
+
+	@Override
+	public void setOwner(UserPrincipal owner) throws IOException {
+		var local = localView();
+		if (local != null)
+			local.setOwner(FileSystems.getDefault().getUserPrincipalLookupService()
+					.lookupPrincipalByName(owner.getName()));
+		else
+			setContentAttribute("owner", owner.getName());
+	}
+
+	@Override
+	public void setGroup(GroupPrincipal group) throws IOException {
+		var local = localView();
+		if (local != null)
+			local.setGroup(FileSystems.getDefault().getUserPrincipalLookupService()
+					.lookupPrincipalByGroupName(group.getName()));
+		else
+			setContentAttribute("group", group.getName());
+	}
+
+	@Override
+	public void setPermissions(Set<PosixFilePermission> perms) throws IOException {
+		var local = localView();
+		if (local != null) {
+			local.setPermissions(perms);
+			return;
+		}
+		var fs = path.getFileSystem();
+		fs.enter();
+		try {
+			setPermissions(path.toFileObject(), perms);
+			fs.invalidate(path);
+		} finally {
+			fs.exit();
+		}
+	}
+
+	/**
+	 * Set permissions on a file object using the readable, writable and
+	 * executable flags Commons VFS supports. Each of these is either granted to
+	 * everyone, granted to the owner only or revoked, so a permission granted to
+	 * either group or others is granted to both.
+	 * 
+	 * @param fo    file object
+	 * @param perms permissions
+	 * @throws IOException if the backend cannot set them, or cannot represent
+	 *                     them
+	 */
+	static void setPermissions(FileObject fo, Set<PosixFilePermission> perms) throws IOException {
+		if (!setPermission(fo, perms, fo::setReadable, PosixFilePermission.OWNER_READ, PosixFilePermission.GROUP_READ,
+				PosixFilePermission.OTHERS_READ)
+				|| !setPermission(fo, perms, fo::setWritable, PosixFilePermission.OWNER_WRITE,
+						PosixFilePermission.GROUP_WRITE, PosixFilePermission.OTHERS_WRITE)
+				|| !setPermission(fo, perms, fo::setExecutable, PosixFilePermission.OWNER_EXECUTE,
+						PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_EXECUTE))
+			throw new IOException(String.format("Permissions of %s cannot be set.", fo.getName().getPath()));
+	}
+
+	Map<String, Object> readAttributes(String attributes) throws IOException {
+		var attrs = readAttributes();
+		var map = new LinkedHashMap<String, Object>();
+		if ("*".equals(attributes)) {
+			map.put("owner", attrs.owner());
+			if (posix) {
+				map.put("group", attrs.group());
+				map.put("permissions", attrs.permissions());
+				map.putAll(Vfs2NioFileAttributeView.get(path, "basic").readAttributes("*"));
+			}
+		} else {
+			for (var a : attributes.split(",")) {
+				if (a.equals("owner"))
+					map.put(a, attrs.owner());
+				else if (posix && a.equals("group"))
+					map.put(a, attrs.group());
+				else if (posix && a.equals("permissions"))
+					map.put(a, attrs.permissions());
+				else if (posix)
+					map.putAll(Vfs2NioFileAttributeView.get(path, "basic").readAttributes(a));
+			}
+		}
+		return map;
+	}
+
+	@SuppressWarnings("unchecked")
+	void setAttribute(String attribute, Object value) throws IOException {
+		try {
+			switch (Attribute.valueOf(attribute)) {
+			case owner:
+				setOwner((UserPrincipal) value);
+				return;
+			case group:
+				if (posix) {
+					setGroup((GroupPrincipal) value);
+					return;
+				}
+				break;
+			case permissions:
+				if (posix) {
+					setPermissions((Set<PosixFilePermission>) value);
+					return;
+				}
+				break;
+			}
+		} catch (IllegalArgumentException x) {
+			if (posix) {
+				Vfs2NioFileAttributeView.get(path, "basic").setAttribute(attribute, value);
+				return;
+			}
+		}
+		throw new UnsupportedOperationException("'" + attribute + "' is unknown or read-only attribute");
+	}
+
+	private void setContentAttribute(String name, Object value) throws IOException {
+		var fs = path.getFileSystem();
+		fs.enter();
+		try {
+			path.toFileObject().getContent().setAttribute(name, value);
+			fs.invalidate(path);
+		} finally {
+			fs.exit();
+		}
+	}
+
+	private PosixFileAttributeView localView() {
+		Path local = Vfs2NioFileSystemProvider.toLocalPath(path.toFileObject());
+		return local == null ? null : Files.getFileAttributeView(local, PosixFileAttributeView.class);
+	}
+
+	private static boolean setPermission(FileObject fo, Set<PosixFilePermission> perms, Flag flag,
+			PosixFilePermission owner, PosixFilePermission... others) throws IOException {
+		var granted = perms.contains(owner);
+		if (has(perms, others)) {
+			if (!granted)
+				throw new IOException(String.format("%s cannot be granted without %s on %s.",
+						Arrays.toString(others), owner, fo.getName().getPath()));
+			return flag.set(true, false);
+		}
+		/* Granting to the owner only leaves everyone else's bit as it was */
+		return flag.set(false, false) && (!granted || flag.set(true, true));
+	}
+
+	private interface Flag {
+		boolean set(boolean value, boolean ownerOnly) throws FileSystemException;
+	}
+
+	private static boolean has(Set<PosixFilePermission> perms, PosixFilePermission... any) {
+		for (var p : any) {
+			if (perms.contains(p))
+				return true;
+		}
+		return false;
+	}
+}
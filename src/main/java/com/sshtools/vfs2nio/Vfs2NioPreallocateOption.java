@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.OpenOption;
+
+/**
+ * A hint, that may be passed when opening a file for writing, of how large the
+ * file is expected to become. Where the backend supports random access writes,
+ * space is reserved up front by extending the file, and any that was not used
+ * is released again when the file is closed. The hint is ignored for local
+ * files, which are opened directly by the platform.
+ * 
+ * <pre>
+ * try (var ch = FileChannel.open(path, Set.of(StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+ * 		Vfs2NioPreallocateOption.of(expectedSize)))) {
+ * 	// ...
+ * }
+ * </pre>
+ */
+public final class Vfs2NioPreallocateOption implements OpenOption {
+	private final long size;
+
+	private Vfs2NioPreallocateOption(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * Create a preallocation hint.
+	 * 
+	 * @param size expected size in bytes
+	 * @return option
+	 */
+	public static Vfs2NioPreallocateOption of(long size) {
+		if (size < 0)
+			throw new IllegalArgumentException("'size' is negative");
+		return new Vfs2NioPreallocateOption(size);
+	}
+
+	/**
+	 * Get the expected size in bytes.
+	 * 
+	 * @return size
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Find the size hinted by a preallocation option amongst others.
+	 * 
+	 * @param options options
+	 * @return size or <code>-1</code> if there is no preallocation option
+	 */
+	static long find(Iterable<? extends OpenOption> options) {
+		for (var opt : options) {
+			if (opt instanceof Vfs2NioPreallocateOption)
+				return ((Vfs2NioPreallocateOption) opt).size;
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return "PREALLOCATE(" + size + ")";
+	}
+}
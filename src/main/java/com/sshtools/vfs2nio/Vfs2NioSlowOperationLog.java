@@ -0,0 +1,189 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link Vfs2NioOperationListener} that keeps the slowest recent operations
+ * for diagnostics. A fixed number of entries is kept, with entries older than
+ * the window being replaced first, then the fastest entry being replaced by any
+ * slower operation. Operations faster than the current fastest retained entry
+ * are rejected without locking.
+ */
+public class Vfs2NioSlowOperationLog implements Vfs2NioOperationListener {
+
+	/**
+	 * A single recorded operation.
+	 */
+	public final static class Entry {
+		private final Vfs2NioOperation operation;
+		private final Path path;
+		private final long bytes;
+		private final long elapsed;
+		private final long timestamp;
+
+		Entry(Vfs2NioOperation operation, Path path, long bytes, long elapsed, long timestamp) {
+			this.operation = operation;
+			this.path = path;
+			this.bytes = bytes;
+			this.elapsed = elapsed;
+			this.timestamp = timestamp;
+		}
+
+		public Vfs2NioOperation getOperation() {
+			return operation;
+		}
+
+		public Path getPath() {
+			return path;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Get the elapsed time in nanoseconds.
+		 * 
+		 * @return elapsed
+		 */
+		public long getElapsed() {
+			return elapsed;
+		}
+
+		/**
+		 * Get the time (in milliseconds since the epoch) the operation finished.
+		 * 
+		 * @return timestamp
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %s %d bytes in %.3fms", operation, path, bytes, elapsed / 1000000d);
+		}
+	}
+
+	private final Entry[] entries;
+	private final long threshold;
+	private final long window;
+	private volatile long floor;
+	private volatile long floorUntil;
+
+	/**
+	 * Constructor. Keeps the slowest operations of all time.
+	 * 
+	 * @param capacity maximum number of operations to keep
+	 */
+	public Vfs2NioSlowOperationLog(int capacity) {
+		this(capacity, Duration.ZERO, Duration.ZERO);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity  maximum number of operations to keep
+	 * @param threshold operations faster than this are never recorded
+	 * @param window    how long an operation remains eligible to be kept, or
+	 *                  {@link Duration#ZERO} to keep them indefinitely
+	 */
+	public Vfs2NioSlowOperationLog(int capacity, Duration threshold, Duration window) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be at least 1.");
+		this.entries = new Entry[capacity];
+		this.threshold = threshold.toNanos();
+		this.window = window.toMillis();
+	}
+
+	@Override
+	public void operationFinished(Vfs2NioOperation operation, Path path, long bytes, long elapsed) {
+		if (elapsed < threshold || (elapsed <= floor && System.currentTimeMillis() < floorUntil))
+			return;
+		record(operation, path, bytes, elapsed);
+	}
+
+	/**
+	 * Get the retained operations, slowest first.
+	 * 
+	 * @return entries
+	 */
+	public synchronized List<Entry> getEntries() {
+		var now = System.currentTimeMillis();
+		var l = new ArrayList<Entry>(entries.length);
+		for (var e : entries) {
+			if (e != null && !expired(e, now))
+				l.add(e);
+		}
+		l.sort(Comparator.comparingLong(Entry::getElapsed).reversed());
+		return l;
+	}
+
+	public synchronized void clear() {
+		for (int i = 0; i < entries.length; i++)
+			entries[i] = null;
+		updateFloor(System.currentTimeMillis());
+	}
+
+	private synchronized void record(Vfs2NioOperation operation, Path path, long bytes, long elapsed) {
+		var now = System.currentTimeMillis();
+		int slot = -1;
+		int fastest = -1;
+		for (int i = 0; i < entries.length; i++) {
+			var e = entries[i];
+			if (e == null || expired(e, now)) {
+				slot = i;
+				break;
+			}
+			if (fastest == -1 || e.elapsed < entries[fastest].elapsed)
+				fastest = i;
+		}
+		if (slot == -1) {
+			if (elapsed <= entries[fastest].elapsed)
+				return;
+			slot = fastest;
+		}
+		entries[slot] = new Entry(operation, path, bytes, elapsed, now);
+		updateFloor(now);
+	}
+
+	private void updateFloor(long now) {
+		long min = Long.MAX_VALUE;
+		long oldest = Long.MAX_VALUE;
+		for (var e : entries) {
+			if (e == null) {
+				/* Not full, accept anything over the threshold */
+				floor = 0;
+				floorUntil = 0;
+				return;
+			}
+			min = Math.min(min, e.elapsed);
+			oldest = Math.min(oldest, e.timestamp);
+		}
+		floor = min;
+		floorUntil = window == 0 ? Long.MAX_VALUE : oldest + window;
+	}
+
+	private boolean expired(Entry e, long now) {
+		return window > 0 && now - e.timestamp >= window;
+	}
+}
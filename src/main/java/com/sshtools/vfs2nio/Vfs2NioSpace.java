@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Queries the total and free space of the storage behind a file system, for
+ * {@link java.nio.file.FileStore}. Commons VFS has no such operation, so local
+ * files and SFTP are supported directly and an implementation for other
+ * backends may be registered with the {@link Vfs2NioFileSystemProvider#SPACE}
+ * option. Results are cached for {@link Vfs2NioFileSystemProvider#SPACE_TTL}.
+ */
+public interface Vfs2NioSpace {
+
+	/**
+	 * Space on a store, in bytes.
+	 */
+	public final static class Usage {
+		/**
+		 * Space that is not known, reported as zero.
+		 */
+		public final static Usage UNKNOWN = new Usage(0, 0, 0);
+
+		private final long total;
+		private final long usable;
+		private final long unallocated;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param total       total size of the store
+		 * @param usable      space available to this user
+		 * @param unallocated space that is not allocated to anything
+		 */
+		public Usage(long total, long usable, long unallocated) {
+			this.total = total;
+			this.usable = usable;
+			this.unallocated = unallocated;
+		}
+
+		/**
+		 * Get the total size of the store.
+		 * 
+		 * @return total
+		 */
+		public long getTotal() {
+			return total;
+		}
+
+		/**
+		 * Get the space available to this user.
+		 * 
+		 * @return usable
+		 */
+		public long getUsable() {
+			return usable;
+		}
+
+		/**
+		 * Get the space that is not allocated to anything.
+		 * 
+		 * @return unallocated
+		 */
+		public long getUnallocated() {
+			return unallocated;
+		}
+
+		@Override
+		public String toString() {
+			return "Usage [total=" + total + ", usable=" + usable + ", unallocated=" + unallocated + "]";
+		}
+	}
+
+	/**
+	 * Query the space on the store a file system is on.
+	 * 
+	 * @param root root of the file system
+	 * @return usage, or {@link Usage#UNKNOWN}
+	 * @throws IOException on error
+	 */
+	Usage query(FileObject root) throws IOException;
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.apache.commons.vfs2.FileObject;
+
+import com.sshtools.vfs2nio.Vfs2NioSpace.Usage;
+
+/**
+ * Caches the space on a file system's store. The first query is made by the
+ * caller, after which queries return the last known usage immediately. Once
+ * that is older than the time to live, it is refreshed in the background, so
+ * that many stores may be polled frequently without waiting on or flooding
+ * the backends.
+ */
+final class Vfs2NioSpaceCache {
+	/* Refreshes for all file systems share a few threads, at most one queued per cache */
+	private static ExecutorService executor;
+
+	private final Supplier<FileObject> root;
+	private final Vfs2NioSpace space;
+	private final long ttl;
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+	private volatile Usage usage;
+	private volatile long expires;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param root  supplies the root of the file system
+	 * @param space query to use, or <code>null</code> to choose one from the
+	 *              type of backend
+	 * @param ttl   milliseconds to keep usage for, or 0 to query every time
+	 */
+	Vfs2NioSpaceCache(Supplier<FileObject> root, Vfs2NioSpace space, long ttl) {
+		this.root = root;
+		this.space = space;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+	Usage get() throws IOException {
+		var u = usage;
+		if (u == null || ttl == 0) {
+			synchronized (this) {
+				u = usage;
+				if (u == null || ttl == 0) {
+					u = query();
+					usage = u;
+					expires = System.nanoTime() + ttl;
+				}
+			}
+		} else if (System.nanoTime() - expires >= 0 && refreshing.compareAndSet(false, true)) {
+			try {
+				getExecutor().execute(this::refresh);
+			} catch (RuntimeException e) {
+				refreshing.set(false);
+				throw e;
+			}
+		}
+		return u;
+	}
+
+	private void refresh() {
+		try {
+			usage = query();
+		} catch (IOException | RuntimeException e) {
+			/* Keep the last known usage, and try again when it next expires */
+		} finally {
+			expires = System.nanoTime() + ttl;
+			refreshing.set(false);
+		}
+	}
+
+	private Usage query() throws IOException {
+		var fo = root.get();
+		if (space != null)
+			return space.query(fo);
+		var local = Vfs2NioFileSystemProvider.toLocalPath(fo);
+		if (local != null) {
+			var store = Files.getFileStore(local);
+			return new Usage(store.getTotalSpace(), store.getUsableSpace(), store.getUnallocatedSpace());
+		}
+		if (fo.getFileSystem().getClass().getName().equals("org.apache.commons.vfs2.provider.sftp.SftpFileSystem"))
+			return statvfs(fo);
+		return Usage.UNKNOWN;
+	}
+
+	/*
+	 * Commons VFS does not expose the SFTP channel, nor does it depend on JSch
+	 * at compile time, so statvfs@openssh.com is used via reflection. If the
+	 * server does not support the extension, space is unknown.
+	 */
+	private static Usage statvfs(FileObject fo) throws IOException {
+		var fs = fo.getFileSystem();
+		try {
+			var getChannel = fs.getClass().getDeclaredMethod("getChannel");
+			getChannel.setAccessible(true);
+			var channel = getChannel.invoke(fs);
+			try {
+				var stat = channel.getClass().getMethod("statVFS", String.class).invoke(channel,
+						fo.getName().getPathDecoded());
+				var fragment = (Long) stat.getClass().getMethod("getFragmentSize").invoke(stat);
+				return new Usage(fragment * (Long) stat.getClass().getMethod("getBlocks").invoke(stat),
+						fragment * (Long) stat.getClass().getMethod("getAvailBlocks").invoke(stat),
+						fragment * (Long) stat.getClass().getMethod("getFreeBlocks").invoke(stat));
+			} finally {
+				var putChannel = fs.getClass().getDeclaredMethod("putChannel", getChannel.getReturnType());
+				putChannel.setAccessible(true);
+				putChannel.invoke(fs, channel);
+			}
+		} catch (InvocationTargetException ite) {
+			if (ite.getCause() instanceof IOException)
+				throw (IOException) ite.getCause();
+			return Usage.UNKNOWN;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return Usage.UNKNOWN;
+		}
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			var count = new AtomicInteger();
+			var tpe = new ThreadPoolExecutor(4, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+				var t = new Thread(r, "Vfs2NioSpace-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			});
+			tpe.allowCoreThreadTimeOut(true);
+			executor = tpe;
+		}
+		return executor;
+	}
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Makes one directory tree the same as another, transferring only what has
+ * changed. Files are compared by size and modification time, and optionally
+ * by checksum. Each pair of directories is listed once (in parallel across the
+ * tree), with the attributes of their children retrieved in the same request.
+ * One side must be in a {@link Vfs2NioFileSystem}, whose pool does the work,
+ * but the other may be in any file system.
+ * <p>
+ * The changes needed may be examined first using {@link #plan()} (a dry run),
+ * and then made using {@link #apply(List)}, or both done at once with
+ * {@link #sync()}.
+ * 
+ * <pre>
+ * var sync = new Vfs2NioSync(remote.getPath("/data"), local.getPath("/mirror/data"));
+ * sync.setDelete(true);
+ * sync.plan().forEach(System.out::println);
+ * </pre>
+ */
+public class Vfs2NioSync {
+
+	/**
+	 * What needs to be done to the target.
+	 */
+	public enum Action {
+		/** Delete the target, and everything beneath it */
+		DELETE,
+		/** Create the target directory */
+		CREATE_DIRECTORY,
+		/** Copy a file that does not exist in the target */
+		COPY,
+		/** Replace a file in the target that differs from the source */
+		UPDATE
+	}
+
+	/**
+	 * A single change to make to the target tree.
+	 */
+	public final static class Change {
+		private final Action action;
+		private final Path source;
+		private final Path target;
+		private final long size;
+		private final long lastModified;
+
+		Change(Action action, Path source, Path target, long size, long lastModified) {
+			this.action = action;
+			this.source = source;
+			this.target = target;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public Action getAction() {
+			return action;
+		}
+
+		/**
+		 * Get the source path, or <code>null</code> for {@link Action#DELETE}.
+		 * 
+		 * @return source
+		 */
+		public Path getSource() {
+			return source;
+		}
+
+		public Path getTarget() {
+			return target;
+		}
+
+		/**
+		 * Get the number of bytes that will be transferred.
+		 * 
+		 * @return size
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		@Override
+		public String toString() {
+			switch (action) {
+			case COPY:
+			case UPDATE:
+				return String.format("%-16s %s (%d bytes)", action, target, size);
+			default:
+				return String.format("%-16s %s", action, target);
+			}
+		}
+	}
+
+	private final Path source;
+	private final Path target;
+	private final Vfs2NioFileSystem fs;
+	private boolean delete;
+	private boolean checksum;
+	private long modifyWindow;
+	private int parallelism;
+
+	private final AtomicLong filesTransferred = new AtomicLong();
+	private final AtomicLong bytesTransferred = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private final ConcurrentLinkedQueue<IOException> warnings = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param source source file or directory
+	 * @param target target file or directory
+	 * @throws ProviderMismatchException if neither is in a
+	 *                                   {@link Vfs2NioFileSystem}
+	 */
+	public Vfs2NioSync(Path source, Path target) {
+		this.source = source;
+		this.target = target;
+		this.fs = (source instanceof Vfs2NioPath ? (Vfs2NioPath) source
+				: Vfs2NioFileSystemProvider.toVFSPath(target)).getFileSystem();
+		this.parallelism = fs.getParallelism();
+	}
+
+	/**
+	 * Set whether files and directories in the target that are not in the
+	 * source should be deleted. Defaults to <code>false</code>.
+	 * 
+	 * @param delete delete extraneous files
+	 */
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	/**
+	 * Set whether files of the same size should have their content compared,
+	 * rather than their modification times. This means reading every such file
+	 * on both sides. Defaults to <code>false</code>.
+	 * 
+	 * @param checksum compare by checksum
+	 */
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	/**
+	 * Set how many milliseconds modification times may differ by and still be
+	 * considered the same, for backends that do not store them precisely.
+	 * Defaults to zero.
+	 * 
+	 * @param modifyWindow modification time window
+	 */
+	public void setModifyWindow(long modifyWindow) {
+		this.modifyWindow = modifyWindow;
+	}
+
+	/**
+	 * Set the maximum number of files to transfer at once. Defaults to the
+	 * {@link Vfs2NioFileSystem#getParallelism()} of the source, or of the target
+	 * if the source is in another file system.
+	 * 
+	 * @param parallelism parallelism
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("'parallelism' must be at least 1");
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Get the number of files copied or updated by the last {@link #apply(List)}.
+	 * 
+	 * @return files transferred
+	 */
+	public long getFilesTransferred() {
+		return filesTransferred.get();
+	}
+
+	/**
+	 * Get the number of bytes copied by the last {@link #apply(List)}.
+	 * 
+	 * @return bytes transferred
+	 */
+	public long getBytesTransferred() {
+		return bytesTransferred.get();
+	}
+
+	/**
+	 * Get the number of files and directories deleted by the last
+	 * {@link #apply(List)}.
+	 * 
+	 * @return deleted
+	 */
+	public long getDeleted() {
+		return deleted.get();
+	}
+
+	/**
+	 * Get the problems during the last {@link #apply(List)} that did not stop a
+	 * change from being made, such as the modification time of a copied file
+	 * that could not be set. Such a file will usually be planned again next time,
+	 * unless comparing by checksum.
+	 * 
+	 * @return warnings
+	 */
+	public List<IOException> getWarnings() {
+		return new ArrayList<>(warnings);
+	}
+
+	/**
+	 * Work out what changes are needed to make the target the same as the
+	 * source, without making them. Changes are ordered by target path, so
+	 * directories come before their contents.
+	 * 
+	 * @return changes
+	 * @throws IOException on error
+	 */
+	public List<Change> plan() throws IOException {
+		var srcAttrs = attributes(source);
+		if (srcAttrs == null)
+			throw new NoSuchFileException(source.toString());
+		var changes = new ConcurrentLinkedQueue<Change>();
+		fs.invoke(new Compare(source, srcAttrs, target, attributes(target), changes));
+		var l = new ArrayList<>(changes);
+		Collections.sort(l, Comparator.comparing((Change c) -> c.target.toString()));
+		return l;
+	}
+
+	/**
+	 * Make the target the same as the source.
+	 * 
+	 * @throws IOException on error
+	 */
+	public void sync() throws IOException {
+		apply(plan());
+	}
+
+	/**
+	 * Make changes previously returned by {@link #plan()}. Deletions are made
+	 * first, then directories created, then files transferred in parallel. A
+	 * failure does not prevent other changes from being made, but the first is
+	 * thrown when everything else is done (with any others suppressed).
+	 * 
+	 * @param changes changes
+	 * @throws IOException on error
+	 */
+	public void apply(List<Change> changes) throws IOException {
+		filesTransferred.set(0);
+		bytesTransferred.set(0);
+		deleted.set(0);
+		warnings.clear();
+		var failures = new ConcurrentLinkedQueue<IOException>();
+		var transfers = new ArrayList<Change>();
+
+		for (var change : changes) {
+			try {
+				switch (change.action) {
+				case DELETE:
+					deleted.addAndGet(delete(change.target));
+					break;
+				case CREATE_DIRECTORY:
+					try {
+						Files.createDirectory(change.target);
+					} catch (FileAlreadyExistsException faee) {
+					}
+					break;
+				default:
+					transfers.add(change);
+					break;
+				}
+			} catch (IOException ioe) {
+				failures.add(ioe);
+			}
+		}
+
+		if (!transfers.isEmpty()) {
+			var permits = new Semaphore(parallelism);
+			var tasks = new ArrayList<ForkJoinTask<?>>(transfers.size());
+			for (var change : transfers) {
+				tasks.add(ForkJoinTask.adapt(() -> {
+					try {
+						permits.acquire();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						failures.add(new InterruptedIOException("Interrupted."));
+						return;
+					}
+					try {
+						transfer(change);
+					} catch (IOException ioe) {
+						failures.add(ioe);
+					} finally {
+						permits.release();
+					}
+				}));
+			}
+			fs.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+		}
+
+		var first = failures.poll();
+		if (first != null) {
+			for (var ioe = failures.poll(); ioe != null; ioe = failures.poll())
+				first.addSuppressed(ioe);
+			throw first;
+		}
+	}
+
+	private void transfer(Change change) throws IOException {
+		try (var in = Files.newInputStream(change.source); var out = Files.newOutputStream(change.target)) {
+			bytesTransferred.addAndGet(in.transferTo(out));
+		}
+		filesTransferred.incrementAndGet();
+		try {
+			Files.setLastModifiedTime(change.target, FileTime.fromMillis(change.lastModified));
+		} catch (IOException ioe) {
+			/* The content is there, so the transfer itself succeeded */
+			warnings.add(ioe);
+		} catch (UnsupportedOperationException uoe) {
+			warnings.add(new IOException(
+					String.format("Cannot set the modification time of %s.", change.target), uoe));
+		}
+	}
+
+	private long delete(Path path) throws IOException {
+		if (path instanceof Vfs2NioPath) {
+			var vpath = (Vfs2NioPath) path;
+			return vpath.getFileSystem().provider().deleteTree(vpath, parallelism, null);
+		}
+		/* Deepest first, without following links */
+		try (var walk = Files.walk(path)) {
+			var paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+			for (var p : paths)
+				Files.delete(p);
+			return paths.size();
+		}
+	}
+
+	private boolean differs(Path src, BasicFileAttributes srcAttrs, Path tgt, BasicFileAttributes tgtAttrs)
+			throws IOException {
+		if (srcAttrs.size() != tgtAttrs.size())
+			return true;
+		if (checksum)
+			return !Arrays.equals(Vfs2NioFiles.digest(src, "MD5"), Vfs2NioFiles.digest(tgt, "MD5"));
+		return Math.abs(srcAttrs.lastModifiedTime().toMillis() - tgtAttrs.lastModifiedTime().toMillis()) > modifyWindow;
+	}
+
+	private static BasicFileAttributes attributes(Path path) throws IOException {
+		if (path instanceof Vfs2NioPath) {
+			var obj = ((Vfs2NioPath) path).toFileObject();
+			obj.refresh();
+			return obj.exists() ? Vfs2NioFileAttributes.snapshot(obj) : null;
+		}
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class);
+		} catch (NoSuchFileException nsfe) {
+			return null;
+		}
+	}
+
+	private static Map<String, BasicFileAttributes> list(Path dir) throws IOException {
+		var map = new TreeMap<String, BasicFileAttributes>();
+		if (dir instanceof Vfs2NioPath) {
+			var vdir = (Vfs2NioPath) dir;
+			for (var child : vdir.getFileSystem().children(vdir, true))
+				map.put(child.getName().getBaseName(), Vfs2NioFileAttributes.snapshot(child));
+			return map;
+		}
+		/* Another file system, so one request per child */
+		try (var stream = Files.newDirectoryStream(dir)) {
+			for (var child : stream) {
+				var attrs = attributes(child);
+				if (attrs != null)
+					map.put(child.getFileName().toString(), attrs);
+			}
+		}
+		return map;
+	}
+
+	@SuppressWarnings("serial")
+	private final class Compare extends RecursiveAction {
+		private final Path src;
+		private final BasicFileAttributes srcAttrs;
+		private final Path tgt;
+		private final BasicFileAttributes tgtAttrs;
+		private final ConcurrentLinkedQueue<Change> changes;
+
+		Compare(Path src, BasicFileAttributes srcAttrs, Path tgt, BasicFileAttributes tgtAttrs,
+				ConcurrentLinkedQueue<Change> changes) {
+			this.src = src;
+			this.srcAttrs = srcAttrs;
+			this.tgt = tgt;
+			this.tgtAttrs = tgtAttrs;
+			this.changes = changes;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				var tgtAttrs = this.tgtAttrs;
+				if (tgtAttrs != null && tgtAttrs.isDirectory() != srcAttrs.isDirectory()) {
+					changes.add(new Change(Action.DELETE, null, tgt, 0, 0));
+					tgtAttrs = null;
+				}
+				if (!srcAttrs.isDirectory()) {
+					if (tgtAttrs == null)
+						changes.add(change(Action.COPY));
+					else if (differs(src, srcAttrs, tgt, tgtAttrs))
+						changes.add(change(Action.UPDATE));
+					return;
+				}
+
+				/* List both sides at once */
+				Map<String, BasicFileAttributes> tgtChildren;
+				Map<String, BasicFileAttributes> srcChildren;
+				if (tgtAttrs == null) {
+					changes.add(new Change(Action.CREATE_DIRECTORY, src, tgt, 0, 0));
+					tgtChildren = Collections.emptyMap();
+					srcChildren = list(src);
+				} else {
+					var tgtList = ForkJoinTask.adapt(() -> {
+						try {
+							return list(tgt);
+						} catch (IOException ioe) {
+							throw new UncheckedIOException(ioe);
+						}
+					}).fork();
+					srcChildren = list(src);
+					tgtChildren = tgtList.join();
+				}
+
+				var tasks = new ArrayList<Compare>(srcChildren.size());
+				for (var en : srcChildren.entrySet()) {
+					tasks.add(new Compare(src.resolve(en.getKey()), en.getValue(), tgt.resolve(en.getKey()),
+							tgtChildren.get(en.getKey()), changes));
+				}
+				if (delete) {
+					for (var name : tgtChildren.keySet()) {
+						if (!srcChildren.containsKey(name))
+							changes.add(new Change(Action.DELETE, null, tgt.resolve(name), 0, 0));
+					}
+				}
+				invokeAll(tasks);
+			} catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		private Change change(Action action) {
+			return new Change(action, src, tgt, srcAttrs.size(), srcAttrs.lastModifiedTime().toMillis());
+		}
+	}
+}
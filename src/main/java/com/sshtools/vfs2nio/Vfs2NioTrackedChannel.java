@@ -0,0 +1,156 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link FileChannel} that delegates to a channel opened outside of Commons
+ * VFS, such as on the local file of a {@link Vfs2NioFileSystem}, and stops the
+ * file system tracking it when it is closed.
+ */
+class Vfs2NioTrackedChannel extends FileChannel {
+	/* A lock held by the delegate, but acquired by this channel as far as callers can tell */
+	private final static class TrackedLock extends FileLock {
+		private final FileLock delegate;
+
+		TrackedLock(FileChannel channel, FileLock delegate) {
+			super(channel, delegate.position(), delegate.size(), delegate.isShared());
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean isValid() {
+			return delegate.isValid();
+		}
+
+		@Override
+		public void release() throws IOException {
+			delegate.release();
+		}
+	}
+
+	private final Vfs2NioFileSystem fs;
+	private final FileChannel delegate;
+
+	Vfs2NioTrackedChannel(Vfs2NioFileSystem fs, FileChannel delegate) {
+		this.fs = fs;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return delegate.read(dst);
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		return delegate.read(dsts, offset, length);
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public long position() throws IOException {
+		return delegate.position();
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		delegate.position(newPosition);
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return delegate.size();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		delegate.truncate(size);
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		delegate.force(metaData);
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		/* Unwrap the target so the platform can still transfer between files directly */
+		if (target instanceof Vfs2NioTrackedChannel)
+			target = ((Vfs2NioTrackedChannel) target).delegate;
+		return delegate.transferTo(position, count, target);
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		if (src instanceof Vfs2NioTrackedChannel)
+			src = ((Vfs2NioTrackedChannel) src).delegate;
+		return delegate.transferFrom(src, position, count);
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return delegate.read(dst, position);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		return delegate.map(mode, position, size);
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		return new TrackedLock(this, delegate.lock(position, size, shared));
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		var lock = delegate.tryLock(position, size, shared);
+		return lock == null ? null : new TrackedLock(this, lock);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		try {
+			delegate.close();
+		} finally {
+			fs.untrack(this);
+		}
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.vfs2.FileObject;
+
+/**
+ * Deletes a directory tree on the file system's pool. Directories are listed
+ * in parallel, the files in each are deleted concurrently (or handed to a
+ * {@link Vfs2NioBatchDelete} in batches), and each directory is deleted once
+ * everything beneath it has gone. Symbolic links are deleted themselves,
+ * never what they point to. A failure does not stop the rest of the tree from
+ * being deleted, but is reported when everything else is done.
+ */
+class Vfs2NioTreeDelete {
+	private static final int BATCH_SIZE = 100;
+	private static final int MAX_SUPPRESSED = 100;
+
+	private final Vfs2NioFileSystem fs;
+	private final Semaphore permits;
+	private final Vfs2NioDeleteListener listener;
+	private final Vfs2NioBatchDelete batch;
+	private final ConcurrentLinkedQueue<IOException> failures = new ConcurrentLinkedQueue<>();
+	private final AtomicLong deleted = new AtomicLong();
+
+	Vfs2NioTreeDelete(Vfs2NioFileSystem fs, int parallelism, Vfs2NioDeleteListener listener) {
+		this.fs = fs;
+		this.permits = new Semaphore(parallelism);
+		this.listener = listener;
+		this.batch = fs.getBatchDelete();
+	}
+
+	/**
+	 * Delete a file, or a directory and everything in it.
+	 * 
+	 * @param path path
+	 * @param obj  resolved file object
+	 * @return number of files and directories deleted
+	 * @throws IOException the first failure, with any others suppressed
+	 */
+	long delete(Vfs2NioPath path, FileObject obj) throws IOException {
+		if (isDirectory(obj))
+			fs.invoke(new DeleteDirectory(path, obj));
+		else
+			deleteOne(path, obj, false);
+
+		var first = failures.poll();
+		if (first != null) {
+			int suppressed = 0;
+			for (var ioe = failures.poll(); ioe != null && suppressed < MAX_SUPPRESSED; ioe = failures.poll()) {
+				first.addSuppressed(ioe);
+				suppressed++;
+			}
+			throw first;
+		}
+		return deleted.get();
+	}
+
+	private boolean deleteOne(Vfs2NioPath path, FileObject obj, boolean directory) {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return fail(path, new InterruptedIOException("Interrupted."));
+		}
+		try {
+			if (obj.isSymbolicLink() ? deleteLink(obj) : obj.delete())
+				deleted(path, directory);
+			return true;
+		} catch (IOException ioe) {
+			return fail(path, ioe);
+		} finally {
+			permits.release();
+		}
+	}
+
+	private static boolean isDirectory(FileObject obj) throws IOException {
+		return obj.getType().hasChildren() && !obj.isSymbolicLink();
+	}
+
+	private static boolean deleteLink(FileObject obj) throws IOException {
+		/*
+		 * Commons VFS treats a link to a directory as the directory, so will not
+		 * delete it while the directory has anything in it
+		 */
+		var local = Vfs2NioFileSystemProvider.toLocalPath(obj);
+		if (local != null) {
+			var deleted = Files.deleteIfExists(local);
+			/* Commons VFS did not see it go, so still lists it in the parent */
+			obj.refresh();
+			var parent = obj.getParent();
+			if (parent != null)
+				parent.refresh();
+			return deleted;
+		}
+		if (obj.delete())
+			return true;
+		if (obj.exists())
+			throw new IOException(String.format("Cannot delete the symbolic link %s.", obj.getName().getPath()));
+		return false;
+	}
+
+	private void deleted(Vfs2NioPath path, boolean directory) {
+		deleted.incrementAndGet();
+		if (listener != null)
+			listener.deleted(path, directory);
+	}
+
+	private boolean fail(Vfs2NioPath path, IOException ioe) {
+		failures.add(ioe);
+		if (listener != null)
+			listener.failed(path, ioe);
+		return false;
+	}
+
+	@SuppressWarnings("serial")
+	private final class DeleteDirectory extends RecursiveTask<Boolean> {
+		private final Vfs2NioPath path;
+		private final FileObject dir;
+
+		DeleteDirectory(Vfs2NioPath path, FileObject dir) {
+			this.path = path;
+			this.dir = dir;
+		}
+
+		@Override
+		protected Boolean compute() {
+			FileObject[] children;
+			var tasks = new ArrayList<RecursiveTask<Boolean>>();
+			/* Links to directories need deleteLink(), so cannot go to a batch delete */
+			var links = new ArrayList<FileObject>();
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return fail(path, new InterruptedIOException("Interrupted."));
+			}
+			var start = fs.begin(Vfs2NioOperation.LIST, path);
+			try {
+				children = dir.getChildren();
+				var files = new ArrayList<FileObject>();
+				for (var child : children) {
+					if (isDirectory(child))
+						tasks.add(new DeleteDirectory(path.resolve(child.getName().getBaseName()), child));
+					else if (child.isSymbolicLink() && child.getType().hasChildren())
+						links.add(child);
+					else
+						files.add(child);
+				}
+				if (!files.isEmpty())
+					tasks.add(new DeleteFiles(path, dir, files));
+			} catch (IOException ioe) {
+				return fail(path, ioe);
+			} finally {
+				fs.end(Vfs2NioOperation.LIST, path, start, 0);
+				permits.release();
+			}
+
+			var ok = true;
+			for (var link : links)
+				ok &= deleteOne(path.resolve(link.getName().getBaseName()), link, false);
+			for (var task : invokeAll(tasks))
+				ok &= task.join();
+
+			/* Only once everything beneath it has gone */
+			return ok && deleteOne(path, dir, true);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private final class DeleteFiles extends RecursiveTask<Boolean> {
+		private final Vfs2NioPath parent;
+		private final FileObject dir;
+		private final List<FileObject> files;
+
+		DeleteFiles(Vfs2NioPath parent, FileObject dir, List<FileObject> files) {
+			this.parent = parent;
+			this.dir = dir;
+			this.files = files;
+		}
+
+		@Override
+		protected Boolean compute() {
+			int size = files.size();
+			if (batch == null ? size > 1 : size > BATCH_SIZE) {
+				var half = size / 2;
+				var results = invokeAll(Arrays.asList(new DeleteFiles(parent, dir, files.subList(0, half)),
+						new DeleteFiles(parent, dir, files.subList(half, size))));
+				var ok = true;
+				for (var r : results)
+					ok &= r.join();
+				return ok;
+			}
+			if (batch != null && batchDelete())
+				return true;
+			var ok = true;
+			for (var file : files)
+				ok &= deleteOne(parent.resolve(file.getName().getBaseName()), file, false);
+			return ok;
+		}
+
+		private boolean batchDelete() {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			try {
+				batch.delete(dir, files);
+			} catch (IOException ioe) {
+				/* Fall back to one at a time to find out which */
+				return false;
+			} finally {
+				permits.release();
+			}
+			for (var file : files)
+				deleted(parent.resolve(file.getName().getBaseName()), false);
+			return true;
+		}
+	}
+}
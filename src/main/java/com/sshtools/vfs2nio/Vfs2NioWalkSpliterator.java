@@ -0,0 +1,263 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Splits a directory tree into depth-first sequences of nodes, each a path
+ * along with the attributes retrieved when its parent was listed. Directories are
+ * listed ahead of time on the file system's pool, most recently discovered
+ * first (so roughly in the order they will be reached), with no more than a
+ * fixed number of listings in flight at once. Listing ahead stops once
+ * {@link Walk#WINDOW} nodes have been listed but not yet consumed, and resumes
+ * as the consumer catches up, so memory use does not grow with the size of the
+ * tree. Each spliterator produced by {@link #trySplit()} shares the same
+ * limits.
+ */
+class Vfs2NioWalkSpliterator implements Spliterator<Vfs2NioWalkSpliterator.Node> {
+
+	static final class Walk implements AutoCloseable {
+		/**
+		 * How many nodes may be listed ahead of the consumer
+		 */
+		static final int WINDOW = 1024;
+
+		private final Vfs2NioFileSystem fs;
+		private final int maxDepth;
+		private final int window;
+		private final Semaphore inFlight;
+		private final AtomicInteger ahead = new AtomicInteger();
+		private final ConcurrentLinkedDeque<Node> waiting = new ConcurrentLinkedDeque<>();
+		private volatile boolean closed;
+
+		Walk(Vfs2NioFileSystem fs, int maxDepth, int parallelism) {
+			this(fs, maxDepth, parallelism, WINDOW);
+		}
+
+		Walk(Vfs2NioFileSystem fs, int maxDepth, int parallelism, int window) {
+			this.fs = fs;
+			this.maxDepth = maxDepth;
+			this.window = window;
+			this.inFlight = new Semaphore(parallelism);
+		}
+
+		int ahead() {
+			return ahead.get();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			waiting.clear();
+		}
+
+		void prefetch(Node[] nodes) {
+			for (int i = nodes.length - 1; i >= 0; i--) {
+				if (nodes[i].isExpandable(maxDepth))
+					waiting.addFirst(nodes[i]);
+			}
+			pump();
+		}
+
+		void listed(int count) {
+			ahead.addAndGet(count);
+		}
+
+		void consumed() {
+			/* Only the move back inside the window needs to start more listings */
+			if (ahead.getAndDecrement() == window)
+				pump();
+		}
+
+		private void pump() {
+			while (!closed && ahead.get() < window && !waiting.isEmpty() && inFlight.tryAcquire()) {
+				var node = waiting.pollFirst();
+				if (node == null || !node.claim()) {
+					inFlight.release();
+					continue;
+				}
+				try {
+					fs.getPool().execute(() -> {
+						try {
+							node.list(this);
+						} finally {
+							inFlight.release();
+							pump();
+						}
+					});
+				} catch (RejectedExecutionException ree) {
+					/* File system closed, the consumer will find out */
+					inFlight.release();
+					node.fail(ree);
+					return;
+				}
+			}
+		}
+	}
+
+	static final class Node {
+		private final Vfs2NioPath path;
+		private final int depth;
+		private final Vfs2NioFileAttributes attributes;
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		private final CompletableFuture<Node[]> children = new CompletableFuture<>();
+		private boolean expanded;
+
+		Node(Vfs2NioPath path, int depth, Vfs2NioFileAttributes attributes) {
+			this.path = path;
+			this.depth = depth;
+			this.attributes = attributes;
+		}
+
+		Path path() {
+			return path;
+		}
+
+		Vfs2NioFileAttributes attributes() {
+			return attributes;
+		}
+
+		boolean isExpandable(int maxDepth) {
+			return attributes.isDirectory() && depth < maxDepth;
+		}
+
+		boolean claim() {
+			return claimed.compareAndSet(false, true);
+		}
+
+		void fail(Throwable t) {
+			children.completeExceptionally(t);
+		}
+
+		void list(Walk walk) {
+			try {
+				var objs = walk.fs.children(path, false);
+				var nodes = new Node[objs.length];
+				for (int i = 0; i < objs.length; i++) {
+					nodes[i] = new Node(walk.fs.getPath(objs[i].getName().getPath()), depth + 1,
+							Vfs2NioFileAttributes.snapshot(objs[i]));
+				}
+				walk.listed(nodes.length);
+				children.complete(nodes);
+				if (!walk.closed)
+					walk.prefetch(nodes);
+			} catch (IOException | RuntimeException e) {
+				children.completeExceptionally(e);
+			}
+		}
+
+		Node[] await(Walk walk) {
+			/* Not yet picked up by the pool, so list it here */
+			if (claim())
+				list(walk);
+			try {
+				return children.join();
+			} catch (CompletionException ce) {
+				var cause = ce.getCause();
+				if (cause instanceof IOException)
+					throw new UncheckedIOException((IOException) cause);
+				else if (cause instanceof RuntimeException)
+					throw (RuntimeException) cause;
+				throw ce;
+			}
+		}
+	}
+
+	private final Walk walk;
+	private final Deque<Node> pending;
+
+	Vfs2NioWalkSpliterator(Walk walk, Node start) {
+		this(walk, new ArrayDeque<>());
+		pending.add(start);
+	}
+
+	private Vfs2NioWalkSpliterator(Walk walk, Deque<Node> pending) {
+		this.walk = walk;
+		this.pending = pending;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Node> action) {
+		var node = pending.pollFirst();
+		if (node == null)
+			return false;
+		expand(node);
+		if (node.depth > 0)
+			walk.consumed();
+		action.accept(node);
+		return true;
+	}
+
+	@Override
+	public Spliterator<Node> trySplit() {
+		if (pending.size() == 1)
+			expand(pending.peekFirst());
+		int n = pending.size() / 2;
+		if (n == 0)
+			return null;
+		/*
+		 * Hand off the head, so that the split is a prefix in encounter order.
+		 * Everything below a node is visited before the node after it, so the
+		 * descendants of the nodes handed off go with them
+		 */
+		var split = new ArrayDeque<Node>(n);
+		for (int i = 0; i < n; i++)
+			split.addLast(pending.pollFirst());
+		return new Vfs2NioWalkSpliterator(walk, split);
+	}
+
+	@Override
+	public long estimateSize() {
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+
+	private void expand(Node node) {
+		if (node.expanded || !node.isExpandable(walk.maxDepth))
+			return;
+		node.expanded = true;
+		var children = node.await(walk);
+		/* The first of the node's children is visited next */
+		var first = pending.peekFirst();
+		if (first == node) {
+			pending.pollFirst();
+			for (int i = children.length - 1; i >= 0; i--)
+				pending.addFirst(children[i]);
+			pending.addFirst(node);
+		} else {
+			for (int i = children.length - 1; i >= 0; i--)
+				pending.addFirst(children[i]);
+		}
+	}
+}
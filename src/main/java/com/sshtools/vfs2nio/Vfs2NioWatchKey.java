@@ -0,0 +1,207 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+
+final class Vfs2NioWatchKey implements WatchKey, Vfs2NioDirectorySnapshot.Listener {
+	private final static int MAX_EVENTS = 512;
+
+	private static final class Event<T> implements WatchEvent<T> {
+		private final WatchEvent.Kind<T> kind;
+		private final T context;
+		private int count = 1;
+
+		Event(WatchEvent.Kind<T> kind, T context) {
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@Override
+		public WatchEvent.Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+
+		@Override
+		public int count() {
+			return count;
+		}
+
+		@Override
+		public String toString() {
+			return kind + " " + context;
+		}
+	}
+
+	private final Vfs2NioWatchService service;
+	private final Vfs2NioPath dir;
+	private volatile Set<WatchEvent.Kind<?>> kinds;
+	private volatile boolean valid = true;
+	private List<WatchEvent<?>> events = new ArrayList<>();
+	private boolean signalled;
+	private Vfs2NioDirectorySnapshot snapshot;
+	private long interval;
+	private ScheduledFuture<?> future;
+
+	Vfs2NioWatchKey(Vfs2NioWatchService service, Vfs2NioPath dir, Vfs2NioDirectorySnapshot snapshot) {
+		this.service = service;
+		this.dir = dir;
+		this.snapshot = snapshot;
+	}
+
+	@Override
+	public void cancel() {
+		if (valid) {
+			valid = false;
+			synchronized (this) {
+				if (future != null)
+					future.cancel(false);
+			}
+			service.cancelled(this);
+		}
+	}
+
+	@Override
+	public boolean isValid() {
+		return valid;
+	}
+
+	@Override
+	public synchronized List<WatchEvent<?>> pollEvents() {
+		var l = events;
+		events = new ArrayList<>();
+		return l;
+	}
+
+	@Override
+	public synchronized boolean reset() {
+		if (!valid)
+			return false;
+		if (signalled) {
+			if (events.isEmpty())
+				signalled = false;
+			else
+				service.enqueue(this);
+		}
+		return true;
+	}
+
+	@Override
+	public Vfs2NioPath watchable() {
+		return dir;
+	}
+
+	@Override
+	public void created(String name) {
+		signalEvent(StandardWatchEventKinds.ENTRY_CREATE, name);
+	}
+
+	@Override
+	public void deleted(String name) {
+		signalEvent(StandardWatchEventKinds.ENTRY_DELETE, name);
+	}
+
+	@Override
+	public void modified(String name) {
+		signalEvent(StandardWatchEventKinds.ENTRY_MODIFY, name);
+	}
+
+	void kinds(WatchEvent.Kind<?>[] kinds) {
+		this.kinds = new HashSet<>(Arrays.asList(kinds));
+	}
+
+	/**
+	 * Compare the current contents of the directory with the last snapshot, and
+	 * work out when to next poll. The interval is reset to the minimum when
+	 * anything changes, and doubles (up to the maximum) when nothing does.
+	 */
+	void poll() {
+		if (!valid)
+			return;
+		boolean changed = false;
+		try {
+			var later = Vfs2NioDirectorySnapshot.of(dir.getFileSystem().children(dir, true));
+			changed = snapshot.diff(later, this);
+			snapshot = later;
+		} catch (NoSuchFileException nsfe) {
+			/* Directory has gone, so the key is no longer valid */
+			cancel();
+			synchronized (this) {
+				signal();
+			}
+			return;
+		} catch (Exception e) {
+			/* Transient failure, try again later */
+		}
+		synchronized (this) {
+			if (changed || interval == 0)
+				interval = service.getMinInterval();
+			else
+				interval = Math.min(interval * 2, service.getMaxInterval());
+			if (valid)
+				future = service.schedule(this, interval);
+		}
+	}
+
+	synchronized void start() {
+		interval = service.getMinInterval();
+		future = service.schedule(this, interval);
+	}
+
+	private synchronized void signalEvent(WatchEvent.Kind<Path> kind, String name) {
+		if (!kinds.contains(kind))
+			return;
+		var context = dir.getFileSystem().getPath(name);
+		if (events.size() >= MAX_EVENTS) {
+			var last = events.get(events.size() - 1);
+			if (last.kind() == StandardWatchEventKinds.OVERFLOW)
+				((Event<?>) last).count++;
+			else {
+				events.clear();
+				events.add(new Event<>(StandardWatchEventKinds.OVERFLOW, null));
+			}
+		} else {
+			var last = events.isEmpty() ? null : events.get(events.size() - 1);
+			if (last != null && last.kind() == kind && context.equals(last.context()))
+				((Event<?>) last).count++;
+			else
+				events.add(new Event<>(kind, context));
+		}
+		signal();
+	}
+
+	private void signal() {
+		if (!signalled) {
+			signalled = true;
+			service.enqueue(this);
+		}
+	}
+}
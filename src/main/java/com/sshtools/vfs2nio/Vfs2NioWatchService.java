@@ -0,0 +1,165 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link WatchService} that detects changes by periodically listing each
+ * registered directory, and comparing the result with the previous listing.
+ * <p>
+ * Each directory is polled on its own schedule. Directories that have not
+ * changed are polled less and less often (doubling the interval each time up
+ * to a maximum), while a change resets the interval to the minimum. Polling is
+ * performed by a small shared pool of threads, so many thousands of
+ * directories may be watched at once.
+ */
+public class Vfs2NioWatchService implements WatchService {
+	private final static WatchKey CLOSED = new Vfs2NioWatchKey(null, null, null);
+	private final static AtomicInteger ids = new AtomicInteger();
+
+	private final Vfs2NioFileSystem fs;
+	private final long minInterval;
+	private final long maxInterval;
+	private final ScheduledThreadPoolExecutor scheduler;
+	private final LinkedBlockingDeque<WatchKey> pending = new LinkedBlockingDeque<>();
+	private final Map<Vfs2NioPath, Vfs2NioWatchKey> keys = new ConcurrentHashMap<>();
+	private volatile boolean closed;
+
+	Vfs2NioWatchService(Vfs2NioFileSystem fs, long minInterval, long maxInterval) {
+		this.fs = fs;
+		this.minInterval = minInterval;
+		this.maxInterval = maxInterval;
+		var id = ids.incrementAndGet();
+		scheduler = new ScheduledThreadPoolExecutor(Math.min(4, Runtime.getRuntime().availableProcessors()), r -> {
+			var t = new Thread(r, "Vfs2NioWatchService-" + id);
+			t.setDaemon(true);
+			return t;
+		});
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		for (var key : keys.values())
+			key.cancel();
+		scheduler.shutdownNow();
+		pending.clear();
+		pending.offer(CLOSED);
+		fs.untrack(this);
+	}
+
+	@Override
+	public WatchKey poll() {
+		return checkKey(pending.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		return checkKey(pending.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		return checkKey(pending.take());
+	}
+
+	public long getMinInterval() {
+		return minInterval;
+	}
+
+	public long getMaxInterval() {
+		return maxInterval;
+	}
+
+	WatchKey register(Vfs2NioPath path, WatchEvent.Kind<?>[] kinds) throws IOException {
+		checkOpen();
+		if (path.getFileSystem() != fs)
+			throw new IllegalArgumentException("Path is not from the same file system as this watch service.");
+		for (var kind : kinds) {
+			if (kind != StandardWatchEventKinds.ENTRY_CREATE && kind != StandardWatchEventKinds.ENTRY_DELETE
+					&& kind != StandardWatchEventKinds.ENTRY_MODIFY && kind != StandardWatchEventKinds.OVERFLOW)
+				throw new UnsupportedOperationException(String.format("Event kind %s is not supported.", kind));
+		}
+		var dir = path.toAbsolutePath().normalize();
+		var key = keys.get(dir);
+		if (key == null) {
+			if (!Files.isDirectory(dir))
+				throw new NotDirectoryException(dir.toString());
+			key = new Vfs2NioWatchKey(this, dir, Vfs2NioDirectorySnapshot.of(fs.children(dir, true)));
+			key.kinds(kinds);
+			var was = keys.putIfAbsent(dir, key);
+			if (was == null)
+				key.start();
+			else
+				key = was;
+		}
+		key.kinds(kinds);
+		return key;
+	}
+
+	ScheduledFuture<?> schedule(Vfs2NioWatchKey key, long delay) {
+		if (closed)
+			return null;
+		try {
+			return scheduler.schedule(key::poll, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			/* Closed while polling */
+			return null;
+		}
+	}
+
+	void enqueue(Vfs2NioWatchKey key) {
+		if (!closed)
+			pending.offer(key);
+	}
+
+	void cancelled(Vfs2NioWatchKey key) {
+		keys.remove(key.watchable(), key);
+	}
+
+	private WatchKey checkKey(WatchKey key) {
+		if (key == CLOSED) {
+			pending.offer(CLOSED);
+			throw new ClosedWatchServiceException();
+		}
+		checkOpen();
+		return key;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new ClosedWatchServiceException();
+	}
+}
@@ -23,6 +23,8 @@ module com.sshtools.vfs2nio {
     requires transitive com.sshtools.sshapi.commonsvfs;
     requires transitive com.sshtools.sshapi.core;
     requires static org.apache.commons.compress;
+    requires java.management;
+    requires static jdk.jfr;
     provides FileSystemProvider with Vfs2NioFileSystemProvider;
     exports com.sshtools.vfs2nio;
     exports org.apache.nio;
@@ -24,18 +24,74 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
+import javax.management.ObjectName;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.vfs2.FileName;
+import org.apache.commons.vfs2.FileObject;
+import org.apache.commons.vfs2.FileSystemOptions;
+import org.apache.commons.vfs2.UserAuthenticator;
+import org.apache.commons.vfs2.VFS;
 import org.junit.Test;
 
 import junit.framework.Assert;
@@ -43,6 +99,43 @@ import junit.framework.Assert;
 public class Vfs2NioFileSystemProviderTest {
 	File rootFile = new File(File.separator);
 
+	@Test
+	public void testCloseReleasesStreams() throws Exception {
+		File file = File.createTempFile("vfs", "tmp");
+		writeTestFile(file);
+		InputStream in;
+		try (FileSystem rootFs = createRootVFS()) {
+			in = Files.newInputStream(rootFs.getPath(file.getPath()));
+			in.read();
+		}
+		try {
+			Assert.assertEquals("Stream should have been closed with the file system.", -1, in.read());
+		} catch (IOException ioe) {
+		}
+	}
+
+	@Test
+	public void testIdleTimeoutReconnects() throws Exception {
+		File file = File.createTempFile("vfs", "tmp");
+		writeTestFile(file);
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.IDLE_TIMEOUT, 200);
+		try (Vfs2NioFileSystem rootFs = (Vfs2NioFileSystem) FileSystems
+				.newFileSystem(URI.create("vfs:" + rootFile.toURI().toString()), env)) {
+			Assert.assertTrue(Files.exists(rootFs.getPath(file.getPath())));
+			long waitUntil = System.currentTimeMillis() + 5000;
+			while (rootFs.isConnected() && System.currentTimeMillis() < waitUntil)
+				Thread.sleep(50);
+			Assert.assertFalse(rootFs.isConnected());
+			try (InputStream in = Files.newInputStream(rootFs.getPath(file.getPath()))) {
+				try (InputStream origIn = new FileInputStream(file)) {
+					compareStreams(origIn, in);
+				}
+			}
+			Assert.assertTrue(rootFs.isConnected());
+		}
+	}
+
 	@Test
 	public void testCreateFolder() throws Exception {
 		try (FileSystem rootFs = createRootVFS()) {
@@ -65,6 +158,257 @@ public class Vfs2NioFileSystemProviderTest {
 		}
 	}
 
+	@Test
+	public void testCopyDelta() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		byte[] data = new byte[100000];
+		new Random().nextBytes(data);
+		Files.write(new File(dir, "src.bin").toPath(), data);
+		Files.write(new File(dir, "target.bin").toPath(), Arrays.copyOf(data, 120000));
+		data[50000] ^= 1;
+		Files.write(new File(dir, "src.bin").toPath(), data);
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.METRICS, true);
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			Vfs2NioDeltaStats stats = Vfs2NioFiles.copyDelta(root.resolve("src.bin"), root.resolve("target.bin"), 4096);
+			Assert.assertEquals(25, stats.getBlocks());
+			Assert.assertEquals(23, stats.getBlocksMatched());
+			Assert.assertEquals(4096 + 100000 % 4096, stats.getBytesWritten());
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(new File(dir, "target.bin").toPath())));
+
+			data[99999] ^= 1;
+			Files.write(new File(dir, "src.bin").toPath(), data);
+			Files.copy(root.resolve("src.bin"), root.resolve("target.bin"), Vfs2NioCopyOption.DELTA);
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(new File(dir, "target.bin").toPath())));
+			Assert.assertEquals(100000 - 100000 % 65536, fs.getMetrics().getDeltaBytesSaved() - stats.getBytesSaved());
+		}
+	}
+
+	@Test
+	public void testDigest() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		byte[] data = new byte[200000];
+		new Random().nextBytes(data);
+		Files.write(new File(dir, "data.bin").toPath(), data);
+		byte[] expected = MessageDigest.getInstance("SHA-256").digest(data);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), new HashMap<>())) {
+			Path root = fs.getRootDirectories().iterator().next();
+			Assert.assertTrue(Arrays.equals(expected, Vfs2NioFiles.digest(root.resolve("data.bin"), "SHA-256")));
+
+			Vfs2NioChunkedDigest chunks = Vfs2NioFiles.digestChunks(root.resolve("data.bin"), "SHA-256", 65536);
+			Assert.assertEquals(4, chunks.getChunks().size());
+			Assert.assertEquals(200000, chunks.getSize());
+			Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(Arrays.copyOfRange(data, 65536, 131072)),
+					chunks.getChunks().get(1)));
+
+			byte[] copied = Vfs2NioFiles.copy(root.resolve("data.bin"), root.resolve("copy.bin"), "SHA-256");
+			Assert.assertTrue(Arrays.equals(expected, copied));
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(new File(dir, "copy.bin").toPath())));
+			Assert.assertTrue(chunks.isSameContent(Vfs2NioFiles.digestChunks(root.resolve("copy.bin"), "SHA-256", 65536)));
+
+			/* Chunks larger than a buffer are hashed a piece at a time */
+			chunks = Vfs2NioFiles.digestChunks(root.resolve("data.bin"), "SHA-256", 150000);
+			Assert.assertEquals(2, chunks.getChunks().size());
+			Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(Arrays.copyOf(data, 150000)),
+					chunks.getChunks().get(0)));
+			Assert.assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(Arrays.copyOfRange(data, 150000, 200000)),
+					chunks.getChunks().get(1)));
+			Assert.assertEquals(1, Vfs2NioFiles.digestChunks(root.resolve("data.bin"), "SHA-256", 200000).getChunks().size());
+		}
+	}
+
+	@Test
+	public void testDeleteTree() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		for (int i = 0; i < 4; i++) {
+			new File(dir, "t/d" + i + "/e").mkdirs();
+			for (int j = 0; j < 5; j++)
+				writeTestFile(new File(dir, "t/d" + i + "/e/" + j + ".txt"));
+		}
+		/* Links are deleted, not followed */
+		new File(dir, "keep").mkdirs();
+		writeTestFile(new File(dir, "keep/k.txt"));
+		Files.createSymbolicLink(new File(dir, "t/d0/link").toPath(), Paths.get("../../keep"));
+		Files.createSymbolicLink(new File(dir, "link").toPath(), Paths.get("keep"));
+		AtomicInteger batches = new AtomicInteger();
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.BATCH_DELETE, (Vfs2NioBatchDelete) (d, files) -> {
+			batches.incrementAndGet();
+			for (FileObject f : files)
+				f.delete();
+		});
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			AtomicInteger files = new AtomicInteger();
+			AtomicInteger dirs = new AtomicInteger();
+			long deleted = Vfs2NioFiles.deleteTree(root.resolve("t"), 3, new Vfs2NioDeleteListener() {
+				@Override
+				public void deleted(Path path, boolean directory) {
+					(directory ? dirs : files).incrementAndGet();
+				}
+			});
+			Assert.assertEquals(30, deleted);
+			Assert.assertEquals(21, files.get());
+			Assert.assertEquals(9, dirs.get());
+			Assert.assertEquals(4, batches.get());
+			Assert.assertFalse(new File(dir, "t").exists());
+			Assert.assertEquals(1, Vfs2NioFiles.deleteTree(root.resolve("link"), 3, null));
+			Assert.assertFalse(Files.exists(new File(dir, "link").toPath(), LinkOption.NOFOLLOW_LINKS));
+			Assert.assertTrue(new File(dir, "keep/k.txt").exists());
+			try {
+				Files.delete(root.resolve("t"));
+				Assert.fail("Expected NoSuchFileException");
+			} catch (NoSuchFileException nsfe) {
+			}
+		}
+	}
+
+	@Test
+	public void testFileChannel() throws Exception {
+		byte[] data = new byte[20000];
+		new Random().nextBytes(data);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///channel"), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, data);
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.allocate(1000);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				while (ch.read(buf) != -1) {
+					buf.flip();
+					out.write(buf.array(), 0, buf.limit());
+					buf.clear();
+				}
+				Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+				Assert.assertEquals(20000, ch.position());
+
+				ByteBuffer direct = ByteBuffer.allocateDirect(4);
+				Assert.assertEquals(4, ch.read(direct, 100));
+				Assert.assertEquals(20000, ch.position());
+				Assert.assertEquals(data[103], direct.get(3));
+
+				ch.position(10);
+				ch.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+				Assert.assertEquals(13, ch.position());
+				ByteBuffer[] bufs = { ByteBuffer.allocate(2), ByteBuffer.allocate(3) };
+				Assert.assertEquals(5, ch.read(bufs));
+				Assert.assertEquals(data[17], bufs[1].get(2));
+				ch.position(10);
+				buf = ByteBuffer.allocate(3);
+				ch.read(buf);
+				Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, buf.array()));
+			}
+			/* CREATE is ignored when only reading, as it is for local files */
+			Path missing = file.resolveSibling("missing.bin");
+			try (FileChannel ch = FileChannel.open(missing, StandardOpenOption.READ, StandardOpenOption.CREATE)) {
+				Assert.fail("Created when only reading");
+			} catch (NoSuchFileException e) {
+			}
+			Assert.assertFalse(Files.exists(missing));
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW)) {
+				Assert.assertEquals(data.length, ch.size());
+			}
+		}
+	}
+
+	@Test
+	public void testTransfer() throws Exception {
+		byte[] data = new byte[300000];
+		new Random().nextBytes(data);
+		File local = File.createTempFile("vfs", ".bin");
+		local.deleteOnExit();
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///transfer"), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, data);
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(local.toPath(), StandardOpenOption.WRITE)) {
+				Assert.assertEquals(299990, ch.transferTo(10, 400000, out));
+				Assert.assertEquals(0, ch.position());
+				Assert.assertEquals(100, ch.transferTo(0, 100, out));
+			}
+			byte[] copied = Files.readAllBytes(local.toPath());
+			Assert.assertEquals(300090, copied.length);
+			Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, 10, 300000), Arrays.copyOf(copied, 299990)));
+			Assert.assertTrue(Arrays.equals(Arrays.copyOf(data, 100), Arrays.copyOfRange(copied, 299990, 300090)));
+
+			Path target = file.resolveSibling("copy.bin");
+			try (FileChannel ch = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				Assert.assertEquals(300000,
+						ch.transferFrom(Channels.newChannel(new ByteArrayInputStream(data)), 0, data.length));
+			}
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(target)));
+		}
+	}
+
+	@Test
+	public void testLocalFileChannel() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		writeTestFile(new File(dir, "data.bin"));
+		FileChannel open;
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				Assert.assertFalse(ch instanceof Vfs2NioFileChannel);
+				try (FileLock lock = ch.lock()) {
+					Assert.assertTrue(lock.isValid());
+				}
+				Assert.assertEquals(1024, ch.map(FileChannel.MapMode.READ_ONLY, 0, 1024).remaining());
+			}
+			Files.write(file, new byte[10]);
+			Assert.assertEquals(10, new File(dir, "data.bin").length());
+			open = FileChannel.open(file, StandardOpenOption.READ);
+		}
+		Assert.assertFalse(open.isOpen());
+	}
+
+	@Test
+	public void testTruncateAndPreallocate() throws Exception {
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///truncate"), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, new byte[1024]);
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ch.position(1000);
+				ch.truncate(100);
+				Assert.assertEquals(100, ch.size());
+				Assert.assertEquals(100, ch.position());
+			}
+			Assert.assertEquals(100, Files.size(file));
+
+			/* Overwrite the start without truncating */
+			try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.WRITE)) {
+				out.write(new byte[] { 1, 2, 3 });
+			}
+			Assert.assertEquals(100, Files.size(file));
+			Assert.assertEquals(3, Files.readAllBytes(file)[2]);
+
+			try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				out.write(new byte[] { 1, 2, 3 });
+			}
+			Assert.assertEquals(3, Files.size(file));
+
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING, Vfs2NioPreallocateOption.of(100000))) {
+				Assert.assertEquals(0, ch.size());
+				ch.write(ByteBuffer.wrap(new byte[500]));
+				Assert.assertEquals(500, ch.size());
+				Assert.assertEquals(-1, ch.read(ByteBuffer.allocate(10)));
+			}
+			Assert.assertEquals(500, Files.size(file));
+
+			try {
+				Files.newOutputStream(fs.getRootDirectories().iterator().next().resolve("missing.bin"),
+						StandardOpenOption.WRITE);
+				Assert.fail("Expected NoSuchFileException");
+			} catch (NoSuchFileException nsfe) {
+			}
+		}
+	}
+
 	@Test
 	public void testFileRead() throws Exception {
 		try (FileSystem rootFs = createRootVFS()) {
@@ -110,6 +454,936 @@ public class Vfs2NioFileSystemProviderTest {
 		}
 	}
 
+	@Test
+	public void testWatchService() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.WATCH_INTERVAL, 100);
+		try (FileSystem rootFs = FileSystems.newFileSystem(URI.create("vfs:" + rootFile.toURI().toString()), env)) {
+			try (WatchService watcher = rootFs.newWatchService()) {
+				Path dirPath = rootFs.getPath(dir.getPath());
+				WatchKey key = dirPath.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE);
+				File file = new File(dir, "test.txt");
+				writeTestFile(file);
+				Assert.assertSame(key, watcher.poll(10, TimeUnit.SECONDS));
+				List<WatchEvent<?>> events = key.pollEvents();
+				Assert.assertEquals(1, events.size());
+				Assert.assertEquals(StandardWatchEventKinds.ENTRY_CREATE, events.get(0).kind());
+				Assert.assertEquals(rootFs.getPath("test.txt"), events.get(0).context());
+				Assert.assertTrue(key.reset());
+
+				file.delete();
+				Assert.assertSame(key, watcher.poll(10, TimeUnit.SECONDS));
+				events = key.pollEvents();
+				Assert.assertEquals(StandardWatchEventKinds.ENTRY_DELETE, events.get(0).kind());
+			}
+		}
+	}
+
+	@Test
+	public void testMetadataIndex() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		new File(dir, "a/b").mkdirs();
+		new File(dir, "a-b").mkdirs();
+		writeTestFile(new File(dir, "a/1.txt"));
+		writeTestFile(new File(dir, "a/b/2.txt"));
+		writeTestFile(new File(dir, "a-b/3.txt"));
+		File indexFile = File.createTempFile("vfs", "idx");
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.INDEX, true);
+		env.put(Vfs2NioFileSystemProvider.INDEX_FILE, indexFile.getPath());
+		indexFile.delete();
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			Vfs2NioMetadataIndex index = fs.getIndex();
+			Assert.assertEquals(7, index.size());
+			Assert.assertEquals(3, index.find(root, Integer.MAX_VALUE, (p, a) -> a.isRegularFile()).count());
+			Assert.assertEquals(1, index.find(root.resolve("a"), 1, (p, a) -> a.isRegularFile()).count());
+			Assert.assertEquals(1024, index.getAttributes(root.resolve("a/b/2.txt")).size());
+			try (Stream<Path> walk = Files.walk(root)) {
+				Assert.assertEquals(7, walk.count());
+			}
+
+			Files.write(fs.getPath(root.toString(), "a", "b", "4.txt"), new byte[10]);
+			new File(dir, "a/1.txt").delete();
+			index.refresh();
+			Assert.assertEquals(7, index.size());
+			Assert.assertTrue(index.contains(root.resolve("a/b/4.txt")));
+			Assert.assertFalse(index.contains(root.resolve("a/1.txt")));
+
+			/* Listings see changes made through the file system before the next refresh */
+			Path created = root.resolve("a/5.txt");
+			Files.write(created, new byte[10]);
+			try (Stream<Path> list = Files.list(root.resolve("a"))) {
+				Assert.assertTrue(list.anyMatch(created::equals));
+			}
+			Assert.assertTrue(Files.getLastModifiedTime(root.resolve("a")).toMillis() > 0);
+			Files.delete(created);
+			try (Stream<Path> list = Files.list(root.resolve("a"))) {
+				Assert.assertFalse(list.anyMatch(created::equals));
+			}
+		}
+		Assert.assertTrue(indexFile.exists());
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				env)) {
+			Assert.assertEquals(7, fs.getIndex().size());
+		}
+	}
+
+	@Test
+	public void testSync() throws Exception {
+		File src = Files.createTempDirectory("vfs").toFile();
+		File tgt = Files.createTempDirectory("vfs").toFile();
+		new File(src, "a").mkdirs();
+		new File(src, "b").mkdirs();
+		new File(tgt, "a").mkdirs();
+		writeTestFile(new File(src, "a/1.txt"));
+		writeTestFile(new File(src, "a/2.txt"));
+		writeTestFile(new File(src, "b/3.txt"));
+		Files.copy(new File(src, "a/1.txt").toPath(), new File(tgt, "a/1.txt").toPath());
+		new File(tgt, "a/1.txt").setLastModified(new File(src, "a/1.txt").lastModified());
+		writeTestFile(new File(tgt, "extra.txt"));
+		try (FileSystem srcFs = FileSystems.newFileSystem(URI.create("vfs:" + src.toURI()), new HashMap<>());
+				FileSystem tgtFs = FileSystems.newFileSystem(URI.create("vfs:" + tgt.toURI()), new HashMap<>())) {
+			Vfs2NioSync sync = new Vfs2NioSync(srcFs.getRootDirectories().iterator().next(),
+					tgtFs.getRootDirectories().iterator().next());
+			sync.setDelete(true);
+			List<Vfs2NioSync.Change> plan = sync.plan();
+			Assert.assertEquals(4, plan.size());
+			Assert.assertEquals(Vfs2NioSync.Action.COPY, plan.get(0).getAction());
+			Assert.assertTrue(plan.get(0).getTarget().endsWith("a/2.txt"));
+			Assert.assertEquals(Vfs2NioSync.Action.CREATE_DIRECTORY, plan.get(1).getAction());
+			Assert.assertEquals(Vfs2NioSync.Action.DELETE, plan.get(3).getAction());
+			Assert.assertTrue(new File(tgt, "extra.txt").exists());
+
+			sync.apply(plan);
+			Assert.assertEquals(2, sync.getFilesTransferred());
+			Assert.assertEquals(2048, sync.getBytesTransferred());
+			Assert.assertEquals(1, sync.getDeleted());
+			Assert.assertTrue(new File(tgt, "b/3.txt").exists());
+			Assert.assertFalse(new File(tgt, "extra.txt").exists());
+			Assert.assertTrue(sync.plan().isEmpty());
+
+			sync.setChecksum(true);
+			new File(tgt, "b/3.txt").setLastModified(0);
+			Assert.assertTrue(sync.plan().isEmpty());
+			try (OutputStream out = new FileOutputStream(new File(tgt, "b/3.txt"))) {
+				out.write(new byte[1024]);
+			}
+			Assert.assertEquals(Vfs2NioSync.Action.UPDATE, sync.plan().get(0).getAction());
+
+			/* Either side may be outside of a Vfs2NioFileSystem */
+			File other = Files.createTempDirectory("vfs").toFile();
+			writeTestFile(new File(other, "stale.txt"));
+			Vfs2NioSync toDefault = new Vfs2NioSync(srcFs.getRootDirectories().iterator().next(), other.toPath());
+			toDefault.setDelete(true);
+			toDefault.sync();
+			Assert.assertEquals(3, toDefault.getFilesTransferred());
+			Assert.assertEquals(1, toDefault.getDeleted());
+			Assert.assertTrue(toDefault.getWarnings().isEmpty());
+			Assert.assertTrue(new File(other, "b/3.txt").exists());
+			Assert.assertFalse(new File(other, "stale.txt").exists());
+			Assert.assertTrue(new Vfs2NioSync(other.toPath(), srcFs.getRootDirectories().iterator().next()).plan()
+					.isEmpty());
+		}
+	}
+
+	@Test
+	public void testWalk() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		for (int i = 0; i < 5; i++) {
+			new File(dir, "d" + i + "/e").mkdirs();
+			writeTestFile(new File(dir, "d" + i + "/1.txt"));
+			writeTestFile(new File(dir, "d" + i + "/e/2.txt"));
+		}
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), new HashMap<>())) {
+			Path root = fs.getRootDirectories().iterator().next();
+			List<Path> expected;
+			try (Stream<Path> walk = Files.walk(root)) {
+				expected = walk.collect(Collectors.toList());
+			}
+			try (Stream<Path> walk = Vfs2NioFiles.walk(root, Integer.MAX_VALUE, 3)) {
+				Assert.assertEquals(expected, walk.collect(Collectors.toList()));
+			}
+			try (Stream<Path> walk = Vfs2NioFiles.walk(root, Integer.MAX_VALUE, 3).parallel()) {
+				Assert.assertEquals(expected.size(), walk.count());
+			}
+			try (Stream<Path> walk = Vfs2NioFiles.walk(root, 1)) {
+				Assert.assertEquals(6, walk.count());
+			}
+			try (Stream<Path> found = Vfs2NioFiles.find(root, Integer.MAX_VALUE, 3,
+					(p, a) -> a.isRegularFile() && a.size() == 1024 && p.toString().endsWith("2.txt"))) {
+				Assert.assertEquals(5, found.count());
+			}
+			try (Stream<Path> found = Vfs2NioFiles.find(root, 1, 3, (p, a) -> a.isDirectory())) {
+				Assert.assertEquals(6, found.count());
+			}
+		}
+	}
+
+	@Test
+	public void testWalkWindow() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		for (int i = 0; i < 5; i++) {
+			for (int j = 0; j < 5; j++) {
+				for (int k = 0; k < 5; k++)
+					new File(dir, "d" + i + "/e" + j + "/f" + k).mkdirs();
+			}
+		}
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				new HashMap<>())) {
+			Vfs2NioPath root = (Vfs2NioPath) fs.getRootDirectories().iterator().next();
+			try (Vfs2NioWalkSpliterator.Walk walk = new Vfs2NioWalkSpliterator.Walk(fs, Integer.MAX_VALUE, 2, 10)) {
+				Vfs2NioWalkSpliterator walker = new Vfs2NioWalkSpliterator(walk,
+						new Vfs2NioWalkSpliterator.Node(root, 0, root.getAttributes()));
+				Assert.assertTrue(walker.tryAdvance(n -> {
+				}));
+				Thread.sleep(500);
+				/* Without a window all 155 nodes would be listed by now */
+				Assert.assertTrue(walk.ahead() < 30);
+				List<Path> rest = new ArrayList<>();
+				while (walker.tryAdvance(n -> rest.add(n.path())))
+					;
+				Assert.assertEquals(155, rest.size());
+				Assert.assertEquals(0, walk.ahead());
+			}
+		} finally {
+			try (Stream<Path> walk = Files.walk(dir.toPath())) {
+				walk.sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+
+	@Test
+	public void testParallelWalkOrder() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		for (int i = 0; i < 6; i++) {
+			for (int j = 0; j < 3; j++) {
+				new File(dir, "d" + i + "/e" + j).mkdirs();
+				for (int k = 0; k < 7; k++)
+					new File(dir, "d" + i + "/e" + j + "/" + k + ".txt").createNewFile();
+			}
+		}
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), new HashMap<>())) {
+			Path root = fs.getRootDirectories().iterator().next();
+			List<Path> sequential;
+			try (Stream<Path> walk = Vfs2NioFiles.walk(root, Integer.MAX_VALUE, 4)) {
+				sequential = walk.collect(Collectors.toList());
+			}
+			Assert.assertEquals(151, sequential.size());
+			Assert.assertEquals(root, sequential.get(0));
+			for (int i = 0; i < 5; i++) {
+				try (Stream<Path> walk = Vfs2NioFiles.walk(root, Integer.MAX_VALUE, 4).parallel()) {
+					Assert.assertEquals(sequential, walk.collect(Collectors.toList()));
+				}
+			}
+		} finally {
+			try (Stream<Path> walk = Files.walk(dir.toPath())) {
+				walk.sorted(Collections.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+
+	@Test
+	public void testListeners() throws Exception {
+		File file = File.createTempFile("vfs", "tmp");
+		writeTestFile(file);
+		List<Vfs2NioOperation> started = new ArrayList<>();
+		Vfs2NioSlowOperationLog slowLog = new Vfs2NioSlowOperationLog(3);
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.LISTENERS, Arrays.asList(slowLog, new Vfs2NioOperationListener() {
+			@Override
+			public void operationStarted(Vfs2NioOperation operation, Path path) {
+				started.add(operation);
+			}
+
+			@Override
+			public void operationFinished(Vfs2NioOperation operation, Path path, long bytes, long elapsed) {
+			}
+		}));
+		try (FileSystem rootFs = FileSystems.newFileSystem(URI.create("vfs:" + rootFile.toURI().toString()), env)) {
+			try (InputStream in = Files.newInputStream(rootFs.getPath(file.getPath()))) {
+				while (in.read() != -1)
+					;
+			}
+		}
+		Assert.assertTrue(started.contains(Vfs2NioOperation.OPEN));
+		Assert.assertTrue(started.contains(Vfs2NioOperation.READ));
+		List<Vfs2NioSlowOperationLog.Entry> slowest = slowLog.getEntries();
+		Assert.assertEquals(3, slowest.size());
+		Assert.assertTrue(slowest.get(0).getElapsed() >= slowest.get(2).getElapsed());
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		File file = File.createTempFile("vfs", "tmp");
+		writeTestFile(file);
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.METRICS, true);
+		try (Vfs2NioFileSystem rootFs = (Vfs2NioFileSystem) FileSystems
+				.newFileSystem(URI.create("vfs:" + rootFile.toURI().toString()), env)) {
+			try (InputStream in = Files.newInputStream(rootFs.getPath(file.getPath()))) {
+				while (in.read() != -1)
+					;
+			}
+			Vfs2NioMetrics metrics = rootFs.getMetrics();
+			Assert.assertEquals(1024, metrics.getBytesRead());
+			Assert.assertEquals(1, metrics.getStats(Vfs2NioOperation.OPEN).getCount());
+			Assert.assertTrue(metrics.getStats(Vfs2NioOperation.READ).getCount() > 0);
+			Assert.assertTrue(metrics.getStats(Vfs2NioOperation.CHECK_ACCESS).getCount() > 0);
+			Assert.assertFalse(ManagementFactory.getPlatformMBeanServer()
+					.queryNames(new ObjectName("com.sshtools.vfs2nio:type=FileSystem,*"), null).isEmpty());
+		}
+	}
+
+	@Test
+	public void testArchiveIndex() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		File indexDir = Files.createTempDirectory("vfsidx").toFile();
+		byte[] data = new byte[100000];
+		new Random().nextBytes(data);
+		byte[] text = String.join("", Collections.nCopies(2000, "compressible ")).getBytes("UTF-8");
+
+		File zipFile = new File(dir, "test.zip");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(zipFile))) {
+			zip.putNextEntry(new ZipEntry("a/b/text.txt"));
+			zip.write(text);
+			ZipEntry stored = new ZipEntry("a/data.bin");
+			stored.setMethod(ZipEntry.STORED);
+			stored.setSize(data.length);
+			CRC32 crc = new CRC32();
+			crc.update(data);
+			stored.setCrc(crc.getValue());
+			zip.putNextEntry(stored);
+			zip.write(data);
+			zip.putNextEntry(new ZipEntry("empty/"));
+		}
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.ARCHIVE_INDEX, true);
+		env.put(Vfs2NioFileSystemProvider.ARCHIVE_INDEX_DIRECTORY, indexDir.toPath());
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems
+				.newFileSystem(URI.create("vfs:zip:" + zipFile.toURI()), env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			try (Stream<Path> list = Files.list(root)) {
+				Assert.assertEquals(Arrays.asList("/a", "/empty"),
+						list.map(Path::toString).sorted().collect(Collectors.toList()));
+			}
+			try (Stream<Path> list = Files.list(root.resolve("a"))) {
+				Assert.assertEquals(Arrays.asList("/a/b", "/a/data.bin"),
+						list.map(Path::toString).sorted().collect(Collectors.toList()));
+			}
+			Assert.assertTrue(Files.isDirectory(root.resolve("a/b")));
+			Assert.assertTrue(Files.isDirectory(root.resolve("empty")));
+			Assert.assertFalse(Files.exists(root.resolve("a/missing.txt")));
+			Assert.assertEquals(data.length, Files.size(root.resolve("a/data.bin")));
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(root.resolve("a/data.bin"))));
+			Assert.assertTrue(Arrays.equals(text, Files.readAllBytes(root.resolve("a/b/text.txt"))));
+			try (FileChannel ch = FileChannel.open(root.resolve("a/b/text.txt"), StandardOpenOption.READ)) {
+				ByteBuffer buf = ByteBuffer.allocate(11);
+				ch.read(buf, 13);
+				Assert.assertEquals("compressibl", new String(buf.array(), "UTF-8"));
+				buf.clear();
+				ch.read(buf, 0);
+				Assert.assertEquals("compressibl", new String(buf.array(), "UTF-8"));
+				FileLock lock = ch.lock(0, 10, true);
+				Assert.assertTrue(lock.isShared());
+				Assert.assertTrue(lock.isValid());
+				Assert.assertSame(ch, lock.channel());
+				try {
+					ch.tryLock(0, 10, false);
+					Assert.fail("Exclusive lock on a read-only channel");
+				} catch (NonWritableChannelException e) {
+				}
+				lock.release();
+				Assert.assertFalse(lock.isValid());
+			}
+			Assert.assertTrue(fs.isReadOnly());
+			/* Everything was answered by the index, Commons VFS never opened the archive */
+			Assert.assertFalse(fs.isConnected());
+		}
+		Assert.assertEquals(1, indexDir.list().length);
+
+		File tarFile = new File(dir, "test.tar");
+		try (TarArchiveOutputStream tar = new TarArchiveOutputStream(new FileOutputStream(tarFile))) {
+			TarArchiveEntry first = new TarArchiveEntry("x/first.txt");
+			first.setSize(text.length);
+			tar.putArchiveEntry(first);
+			tar.write(text);
+			tar.closeArchiveEntry();
+			TarArchiveEntry second = new TarArchiveEntry("x/y/second.bin");
+			second.setSize(data.length);
+			tar.putArchiveEntry(second);
+			tar.write(data);
+			tar.closeArchiveEntry();
+		}
+		env.remove(Vfs2NioFileSystemProvider.ARCHIVE_INDEX_DIRECTORY);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:tar:" + tarFile.toURI()), env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(root.resolve("x/y/second.bin"))));
+			try (FileChannel ch = FileChannel.open(root.resolve("x/y/second.bin"), StandardOpenOption.READ)) {
+				ByteBuffer buf = ByteBuffer.allocate(4);
+				Assert.assertEquals(4, ch.read(buf, 50000));
+				Assert.assertEquals(data[50003], buf.get(3));
+			}
+			try (InputStream in = Files.newInputStream(root.resolve("x/first.txt"))) {
+				Assert.assertEquals('c', in.read());
+			}
+		}
+		Assert.assertFalse(new File(dir, "test.tar.vfsindex").exists());
+	}
+
+	@Test
+	public void testCoalescedLookups() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		writeTestFile(new File(dir, "hot.txt"));
+		AtomicInteger resolves = new AtomicInteger();
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.METRICS, true);
+		env.put(Vfs2NioFileSystemProvider.LISTENERS, new Vfs2NioOperationListener() {
+			@Override
+			public void operationStarted(Vfs2NioOperation operation, Path path) {
+				if (operation == Vfs2NioOperation.RESOLVE && path.toString().endsWith("hot.txt")) {
+					resolves.incrementAndGet();
+					try {
+						Thread.sleep(300);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+
+			@Override
+			public void operationFinished(Vfs2NioOperation operation, Path path, long bytes, long elapsed) {
+			}
+		});
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				env)) {
+			Path hot = fs.getRootDirectories().iterator().next().resolve("hot.txt");
+			ExecutorService executor = Executors.newFixedThreadPool(8);
+			CountDownLatch go = new CountDownLatch(1);
+			List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				checks.add(CompletableFuture.supplyAsync(() -> {
+					try {
+						go.await();
+					} catch (InterruptedException e) {
+					}
+					return Files.exists(hot);
+				}, executor));
+			}
+			go.countDown();
+			for (CompletableFuture<Boolean> check : checks)
+				Assert.assertTrue(check.get());
+			executor.shutdown();
+			Assert.assertTrue(resolves.get() < 8);
+			Assert.assertEquals(8 - resolves.get(), fs.getMetrics().getCoalescedLookups());
+		}
+	}
+
+	@Test
+	public void testNegativeCache() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		AtomicInteger resolves = new AtomicInteger();
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.NEGATIVE_CACHE_TTL, Duration.ofMinutes(1));
+		env.put(Vfs2NioFileSystemProvider.LISTENERS, new Vfs2NioOperationListener() {
+			@Override
+			public void operationFinished(Vfs2NioOperation operation, Path path, long bytes, long elapsed) {
+				if (operation == Vfs2NioOperation.RESOLVE)
+					resolves.incrementAndGet();
+			}
+		});
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()), env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			Path missing = root.resolve("missing.txt");
+			Assert.assertFalse(Files.exists(missing));
+			int after = resolves.get();
+			Assert.assertFalse(Files.exists(missing));
+			Assert.assertFalse(Files.exists(root.resolve("./missing.txt")));
+			try {
+				Files.readAttributes(missing, BasicFileAttributes.class);
+				Assert.fail("Expected missing file.");
+			} catch (NoSuchFileException nsfe) {
+			}
+			Assert.assertEquals(after, resolves.get());
+
+			/* Not seen until it expires when created behind our back */
+			writeTestFile(new File(dir, "missing.txt"));
+			Assert.assertFalse(Files.exists(missing));
+
+			/* Seen immediately when written through the provider */
+			Files.write(missing, new byte[] { 1 });
+			Assert.assertTrue(Files.exists(missing));
+			Assert.assertEquals(1, Files.size(missing));
+
+			/* Moves and copies make targets visible too */
+			Path moved = root.resolve("moved/missing.txt");
+			Assert.assertFalse(Files.exists(moved));
+			Files.createDirectories(moved.getParent());
+			Files.copy(missing, moved);
+			Assert.assertTrue(Files.exists(moved));
+		}
+	}
+
+	@Test
+	public void testFlightRecorderEvents() throws Exception {
+		byte[] data = new byte[10000];
+		new Random().nextBytes(data);
+		Path dump = Files.createTempFile("vfs", ".jfr");
+		try (Recording recording = new Recording()) {
+			for (String name : Arrays.asList("Open", "Read", "Write"))
+				recording.enable("com.sshtools.vfs2nio." + name);
+			recording.start();
+			try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///jfr"), new HashMap<>())) {
+				Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+				Files.createDirectories(file.getParent());
+				Files.write(file, data);
+				Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+			}
+			recording.stop();
+			recording.dump(dump);
+		}
+		List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+		Files.delete(dump);
+		Map<String, Long> bytes = new HashMap<>();
+		Duration total = Duration.ZERO;
+		for (RecordedEvent event : events) {
+			Assert.assertEquals("ram", event.getString("scheme"));
+			if (event.getString("path").endsWith("data.bin"))
+				bytes.merge(event.getEventType().getName(), event.getLong("bytes"), Long::sum);
+			Assert.assertFalse(event.getDuration().isNegative());
+			total = total.plus(event.getDuration());
+		}
+		/* Events span their operations */
+		Assert.assertFalse(total.isZero());
+		Assert.assertTrue(bytes.containsKey("com.sshtools.vfs2nio.Open"));
+		Assert.assertEquals(10000l, (long) bytes.get("com.sshtools.vfs2nio.Read"));
+		Assert.assertEquals(10000l, (long) bytes.get("com.sshtools.vfs2nio.Write"));
+	}
+
+	@Test
+	public void testLazyManager() throws Exception {
+		Vfs2NioFileSystemManager mgr = new Vfs2NioFileSystemManager();
+		mgr.init();
+		Map<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.VFS_MANAGER, mgr);
+		Path dir = Files.createTempDirectory("vfs");
+		byte[] data = new byte[1000];
+		new Random().nextBytes(data);
+		try {
+			for (String uri : Arrays.asList("vfs:ram:///lazy", "vfs:tmp:///lazy", "vfs:" + dir.toUri())) {
+				try (FileSystem fs = FileSystems.newFileSystem(URI.create(uri), env)) {
+					Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+					Files.createDirectories(file.getParent());
+					Files.write(file, data);
+					Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+					Files.delete(file);
+				}
+			}
+			Assert.assertFalse(mgr.hasProvider("nosuch"));
+			try {
+				FileSystems.newFileSystem(URI.create("vfs:nosuch:///"), env);
+				Assert.fail("Expected unknown scheme to fail");
+			} catch (IOException ioe) {
+			}
+		} finally {
+			Files.delete(dir);
+			mgr.close();
+		}
+	}
+
+	@Test
+	public void testFileStoreSpace() throws Exception {
+		Path dir = Files.createTempDirectory("vfs");
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toUri()), new HashMap<>())) {
+			FileStore store = fs.getFileStores().iterator().next();
+			Assert.assertSame(store, Files.getFileStore(fs.getPath("/")));
+			Assert.assertEquals(Files.getFileStore(dir).getTotalSpace(), store.getTotalSpace());
+		} finally {
+			Files.delete(dir);
+		}
+
+		AtomicInteger queries = new AtomicInteger();
+		Map<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.SPACE, (Vfs2NioSpace) root -> {
+			int query = queries.incrementAndGet();
+			return new Vfs2NioSpace.Usage(1000, query, query);
+		});
+		env.put(Vfs2NioFileSystemProvider.SPACE_TTL, 200);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///space"), env)) {
+			FileStore store = fs.getFileStores().iterator().next();
+			Assert.assertEquals(1000, store.getTotalSpace());
+			Assert.assertEquals(1, store.getUsableSpace());
+			Assert.assertEquals(1, queries.get());
+
+			/* Expired usage is still returned while it is refreshed */
+			Thread.sleep(300);
+			Assert.assertEquals(1, store.getUsableSpace());
+			long deadline = System.currentTimeMillis() + 5000;
+			while (store.getUsableSpace() != 2 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			Assert.assertEquals(2, store.getUsableSpace());
+			Assert.assertEquals(2, queries.get());
+		}
+	}
+
+	@Test
+	public void testFileLocks() throws Exception {
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///locks"), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, new byte[100]);
+			try (FileChannel a = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					FileChannel b = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				FileLock exclusive = a.lock(0, 10, false);
+				Assert.assertNull(b.tryLock(5, 10, false));
+				Assert.assertNull(b.tryLock(5, 10, true));
+				FileLock adjacent = b.tryLock(10, 10, false);
+				Assert.assertNotNull(adjacent);
+				try {
+					a.tryLock(5, 10, true);
+					Assert.fail("Expected overlapping lock on the same channel to fail");
+				} catch (OverlappingFileLockException ofle) {
+				}
+
+				/* Shared locks may overlap each other */
+				FileLock sharedA = a.lock(50, 10, true);
+				FileLock sharedB = b.lock(55, 10, true);
+				Assert.assertTrue(sharedA.isShared() && sharedB.isShared());
+
+				/* A blocked lock is granted on release */
+				CompletableFuture<FileLock> waiting = CompletableFuture.supplyAsync(() -> {
+					try {
+						return b.lock(0, 5, false);
+					} catch (IOException ioe) {
+						throw new IllegalStateException(ioe);
+					}
+				});
+				Thread.sleep(100);
+				Assert.assertFalse(waiting.isDone());
+				exclusive.release();
+				Assert.assertFalse(exclusive.isValid());
+				Assert.assertTrue(waiting.get(5, TimeUnit.SECONDS).isValid());
+
+				/* Closing a channel releases its locks */
+				b.close();
+				Assert.assertFalse(adjacent.isValid());
+				Assert.assertNotNull(a.tryLock(60, 40, false));
+			}
+		}
+
+		/* Lock files keep out other file systems, e.g. in other processes */
+		Map<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.LOCK_FILES, true);
+		/* Identical options, so both mounts share one Commons VFS file system */
+		env.put(Vfs2NioFileSystemProvider.FILE_SYSTEM_OPTIONS, new FileSystemOptions());
+		env.put(Vfs2NioFileSystemProvider.AUTHENTICATOR, (UserAuthenticator) types -> null);
+		try (FileSystem fs1 = FileSystems.newFileSystem(URI.create("vfs:ram:///lockfiles"), env)) {
+			Path file1 = fs1.getPath("/lockfiles/data.bin");
+			Files.createDirectories(file1.getParent());
+			Files.write(file1, new byte[100]);
+			try (FileSystem fs2 = FileSystems.newFileSystem(URI.create("vfs:ram:///lockfiles2"), env);
+					FileChannel a = FileChannel.open(file1, StandardOpenOption.READ, StandardOpenOption.WRITE);
+					FileChannel b = FileChannel.open(fs2.getPath("/lockfiles/data.bin"), StandardOpenOption.READ,
+							StandardOpenOption.WRITE)) {
+				FileLock lock = a.lock(0, 10, false);
+				Assert.assertTrue(Files.exists(fs1.getPath("/lockfiles/data.bin.lock")));
+				Assert.assertNull(b.tryLock(50, 10, true));
+				lock.release();
+				Assert.assertFalse(Files.exists(fs1.getPath("/lockfiles/data.bin.lock")));
+				Assert.assertNotNull(b.tryLock(50, 10, true));
+			}
+
+			/* Ranges locked at once all wait for the one lock file */
+			ExecutorService pool = Executors.newFixedThreadPool(4);
+			try (FileChannel c = FileChannel.open(file1, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				List<Callable<FileLock>> tasks = new ArrayList<>();
+				for (int i = 0; i < 8; i++) {
+					long position = i * 10;
+					tasks.add(() -> c.lock(position, 10, false));
+				}
+				List<FileLock> locks = new ArrayList<>();
+				for (Future<FileLock> future : pool.invokeAll(tasks))
+					locks.add(future.get());
+				Assert.assertTrue(Files.exists(fs1.getPath("/lockfiles/data.bin.lock")));
+				for (FileLock lock : locks)
+					lock.release();
+				Assert.assertFalse(Files.exists(fs1.getPath("/lockfiles/data.bin.lock")));
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void testPosixAttributes() throws Exception {
+		Path dir = Files.createTempDirectory("vfs");
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:" + dir.toUri()), new HashMap<>())) {
+			Assert.assertTrue(fs.supportedFileAttributeViews().contains("posix"));
+			Path root = fs.getRootDirectories().iterator().next();
+
+			/* Permissions are applied as things are created */
+			Path sub = root.resolve("sub");
+			Files.createDirectory(sub, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			Assert.assertEquals("rwx------",
+					PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.resolve("sub"))));
+			Path file = sub.resolve("data.bin");
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-r-----")));
+			Assert.assertEquals("rw-r-----", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+
+			Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+			Assert.assertEquals("rw-------",
+					PosixFilePermissions.toString(Files.getPosixFilePermissions(dir.resolve("sub/data.bin"))));
+			Assert.assertEquals(Files.getOwner(dir).getName(), Files.getOwner(file).getName());
+
+			/* All times in one call */
+			FileTime mtime = FileTime.fromMillis(1500000000000l);
+			FileTime atime = FileTime.fromMillis(1600000000000l);
+			Files.getFileAttributeView(file, BasicFileAttributeView.class).setTimes(mtime, atime, null);
+			BasicFileAttributes attrs = Files.readAttributes(dir.resolve("sub/data.bin"), BasicFileAttributes.class);
+			Assert.assertEquals(mtime, attrs.lastModifiedTime());
+			Assert.assertEquals(atime, attrs.lastAccessTime());
+
+			Files.delete(file);
+			Files.delete(sub);
+		} finally {
+			Files.delete(dir);
+		}
+
+		/* Other backends derive permissions from what the connected user may do */
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:tmp:///posix"), new HashMap<>())) {
+			Path sub = fs.getRootDirectories().iterator().next().resolve("sub");
+			Files.createDirectories(sub.getParent());
+			Files.createDirectory(sub, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			PosixFileAttributes attrs = Files.readAttributes(sub, PosixFileAttributes.class);
+			Assert.assertEquals("rwx------", PosixFilePermissions.toString(attrs.permissions()));
+			Assert.assertNull(attrs.owner());
+			Files.setAttribute(sub, "posix:permissions", PosixFilePermissions.fromString("rwxr-xr-x"));
+			Assert.assertTrue(Files.getPosixFilePermissions(sub).contains(PosixFilePermission.OWNER_EXECUTE));
+			Files.delete(sub);
+		}
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///posix"), new HashMap<>())) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, new byte[1]);
+			try {
+				Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+				Assert.fail("Expected permissions to be unsupported");
+			} catch (IOException ioe) {
+			}
+		}
+	}
+
+	@Test
+	public void testSetPermissionsRevokes() throws Exception {
+		FileName name = VFS.getManager().resolveURI("ram:///stub");
+		List<String> calls = new ArrayList<>();
+		FileObject fo = (FileObject) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { FileObject.class }, (proxy, method, args) -> {
+					if (method.getName().equals("getName"))
+						return name;
+					calls.add(method.getName() + "(" + args[0] + "," + args[1] + ")");
+					return true;
+				});
+
+		/* Owner only bits must first be revoked from everyone else */
+		Vfs2NioPosixFileAttributeView.setPermissions(fo, PosixFilePermissions.fromString("rwxr-x---"));
+		Assert.assertEquals(Arrays.asList("setReadable(true,false)", "setWritable(false,false)",
+				"setWritable(true,true)", "setExecutable(true,false)"), calls);
+		calls.clear();
+		Vfs2NioPosixFileAttributeView.setPermissions(fo, PosixFilePermissions.fromString("r--------"));
+		Assert.assertEquals(Arrays.asList("setReadable(false,false)", "setReadable(true,true)",
+				"setWritable(false,false)", "setExecutable(false,false)"), calls);
+
+		/* Nothing can be granted to others but not the owner */
+		try {
+			Vfs2NioPosixFileAttributeView.setPermissions(fo, PosixFilePermissions.fromString("---r--r--"));
+			Assert.fail("Expected permissions to be unrepresentable");
+		} catch (IOException ioe) {
+		}
+	}
+
+	@Test
+	public void testFlow() throws Exception {
+		byte[] data = new byte[300000];
+		new Random().nextBytes(data);
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:ram:///flow"),
+				new HashMap<>())) {
+			Path dir = fs.getRootDirectories().iterator().next();
+			Files.createDirectories(dir);
+			Path file = dir.resolve("data.bin");
+
+			/* Write */
+			Vfs2NioContentSubscriber writer = fs.newContentSubscriber(file);
+			try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+				publisher.subscribe(writer);
+				for (int i = 0; i < data.length; i += 1000)
+					publisher.submit(ByteBuffer.wrap(data, i, 1000));
+			}
+			Assert.assertEquals(data.length, (long) writer.getResult().get(10, TimeUnit.SECONDS));
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+
+			/* Read, one buffer at a time */
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			AtomicInteger outstanding = new AtomicInteger();
+			CompletableFuture<Void> read = new CompletableFuture<>();
+			fs.newContentPublisher(file).subscribe(new Flow.Subscriber<ByteBuffer>() {
+				private Flow.Subscription subscription;
+
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					this.subscription = subscription;
+					outstanding.incrementAndGet();
+					subscription.request(1);
+				}
+
+				@Override
+				public void onNext(ByteBuffer item) {
+					if (outstanding.decrementAndGet() < 0)
+						read.completeExceptionally(new IllegalStateException("More than requested."));
+					byte[] b = new byte[item.remaining()];
+					item.get(b);
+					out.write(b, 0, b.length);
+					outstanding.incrementAndGet();
+					subscription.request(1);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					read.completeExceptionally(throwable);
+				}
+
+				@Override
+				public void onComplete() {
+					read.complete(null);
+				}
+			});
+			read.get(10, TimeUnit.SECONDS);
+			Assert.assertTrue(Arrays.equals(data, out.toByteArray()));
+
+			/* Copy, the subscriber keeps its own copy of the pooled buffers */
+			Path copy = dir.resolve("copy.bin");
+			Vfs2NioContentSubscriber copier = fs.newContentSubscriber(copy);
+			fs.newContentPublisher(file).subscribe(copier);
+			Assert.assertEquals(data.length, (long) copier.getResult().get(10, TimeUnit.SECONDS));
+			Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(copy)));
+			Files.delete(copy);
+
+			/* List */
+			Files.write(dir.resolve("other.bin"), new byte[1]);
+			List<Path> paths = new ArrayList<>();
+			CompletableFuture<Void> listed = new CompletableFuture<>();
+			fs.newDirectoryPublisher(dir).subscribe(new Flow.Subscriber<Path>() {
+				@Override
+				public void onSubscribe(Flow.Subscription subscription) {
+					subscription.request(Long.MAX_VALUE);
+				}
+
+				@Override
+				public void onNext(Path item) {
+					paths.add(item);
+				}
+
+				@Override
+				public void onError(Throwable throwable) {
+					listed.completeExceptionally(throwable);
+				}
+
+				@Override
+				public void onComplete() {
+					listed.complete(null);
+				}
+			});
+			listed.get(10, TimeUnit.SECONDS);
+			Assert.assertEquals(new HashSet<>(Arrays.asList(file, dir.resolve("other.bin"))), new HashSet<>(paths));
+		}
+	}
+
+	@Test
+	public void testHedge() throws Exception {
+		Vfs2NioMetrics metrics = new Vfs2NioMetrics("test");
+		Vfs2NioHedge hedge = new Vfs2NioHedge(90, 0.1, metrics);
+		AtomicInteger calls = new AtomicInteger();
+		AtomicInteger closed = new AtomicInteger();
+		for (int i = 0; i < Vfs2NioHedge.MIN_SAMPLES; i++) {
+			hedge.call(Vfs2NioOperation.OPEN, () -> {
+				Thread.sleep(1);
+				return closed::incrementAndGet;
+			});
+		}
+		Assert.assertTrue(hedge.getDelay(Vfs2NioOperation.OPEN) > 0);
+
+		/* The first request stalls, the duplicate answers */
+		long started = System.nanoTime();
+		hedge.call(Vfs2NioOperation.OPEN, () -> {
+			if (calls.getAndIncrement() == 0)
+				Thread.sleep(2000);
+			return closed::incrementAndGet;
+		});
+		Assert.assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+		Assert.assertEquals(2, calls.get());
+		Assert.assertEquals(1, metrics.getHedgedRequests());
+
+		/* The loser is closed when it eventually arrives */
+		long until = System.currentTimeMillis() + 5000;
+		while (closed.get() == 0 && System.currentTimeMillis() < until)
+			Thread.sleep(50);
+		Assert.assertEquals(1, closed.get());
+
+		/* Reads through a hedged file system */
+		byte[] data = new byte[5000];
+		new Random().nextBytes(data);
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.HEDGE_PERCENTILE, 95);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create("vfs:ram:///hedge"), env)) {
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			Files.createDirectories(file.getParent());
+			Files.write(file, data);
+			for (int i = 0; i < Vfs2NioHedge.MIN_SAMPLES + 5; i++) {
+				Assert.assertTrue(Arrays.equals(data, Files.readAllBytes(file)));
+				try (InputStream in = Files.newInputStream(file)) {
+					Assert.assertEquals(data[0] & 0xff, in.read());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testReadAttributesBulk() throws Exception {
+		File dir = Files.createTempDirectory("vfs").toFile();
+		new File(dir, "a").mkdirs();
+		writeTestFile(new File(dir, "a/1.txt"));
+		writeTestFile(new File(dir, "a/2.txt"));
+		writeTestFile(new File(dir, "3.txt"));
+		HashMap<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.METRICS, true);
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:" + dir.toURI()),
+				env)) {
+			Path root = fs.getRootDirectories().iterator().next();
+			List<Path> paths = Arrays.asList(root.resolve("a/1.txt"), root.resolve("a/2.txt"),
+					root.resolve("a/missing.txt"), root.resolve("3.txt"), root.resolve("a"));
+			Map<Path, Vfs2NioFileAttributes> attrs = fs.readAttributesBulk(paths);
+			Assert.assertEquals(4, attrs.size());
+			Assert.assertFalse(attrs.containsKey(root.resolve("a/missing.txt")));
+			Assert.assertEquals(1024, attrs.get(root.resolve("a/2.txt")).size());
+			Assert.assertTrue(attrs.get(root.resolve("a")).isDirectory());
+			Assert.assertTrue(attrs.get(root.resolve("3.txt")).isSnapshot());
+			Assert.assertEquals(2, fs.getMetrics().getStats(Vfs2NioOperation.LIST).getCount());
+		}
+
+		/* The root is grouped with its own children */
+		try (Vfs2NioFileSystem fs = (Vfs2NioFileSystem) FileSystems.newFileSystem(URI.create("vfs:ram:///"),
+				new HashMap<>())) {
+			Path root = fs.getPath("/a").getParent();
+			Files.createDirectories(root.resolve("a"));
+			Map<Path, Vfs2NioFileAttributes> attrs = fs.readAttributesBulk(Arrays.asList(root, root.resolve("a")));
+			Assert.assertEquals(2, attrs.size());
+			Assert.assertTrue(attrs.get(root).isDirectory());
+			Assert.assertTrue(attrs.get(root.resolve("a")).isDirectory());
+		}
+	}
+
 	@Test
 	public void testRootList() throws Exception {
 		try (FileSystem fs = createRootVFS()) {
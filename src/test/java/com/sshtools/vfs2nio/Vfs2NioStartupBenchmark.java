@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2018 - 2022 SSHTOOLS Limited (support@sshtools.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.sshtools.vfs2nio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the time from a cold start of the JVM to the first byte read
+ * through a new file system, with {@link org.apache.commons.vfs2.VFS#getManager()}
+ * and with {@link Vfs2NioFileSystemManager}, for the <code>file</code>,
+ * <code>ram</code> and <code>tmp</code> schemes. Each measurement runs in a new
+ * JVM using the current class path, so run with the test classpath, e.g.
+ * <pre>
+ * java -cp target/classes:target/test-classes:... com.sshtools.vfs2nio.Vfs2NioStartupBenchmark [runs]
+ * </pre>
+ */
+public class Vfs2NioStartupBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 2) {
+			run(Boolean.parseBoolean(args[0]), args[1]);
+			return;
+		}
+		int runs = args.length == 0 ? 5 : Integer.parseInt(args[0]);
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		System.out.println(String.format("%-6s %-9s %12s %16s", "Scheme", "Manager", "Mount (ms)", "First read (ms)"));
+		for (String scheme : Arrays.asList("file", "ram", "tmp")) {
+			for (boolean lazy : new boolean[] { false, true }) {
+				List<Double> mounts = new ArrayList<>();
+				List<Double> reads = new ArrayList<>();
+				for (int i = 0; i < runs; i++) {
+					Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+							Vfs2NioStartupBenchmark.class.getName(), String.valueOf(lazy), scheme)
+									.redirectErrorStream(true).start();
+					try (BufferedReader r = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+						String line;
+						while ((line = r.readLine()) != null) {
+							if (line.startsWith("RESULT ")) {
+								String[] result = line.split(" ");
+								mounts.add(Double.parseDouble(result[1]));
+								reads.add(Double.parseDouble(result[2]));
+							}
+						}
+					}
+					if (process.waitFor() != 0)
+						throw new IllegalStateException(String.format("Benchmark of %s failed.", scheme));
+				}
+				System.out.println(String.format("%-6s %-9s %12.1f %16.1f", scheme, lazy ? "lazy" : "standard",
+						median(mounts), median(reads)));
+			}
+		}
+	}
+
+	private static void run(boolean lazy, String scheme) throws Exception {
+		Path local = null;
+		String uri;
+		if (scheme.equals("file")) {
+			local = new File(System.getProperty("java.io.tmpdir"), "vfs-bench-" + System.nanoTime()).toPath();
+			Files.createDirectory(local);
+			Files.write(local.resolve("data.bin"), new byte[] { 1 });
+			uri = "vfs:" + local.toUri();
+		} else
+			uri = "vfs:" + scheme + ":///bench" + System.nanoTime();
+
+		long started = System.nanoTime();
+		Map<String, Object> env = new HashMap<>();
+		env.put(Vfs2NioFileSystemProvider.LAZY_MANAGER, lazy);
+		try (FileSystem fs = FileSystems.newFileSystem(URI.create(uri), env)) {
+			long mounted = System.nanoTime();
+			Path file = fs.getRootDirectories().iterator().next().resolve("data.bin");
+			if (local == null) {
+				Files.createDirectories(file.getParent());
+				Files.write(file, new byte[] { 1 });
+			}
+			try (InputStream in = Files.newInputStream(file)) {
+				in.read();
+			}
+			long read = System.nanoTime();
+			System.out.println(String.format("RESULT %f %f", (mounted - started) / 1e6, (read - started) / 1e6));
+			if (local == null)
+				Files.delete(file);
+		} finally {
+			if (local != null) {
+				Files.delete(local.resolve("data.bin"));
+				Files.delete(local);
+			}
+		}
+	}
+
+	private static double median(List<Double> values) {
+		Collections.sort(values);
+		return values.get(values.size() / 2);
+	}
+}